@@ -0,0 +1,15 @@
+package pt.up.fe.comp2023;
+
+import pt.up.fe.comp.jmm.ast.AJmmVisitor;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+
+// Visitor that stops as soon as the compilation running on its thread is cancelled or runs out of time
+public abstract class CancellableVisitor<D, R> extends AJmmVisitor<D, R> {
+    private final CancellationToken token = CancellationToken.current();
+
+    @Override
+    public R visit(JmmNode jmmNode, D data) {
+        this.token.poll();
+        return super.visit(jmmNode, data);
+    }
+}
@@ -0,0 +1,82 @@
+package pt.up.fe.comp2023;
+
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+
+import java.util.Map;
+
+public class CancellationToken {
+    // Checking the clock on every call would dominate small visits
+    private static final int CHECK_INTERVAL = 256;
+    private static final ThreadLocal<CancellationToken> current = ThreadLocal.withInitial(CancellationToken::new);
+
+    private volatile boolean cancelled = false;
+    private volatile long deadline = Long.MAX_VALUE;
+    private volatile long timeout = 0;
+    private volatile Stage stage = Stage.OTHER;
+    private int calls = 0;
+
+    public static class CancelledException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final Stage stage;
+
+        public CancelledException(Stage stage, String message) {
+            super(message);
+            this.stage = stage;
+        }
+
+        public Report toReport() {
+            return new Report(ReportType.ERROR, this.stage, -1, -1, getMessage());
+        }
+    }
+
+    // Every compilation runs on a single thread, so each thread has its own token
+    public static CancellationToken current() {
+        return current.get();
+    }
+
+    // Called when a compilation starts, so that threads reused for several compilations do not keep the cancellation
+    // or the deadline of the previous one. The token itself is kept, so a watchdog may hold it across compilations
+    public static CancellationToken begin() {
+        CancellationToken token = current.get();
+        token.cancelled = false;
+        token.stage = Stage.OTHER;
+        token.timeout = 0;
+        token.deadline = Long.MAX_VALUE;
+        token.calls = 0;
+        return token;
+    }
+
+    // May be called from any thread, e.g. by a watchdog of the build service
+    public void cancel() {
+        this.cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    // Restarts the deadline, using "timeout.<stage>" or else "timeout" (in milliseconds, 0 for none)
+    public void startStage(Stage stage, Map<String, String> config) {
+        String timeout = config.getOrDefault("timeout." + stage.name().toLowerCase(), config.getOrDefault("timeout", "0"));
+        this.stage = stage;
+        this.timeout = Long.parseLong(timeout);
+        this.deadline = this.timeout > 0 ? System.nanoTime() + this.timeout * 1_000_000 : Long.MAX_VALUE;
+        this.calls = 0;
+        check();
+    }
+
+    // Cheap enough to be called on every visited node or dataflow iteration
+    public void poll() {
+        if (++this.calls % CHECK_INTERVAL == 0 || this.cancelled)
+            check();
+    }
+
+    public void check() {
+        if (this.cancelled)
+            throw new CancelledException(this.stage, "Compilation was cancelled during the " + this.stage + " stage.");
+        if (System.nanoTime() > this.deadline)
+            throw new CancelledException(this.stage, "The " + this.stage + " stage exceeded its time limit of " + this.timeout + " ms.");
+    }
+}
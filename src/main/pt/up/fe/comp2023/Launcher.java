@@ -1,8 +1,11 @@
 package pt.up.fe.comp2023;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import pt.up.fe.comp.TestUtils;
@@ -12,14 +15,18 @@ import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp2023.jasmin.JasminGenerator;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.Stage;
 import pt.up.fe.comp2023.ollir.Optimization;
+import pt.up.fe.comp2023.optimization.PassManager;
 import pt.up.fe.comp2023.semantic.Analysis;
 import pt.up.fe.comp2023.semantic.MySymbolTable;
+import pt.up.fe.comp2023.semantic.SymbolTableSerializer;
 import pt.up.fe.specs.util.SpecsIo;
 import pt.up.fe.specs.util.SpecsLogs;
 import pt.up.fe.specs.util.SpecsSystem;
 
 public class Launcher {
+    private static final String USAGE = "Usage: ./jmm <file_path> [-o | -O<0-3> | -passes=<pass,...>] [-gvn] [-r <n>] [-t <ms>] [-symbols=<dir>]";
 
     public static void main(String[] args) {
         // Setups console logging and other things
@@ -28,6 +35,15 @@ public class Launcher {
         // Parse arguments as a map with predefined options
         var config = parseArgs(args);
 
+        // Check the optimization level and passes before compiling anything
+        try {
+            new PassManager(config, new ArrayList<>());
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+
         // Get input file
         File inputFile = new File(config.get("inputFile"));
 
@@ -51,26 +67,31 @@ public class Launcher {
         // Output AST
         System.out.println(parserResult.getRootNode().toTree());
 
-        // Generate Symbol Table
-        MySymbolTable symbolTable = new MySymbolTable(parserResult.getRootNode());
-
-        // Output Symbol Table
-        System.out.println(symbolTable.print());
-
-        // Instantiate Analysis
+        // Instantiate Analysis, semantic errors are output as soon as they are found
         Analysis analysis = new Analysis();
+        analysis.setReportListener(System.out::println);
 
-        // Semantic Analysis Stage
+        // Semantic Analysis Stage, which also generates the Symbol Table
         JmmSemanticsResult semanticsResult = analysis.semanticAnalysis(parserResult);
 
-        // Output Semantic Errors
-        for (Report report : analysis.getReports()) {
-            System.out.println(report.toString());
-        }
+        // Output Symbol Table
+        System.out.println(semanticsResult.getSymbolTable().print());
 
         // Check if there are semantic errors
         TestUtils.noErrors(semanticsResult.getReports());
 
+        // Write the class summary, when asked to, so that other classes can be compiled against it without its source
+        if (config.containsKey("symbolOutput")) {
+            File symbolOutput = new File(config.get("symbolOutput"));
+            try {
+                if (!symbolOutput.isDirectory() && !symbolOutput.mkdirs())
+                    throw new IOException("Could not create directory '" + symbolOutput + "'.");
+                SymbolTableSerializer.write((MySymbolTable) semanticsResult.getSymbolTable(), symbolOutput);
+            } catch (IOException e) {
+                SpecsLogs.warn("Could not write the symbol table of '" + inputFile + "': " + e.getMessage());
+            }
+        }
+
         Optimization optimization = new Optimization();
 
         // Apply Constant Propagation and Constant Folding optimizations
@@ -78,19 +99,39 @@ public class Launcher {
             System.out.println("Applying optimizations...");
 
             optimization.optimize(semanticsResult);
+            for (Report report : semanticsResult.getReports())
+                if (report.getStage() == Stage.OPTIMIZATION)
+                    System.out.println(report);
 
             // Output AST after optimizations
             System.out.println(semanticsResult.getRootNode().toTree());
+
+            // Check if the optimizations ran out of time
+            TestUtils.noErrors(semanticsResult.getReports());
         }
 
         OllirResult ollirResult = optimization.toOllir(semanticsResult);
 
-        // Optimize register allocation
-        if (Integer.parseInt(config.get("registerAllocation")) >= 0)
+        // Optimize the OLLIR code and register allocation
+        if (Boolean.parseBoolean(config.get("optimize")) || Integer.parseInt(config.get("registerAllocation")) >= 0) {
+            // The reports of the previous stages are also in the OLLIR result and were already printed
+            int previousReports = ollirResult.getReports().size();
             optimization.optimize(ollirResult);
+            for (Report report : ollirResult.getReports().subList(previousReports, ollirResult.getReports().size()))
+                if (report.getStage() == Stage.OPTIMIZATION)
+                    System.out.println(report);
+        }
+
+        // Check if OLLIR generation or the optimizations ran out of time
+        TestUtils.noErrors(ollirResult.getReports());
 
         JasminGenerator jasminGenerator = new JasminGenerator();
         JasminResult jasminResult = jasminGenerator.toJasmin(ollirResult);
+        List<Report> jasminReports = jasminResult.getReports();
+        for (Report report : jasminReports.subList(ollirResult.getReports().size(), jasminReports.size()))
+            if (report.getStage() == Stage.OPTIMIZATION)
+                System.out.println(report);
+        TestUtils.noErrors(jasminResult.getReports());
         System.out.println(jasminResult.getJasminCode());
 
         TestUtils.runJasmin(jasminResult.getJasminCode());
@@ -101,7 +142,7 @@ public class Launcher {
 
         // Check if there is at least one argument
         if (args.length < 1)
-            throw new RuntimeException("Usage: ./jmm <file_path> [-o] [-p <n>]");
+            throw new RuntimeException(USAGE);
 
         // Create config
         Map<String, String> config = new HashMap<>();
@@ -109,11 +150,35 @@ public class Launcher {
         config.put("debug", "false");
         config.put("optimize", "false");
         config.put("registerAllocation", "-1");
+        config.put("valueNumbering", "local");
+        config.put("timeout", "0");
+        config.put("symbolPath", new File(args[0]).getAbsoluteFile().getParent());
 
         for (int i = 1; i < args.length; i++) {
             if(args[i].equals("-o"))
                 config.put("optimize", "true");
 
+            // -o is the same as -O2, the passes of each level are in PassManager, which also checks the level
+            else if(args[i].matches("-O\\d+")) {
+                config.put("optimizationLevel", args[i].substring(2));
+                config.put("optimize", Boolean.toString(!args[i].equals("-O0")));
+            }
+
+            else if(args[i].startsWith("-passes=")) {
+                config.put("passes", args[i].substring("-passes=".length()));
+                config.put("optimize", "true");
+            }
+
+            // Summaries are written to and also looked up in the given directory
+            else if(args[i].startsWith("-symbols=")) {
+                String directory = args[i].substring("-symbols=".length());
+                config.put("symbolOutput", directory);
+                config.put("symbolPath", config.get("symbolPath") + File.pathSeparator + directory);
+            }
+
+            else if(args[i].equals("-gvn"))
+                config.put("valueNumbering", "global");
+
             else if(args[i].equals("-r")) {
                 if(i + 1 >= args.length)
                     throw new RuntimeException("Missing argument for -r option.");
@@ -127,6 +192,20 @@ public class Launcher {
                     }
                 }
             }
+
+            else if(args[i].equals("-t")) {
+                if(i + 1 >= args.length)
+                    throw new RuntimeException("Missing argument for -t option.");
+                else {
+                    try {
+                        long timeout = Long.parseLong(args[i + 1]);
+                        config.put("timeout", Long.toString(timeout));
+                        i++;
+                    } catch (NumberFormatException e) {
+                        System.out.println("Invalid argument for -t option: " + args[i + 1]);
+                    }
+                }
+            }
         }
         return config;
     }
@@ -35,6 +35,8 @@ public class SimpleParser implements JmmParser {
 
     @Override
     public JmmParserResult parse(String jmmCode, String startingRule, Map<String, String> config) {
+        // Parsing starts every compilation of a Java-- file
+        CancellationToken.begin();
 
         try {
             // Convert code string into a character stream
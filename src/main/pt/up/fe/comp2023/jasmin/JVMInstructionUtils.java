@@ -5,43 +5,31 @@ import org.specs.comp.ollir.*;
 import java.util.*;
 
 import static java.lang.Integer.parseInt;
-import static java.lang.Math.abs;
-import static java.lang.Math.pow;
 
 public class JVMInstructionUtils {
 
-    public static int numLocals = 0;
-    public static int stackSize = 0;
-    public static int currStackSize = 0;
     public static Map<String, String> varEquivalence = new HashMap<>();
     public static Map<String, String> iincVars = new HashMap<>();
 
-    public static void increaseStackSize(int n) {
-        currStackSize += n;
-        if (currStackSize > stackSize)
-            stackSize = currStackSize;
-    }
-
-    public static void decreaseStackSize(int n) {
-        currStackSize -= n;
-        if (currStackSize > stackSize)
-            stackSize = currStackSize;
+    // The shortest instruction pushing the constant: iconst for -1 to 5, bipush and sipush for what fits in a signed
+    // byte or short, and ldc for the rest. Jasmin interns the constants in the pool of the class and turns an ldc of
+    // an index past 255 into an ldc_w, so the pool index is only known once the class is assembled
+    public static String getConstantInstruction(String literal) {
+        int value = literal.equals("true") ? 1 : literal.equals("false") ? 0 : parseInt(literal);
+        if (value == -1)
+            return "\ticonst_m1\n";
+        if (value >= 0 && value <= 5)
+            return "\ticonst_" + value + '\n';
+        if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            return "\tbipush " + value + '\n';
+        if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            return "\tsipush " + value + '\n';
+        return "\tldc " + value + '\n';
     }
 
     public static String getLoadInstruction(Element element, HashMap<String, Descriptor> varTable) {
-        increaseStackSize(1);
-        if (element.isLiteral()) {
-            int literal = parseInt(((LiteralElement)element).getLiteral());
-            if (literal >= 0 && literal <= 5)
-                return "\ticonst_" + literal + '\n';
-            if (literal == -1)
-                return "\ticonst_m" + abs(literal) + '\n';
-            if (abs(literal) < pow(2, 7))
-                return "\tbipush " + literal + '\n';
-            if (abs(literal) < pow(2, 15))
-                return "\tsipush " + literal + '\n';
-            return "\tldc " + literal + '\n';
-        }
+        if (element.isLiteral())
+            return getConstantInstruction(((LiteralElement)element).getLiteral());
 
         ElementType elementType;
         if (element instanceof ArrayOperand)
@@ -49,8 +37,6 @@ public class JVMInstructionUtils {
         else
             elementType = element.getType().getTypeOfElement();
         int virtualReg = varTable.get(((Operand)element).getName()).getVirtualReg();
-        if (virtualReg > numLocals)
-            numLocals = virtualReg;
 
         switch (elementType) {
             case THIS:
@@ -77,10 +63,7 @@ public class JVMInstructionUtils {
     }
 
     public static String getStoreInstruction(Element element, HashMap<String, Descriptor> varTable) {
-        decreaseStackSize(1);
         int virtualReg = varTable.get(((Operand)element).getName()).getVirtualReg();
-        if (virtualReg > numLocals)
-            numLocals = virtualReg;
 
         if (element.isLiteral()) {
             int literal = parseInt(((LiteralElement)element).getLiteral());
@@ -132,7 +115,6 @@ public class JVMInstructionUtils {
         statementList += getLoadInstruction(instruction.getFirstArg(), varTable);
         statementList += loadInvokeArguments(instruction.getListOfOperands(), varTable);
         statementList += "\tinvokevirtual " + createInvokeInstructionArgument(instruction, false);
-        decreaseStackSize(instruction.getListOfOperands().size() + 1);
         return statementList;
     }
 
@@ -140,7 +122,6 @@ public class JVMInstructionUtils {
         String statementList = "";
         statementList += loadInvokeArguments(instruction.getListOfOperands(), varTable);
         statementList += "\tinvokestatic " + createInvokeInstructionArgument(instruction, true);
-        decreaseStackSize(instruction.getListOfOperands().size());
         return statementList;
     }
 
@@ -153,7 +134,6 @@ public class JVMInstructionUtils {
         statementList += loadInvokeArguments(instruction.getListOfOperands(), varTable);
         statementList += "\tnew " + ((Operand)instruction.getFirstArg()).getName() + '\n';
         statementList += "\tdup\n";
-        increaseStackSize(2);
         return statementList;
     }
 
@@ -179,7 +159,6 @@ public class JVMInstructionUtils {
             case NOT: case NOTB:
                 statementList += "\tifeq ";
                 statementList += createAuxBranchStatement();
-                decreaseStackSize(1);
                 break;
         }
         return statementList;
@@ -196,10 +175,13 @@ public class JVMInstructionUtils {
         if ((operationType == OperationType.ADD || operationType == OperationType.SUB) &&
             !(leftOperand instanceof LiteralElement) &&
             rightOperand instanceof LiteralElement) {
-            if (operationType == OperationType.ADD && parseInt(((LiteralElement)rightOperand).getLiteral()) <= 127)
-                increment = ((LiteralElement)rightOperand).getLiteral();
-            else if (operationType == OperationType.SUB && parseInt(((LiteralElement)rightOperand).getLiteral()) <= 128)
-                increment = "-" + ((LiteralElement)rightOperand).getLiteral();
+            // Jasmin emits every iinc but those of 127 as a wide iinc, which takes a signed short, so any such
+            // update is a single instruction of the size of the load, push, add and store it replaces
+            int value = parseInt(((LiteralElement)rightOperand).getLiteral());
+            if (operationType == OperationType.SUB)
+                value = -value;
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+                increment = Integer.toString(value);
             if (!Objects.equals(increment, "") && iincVarEquivalent != null &&
                 iincVarEquivalent.equals(((Operand) leftOperand).getName()))
                 iincVars.put(iincVarEquivalent, destName);
@@ -209,13 +191,13 @@ public class JVMInstructionUtils {
                         + " " + increment + "\n";
         }
 
-        if ((operationType == OperationType.ADD || operationType == OperationType.SUB) &&
+        // A literal minus a variable is not an increment of the variable
+        if (operationType == OperationType.ADD &&
             leftOperand instanceof LiteralElement &&
             !(rightOperand instanceof LiteralElement)) {
-            if (operationType == OperationType.ADD && parseInt(((LiteralElement)leftOperand).getLiteral()) <= 127)
-                increment = ((LiteralElement)leftOperand).getLiteral();
-            else if (operationType == OperationType.SUB && parseInt(((LiteralElement)leftOperand).getLiteral()) <= 128)
-                increment = "-" + ((LiteralElement)leftOperand).getLiteral();
+            int value = parseInt(((LiteralElement)leftOperand).getLiteral());
+            if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+                increment = Integer.toString(value);
             if (!Objects.equals(increment, "") && iincVarEquivalent != null &&
                 iincVarEquivalent.equals(((Operand)rightOperand).getName()))
                 iincVars.put(iincVarEquivalent, destName);
@@ -229,8 +211,6 @@ public class JVMInstructionUtils {
     }
 
     public static String createArithmeticInstruction(OperationType operationType) {
-        decreaseStackSize(1);
-
         switch (operationType) {
             case ADD:
                 return "\tiadd\n";
@@ -240,13 +220,19 @@ public class JVMInstructionUtils {
                 return "\timul\n";
             case DIV:
                 return "\tidiv\n";
+            case SHL:
+                return "\tishl\n";
+            case SHR:
+                return "\tishr\n";
+            case SHRR:
+                return "\tiushr\n";
+            case XOR:
+                return "\tixor\n";
         }
         return "";
     }
 
     public static String createLogicalInstruction(OperationType operationType) {
-        decreaseStackSize(1);
-
         switch (operationType) {
             case AND: case ANDB:
                 return "\tiand\n";
@@ -257,8 +243,6 @@ public class JVMInstructionUtils {
     }
 
     public static String createComparisonInstruction(OperationType operationType, boolean isBranchCond) {
-        decreaseStackSize(2);
-
         switch (operationType) {
             case LTH:
                 return isBranchCond ? "\tif_icmplt " : "\tif_icmplt " + createAuxBranchStatement();
@@ -273,8 +257,6 @@ public class JVMInstructionUtils {
     }
 
     public static String createZeroComparisonInstruction(OperationType operationType, boolean isBranchCond) {
-        decreaseStackSize(1);
-
         switch (operationType) {
             case LTH:
                 return isBranchCond ? "\tiflt " : "\tiflt " + createAuxBranchStatement();
@@ -288,6 +270,16 @@ public class JVMInstructionUtils {
         return "";
     }
 
+    public static OperationType mirrorComparison(OperationType operationType) {
+        return switch (operationType) {
+            case LTH -> OperationType.GTH;
+            case LTE -> OperationType.GTE;
+            case GTH -> OperationType.LTH;
+            case GTE -> OperationType.LTE;
+            default -> operationType;
+        };
+    }
+
     public static String createBinaryOpInstruction(BinaryOpInstruction instruction, HashMap<String, Descriptor> varTable, boolean isBranchCond) {
         OperationType operationType = instruction.getOperation().getOpType();
         Element leftOperand = instruction.getLeftOperand();
@@ -295,7 +287,7 @@ public class JVMInstructionUtils {
         String statementList = "";
 
         switch (operationType) {
-            case ADD: case SUB: case MUL: case DIV:
+            case ADD: case SUB: case MUL: case DIV: case SHL: case SHR: case SHRR: case XOR:
                 statementList += getLoadInstruction(leftOperand, varTable);
                 statementList += getLoadInstruction(rightOperand, varTable);
                 statementList += createArithmeticInstruction(operationType);
@@ -307,8 +299,9 @@ public class JVMInstructionUtils {
                 break;
             case LTH: case LTE: case GTH: case GTE:
                 if (leftOperand instanceof LiteralElement && parseInt(((LiteralElement)leftOperand).getLiteral()) == 0) {
+                    // 0 < x is the same as x > 0
                     statementList += getLoadInstruction(rightOperand, varTable);
-                    statementList += createZeroComparisonInstruction(operationType, isBranchCond);
+                    statementList += createZeroComparisonInstruction(mirrorComparison(operationType), isBranchCond);
                 } else if (rightOperand instanceof LiteralElement && parseInt(((LiteralElement)rightOperand).getLiteral()) == 0) {
                     statementList += getLoadInstruction(leftOperand, varTable);
                     statementList += createZeroComparisonInstruction(operationType, isBranchCond);
@@ -328,7 +321,6 @@ public class JVMInstructionUtils {
             String statementList = "";
             statementList += getArrayLoadInstruction((ArrayOperand)operand, varTable);
             statementList += "\tiaload\n";
-            decreaseStackSize(1);
             return statementList;
         }
         return getLoadInstruction(operand, varTable);
@@ -351,6 +343,11 @@ public class JVMInstructionUtils {
             String iincVarEquivalent = iincVars.get(((Operand)assignElement).getName());
             if (iincVarEquivalent != null && iincVarEquivalent.equals(((Operand)rhsElement).getName()))
                 return "";
+            // Variables coalesced by the register allocation share the register, so the copy does nothing
+            if (!(assignElement instanceof ArrayOperand) && !(rhsElement instanceof ArrayOperand) &&
+                varTable.containsKey(((Operand)rhsElement).getName()) &&
+                varTable.get(((Operand)assignElement).getName()).getVirtualReg() == varTable.get(((Operand)rhsElement).getName()).getVirtualReg())
+                return "";
         }
 
         if (instruction.getRhs() instanceof BinaryOpInstruction) {
@@ -362,10 +359,8 @@ public class JVMInstructionUtils {
         if (assignElement instanceof ArrayOperand)
             statementList += getArrayLoadInstruction((ArrayOperand)assignElement, varTable);
         statementList += JasminUtils.handleInstruction(instruction.getRhs(), varTable, true);
-        if (assignElement instanceof ArrayOperand) {
+        if (assignElement instanceof ArrayOperand)
             statementList += "\tiastore\n";
-            decreaseStackSize(3);
-        }
         else
             statementList += getStoreInstruction(assignElement, varTable);
         return statementList;
@@ -395,7 +390,6 @@ public class JVMInstructionUtils {
                 break;
             case ldc:
                 statementList += "\tldc " + ((LiteralElement)instruction.getFirstArg()).getLiteral() + '\n';
-                increaseStackSize(1);
                 break;
         }
         return statementList;
@@ -422,7 +416,6 @@ public class JVMInstructionUtils {
                 +  JasminUtils.getTypeDescriptor(instruction.getFirstOperand().getType(), false)
                 + '/' + ((Operand)instruction.getSecondOperand()).getName() + " "
                 + JasminUtils.getTypeDescriptor(instruction.getThirdOperand().getType(), true) + '\n';
-        decreaseStackSize(arguments.size() + 1);
         return statementList;
     }
 
@@ -430,7 +423,6 @@ public class JVMInstructionUtils {
         String statementList = "";
         statementList += createNoperInstruction(instruction.getCondition(), varTable);
         statementList += "\tifne " + instruction.getLabel() + "\n";
-        decreaseStackSize(1);
         return statementList;
     }
 
@@ -438,8 +430,12 @@ public class JVMInstructionUtils {
         String statementList = "";
         if (instruction.getCondition() instanceof BinaryOpInstruction)
             statementList += createBinaryOpInstruction((BinaryOpInstruction)instruction.getCondition(), varTable, true);
-        else
-            statementList += createUnaryOpStatement((UnaryOpInstruction)instruction.getCondition(), varTable);
+        else {
+            // Jumps when the operand is false, without materializing its negation
+            UnaryOpInstruction condition = (UnaryOpInstruction)instruction.getCondition();
+            statementList += getLoadInstruction(condition.getOperand(), varTable);
+            statementList += "\tifeq ";
+        }
         statementList += instruction.getLabel() + "\n";
         return statementList;
     }
@@ -463,7 +459,6 @@ public class JVMInstructionUtils {
         JasminUtils.customLabelCounter++;
         // if condition is false
         statementList += "\ticonst_0\n";
-        increaseStackSize(1);
         // skip true section
         statementList += "\tgoto false_" + JasminUtils.customLabelCounter + "\n";
         JasminUtils.customLabelCounter++;
@@ -471,7 +466,6 @@ public class JVMInstructionUtils {
         statementList += "\ttrue_" + (JasminUtils.customLabelCounter - 2) + ":\n";
         // if condition is true
         statementList += "\ticonst_1\n";
-        increaseStackSize(1);
         // false section (for skipping true section)
         statementList += "\tfalse_" + (JasminUtils.customLabelCounter - 1) + ":\n";
         return statementList;
@@ -488,12 +482,10 @@ public class JVMInstructionUtils {
             case INT32: case BOOLEAN:
                 statementList += getLoadInstruction(returnElement, varTable);
                 statementList += "\tireturn\n";
-                decreaseStackSize(1);
                 break;
             case STRING: case OBJECTREF: case ARRAYREF: case THIS:
                 statementList += getLoadInstruction(returnElement, varTable);
                 statementList += "\tareturn\n";
-                decreaseStackSize(1);
         }
         return statementList;
     }
@@ -7,21 +7,49 @@ import pt.up.fe.comp.jmm.jasmin.JasminBackend;
 import pt.up.fe.comp.jmm.jasmin.JasminResult;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.CancellationToken;
 
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 public class JasminGenerator implements JasminBackend {
 
     @Override
     public JasminResult toJasmin(OllirResult ollirResult) {
-        String jasminCode = generateJasminCode(ollirResult.getOllirClass());
-        return new JasminResult(ollirResult, jasminCode, new ArrayList<Report>());
+        try {
+            CancellationToken.current().startStage(Stage.GENERATION, ollirResult.getConfig());
+            // The peephole optimizations run with the other optimizations unless "peephole" says otherwise
+            Map<String, String> config = ollirResult.getConfig();
+            boolean peephole = Boolean.parseBoolean(config.getOrDefault("peephole", config.getOrDefault("optimize", "false")));
+            PeepholeOptimizer peepholeOptimizer = peephole ? new PeepholeOptimizer() : null;
+
+            String jasminCode = generateJasminCode(ollirResult.getOllirClass(), peepholeOptimizer);
+            List<Report> reports = new ArrayList<>();
+            if (peepholeOptimizer != null)
+                reports.add(new Report(ReportType.LOG, Stage.OPTIMIZATION, -1, -1, describe(peepholeOptimizer)));
+            return new JasminResult(ollirResult, jasminCode, reports);
+        } catch (CancellationToken.CancelledException e) {
+            return new JasminResult(ollirResult, "", new ArrayList<>(List.of(e.toReport())));
+        } catch (StackDepthAnalysis.InconsistentStackException e) {
+            Report report = new Report(ReportType.ERROR, Stage.GENERATION, -1, -1, e.getMessage());
+            return new JasminResult(ollirResult, "", new ArrayList<>(List.of(report)));
+        }
     }
 
-    private String generateJasminCode(ClassUnit classUnit) {
+    private String generateJasminCode(ClassUnit classUnit, PeepholeOptimizer peepholeOptimizer) {
         return createHeader(classUnit) + '\n'
                 + createFieldDefinitions(classUnit) + '\n'
-                + createMethodDefinitions(classUnit);
+                + createMethodDefinitions(classUnit, peepholeOptimizer);
+    }
+
+    private static String describe(PeepholeOptimizer peepholeOptimizer) {
+        List<String> hits = new ArrayList<>();
+        peepholeOptimizer.getHits().forEach((rule, count) -> hits.add(rule + " " + count));
+        return "Peephole optimization applied " + String.join(", ", hits) + ". [code size: "
+                + peepholeOptimizer.getSizeBefore() + " -> " + peepholeOptimizer.getSizeAfter() + " bytes]";
     }
 
     public static String createHeader(ClassUnit classUnit) {
@@ -36,13 +64,15 @@ public class JasminGenerator implements JasminBackend {
         return fieldDefinitions;
     }
 
-    public static String createMethodDefinitions(ClassUnit classUnit) {
+    public static String createMethodDefinitions(ClassUnit classUnit, PeepholeOptimizer peepholeOptimizer) {
         String methodDefinitions = "";
-        for (Method method: classUnit.getMethods())
+        for (Method method: classUnit.getMethods()) {
+            CancellationToken.current().check();
             if (method.isConstructMethod())
                 methodDefinitions += JasminUtils.createConstructMethod(classUnit.getSuperClass());
             else
-                methodDefinitions += JasminUtils.createMethodDirective(method);
+                methodDefinitions += JasminUtils.createMethodDirective(method, peepholeOptimizer);
+        }
         return methodDefinitions;
     }
 }
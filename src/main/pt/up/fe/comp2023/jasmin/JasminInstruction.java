@@ -0,0 +1,253 @@
+package pt.up.fe.comp2023.jasmin;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * An instruction of the Jasmin code of a method, or a label, parsed from the generated code so that it can be
+ * analysed and rewritten as a list before it is printed again.
+ */
+public class JasminInstruction {
+    private static final Map<String, String> INVERSES = Map.ofEntries(
+            Map.entry("ifeq", "ifne"), Map.entry("ifne", "ifeq"),
+            Map.entry("iflt", "ifge"), Map.entry("ifge", "iflt"),
+            Map.entry("ifgt", "ifle"), Map.entry("ifle", "ifgt"),
+            Map.entry("if_icmpeq", "if_icmpne"), Map.entry("if_icmpne", "if_icmpeq"),
+            Map.entry("if_icmplt", "if_icmpge"), Map.entry("if_icmpge", "if_icmplt"),
+            Map.entry("if_icmpgt", "if_icmple"), Map.entry("if_icmple", "if_icmpgt"),
+            Map.entry("if_acmpeq", "if_acmpne"), Map.entry("if_acmpne", "if_acmpeq"),
+            Map.entry("ifnull", "ifnonnull"), Map.entry("ifnonnull", "ifnull")
+    );
+    private static final List<String> THREE_BYTE_OPCODES = List.of("sipush", "ldc_w", "getfield", "putfield",
+            "getstatic", "putstatic", "invokevirtual", "invokespecial", "invokestatic", "new", "anewarray", "checkcast",
+            "instanceof");
+
+    private final String label;
+    private final String opcode;
+    private final String argument;
+
+    private JasminInstruction(String label, String opcode, String argument) {
+        this.label = label;
+        this.opcode = opcode;
+        this.argument = argument;
+    }
+
+    public static JasminInstruction label(String label) {
+        return new JasminInstruction(label, null, "");
+    }
+
+    public static JasminInstruction instruction(String opcode, String argument) {
+        return new JasminInstruction(null, opcode, argument);
+    }
+
+    // One label or instruction per line, the labels ending with a colon
+    public static List<JasminInstruction> parse(String code) {
+        List<JasminInstruction> instructions = new ArrayList<>();
+        for (String line : code.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+            if (line.endsWith(":") && !line.contains(" "))
+                instructions.add(label(line.substring(0, line.length() - 1)));
+            else {
+                int space = line.indexOf(' ');
+                instructions.add(space < 0 ? instruction(line, "") : instruction(line.substring(0, space), line.substring(space + 1)));
+            }
+        }
+        return instructions;
+    }
+
+    public static String print(List<JasminInstruction> instructions) {
+        StringBuilder code = new StringBuilder();
+        for (JasminInstruction instruction : instructions)
+            code.append(instruction).append('\n');
+        return code.toString();
+    }
+
+    // Size in bytes of the instructions, without the alignment of switches, which are never generated
+    public static int getSize(List<JasminInstruction> instructions) {
+        int size = 0;
+        for (JasminInstruction instruction : instructions)
+            size += instruction.getSize();
+        return size;
+    }
+
+    public boolean isLabel() {
+        return this.label != null;
+    }
+
+    public String getLabel() {
+        return this.label;
+    }
+
+    public String getOpcode() {
+        return this.opcode;
+    }
+
+    public String getArgument() {
+        return this.argument;
+    }
+
+    public boolean isGoto() {
+        return "goto".equals(this.opcode);
+    }
+
+    public boolean isConditionalBranch() {
+        return this.opcode != null && INVERSES.containsKey(this.opcode);
+    }
+
+    // The label jumped to by a goto or a conditional branch
+    public String getTarget() {
+        return isGoto() || isConditionalBranch() ? this.argument : null;
+    }
+
+    // The conditional branch with the opposite condition
+    public JasminInstruction invert() {
+        return instruction(INVERSES.get(this.opcode), this.argument);
+    }
+
+    // The same jump to another label
+    public JasminInstruction retarget(String target) {
+        return instruction(this.opcode, target);
+    }
+
+    // Values popped by a conditional branch
+    public int getComparedValues() {
+        return this.opcode.startsWith("if_") ? 2 : 1;
+    }
+
+    // The next instruction is never reached from this one
+    public boolean endsBlock() {
+        return isGoto() || "athrow".equals(this.opcode) || "return".equals(this.opcode)
+                || "ireturn".equals(this.opcode) || "areturn".equals(this.opcode);
+    }
+
+    public boolean isLoad() {
+        return this.opcode != null && (this.opcode.startsWith("iload") || this.opcode.startsWith("aload"));
+    }
+
+    public boolean isStore() {
+        return this.opcode != null && (this.opcode.startsWith("istore") || this.opcode.startsWith("astore"));
+    }
+
+    // The local read or written by a load, a store or an increment, -1 otherwise
+    public int getRegister() {
+        if (!isLoad() && !isStore() && !"iinc".equals(this.opcode))
+            return -1;
+        if (this.opcode.indexOf('_') >= 0)
+            return Integer.parseInt(this.opcode.substring(this.opcode.indexOf('_') + 1));
+        return Integer.parseInt(this.argument.split(" ")[0]);
+    }
+
+    // Pushes a single value without popping any or having side effects
+    public boolean isPush() {
+        if (isLoad() || "dup".equals(this.opcode))
+            return true;
+        return this.opcode != null && (this.opcode.startsWith("iconst_") || this.opcode.equals("aconst_null")
+                || this.opcode.equals("bipush") || this.opcode.equals("sipush") || this.opcode.startsWith("ldc"));
+    }
+
+    // Pops two values and pushes one, without side effects: divisions may throw
+    public boolean isPureBinaryOperation() {
+        return this.opcode != null && List.of("iadd", "isub", "imul", "iand", "ior", "ixor", "ishl", "ishr", "iushr").contains(this.opcode);
+    }
+
+    // Values popped from the operand stack, throwing for the opcodes the backend never generates
+    public int getPopped() {
+        if (isLabel() || isGoto() || isLoad() || isPush() && !"dup".equals(this.opcode))
+            return 0;
+        if (isStore() || isConditionalBranch())
+            return isStore() ? 1 : getComparedValues();
+        if (isPureBinaryOperation())
+            return 2;
+        switch (this.opcode) {
+            case "return", "iinc", "nop", "new", "getstatic":
+                return 0;
+            case "dup", "pop", "ireturn", "areturn", "athrow", "ineg", "arraylength", "newarray", "anewarray",
+                    "checkcast", "instanceof", "getfield":
+                return 1;
+            case "pop2", "idiv", "irem", "iaload", "aaload", "baload":
+                return 2;
+            case "iastore", "aastore", "bastore":
+                return 3;
+            case "putfield", "putstatic":
+                return getTypeSize(this.argument.substring(this.argument.indexOf(' ') + 1)) + (this.opcode.equals("putfield") ? 1 : 0);
+            case "invokevirtual", "invokespecial", "invokeinterface":
+                return getArgumentsSize() + 1;
+            case "invokestatic":
+                return getArgumentsSize();
+            default:
+                throw new IllegalArgumentException("Unknown stack effect of " + this.opcode);
+        }
+    }
+
+    // Values pushed on the operand stack
+    public int getPushed() {
+        if (isLabel())
+            return 0;
+        if (isPush())
+            return "dup".equals(this.opcode) ? 2 : 1;
+        if (isPureBinaryOperation())
+            return 1;
+        switch (this.opcode) {
+            case "new", "idiv", "irem", "ineg", "arraylength", "newarray", "anewarray", "checkcast", "instanceof",
+                    "iaload", "aaload", "baload":
+                return 1;
+            case "getfield", "getstatic":
+                return getTypeSize(this.argument.substring(this.argument.indexOf(' ') + 1));
+            case "invokevirtual", "invokespecial", "invokeinterface", "invokestatic":
+                return getTypeSize(this.argument.substring(this.argument.indexOf(')') + 1));
+            default:
+                return 0;
+        }
+    }
+
+    // Stack slots of the arguments of an invocation, from its descriptor
+    private int getArgumentsSize() {
+        String descriptor = this.argument.substring(this.argument.indexOf('(') + 1, this.argument.indexOf(')'));
+        int size = 0;
+        for (int i = 0; i < descriptor.length(); i++) {
+            int start = i;
+            while (descriptor.charAt(i) == '[')
+                i++;
+            if (descriptor.charAt(i) == 'L')
+                i = descriptor.indexOf(';', i);
+            size += getTypeSize(descriptor.substring(start, i + 1));
+        }
+        return size;
+    }
+
+    private static int getTypeSize(String descriptor) {
+        descriptor = descriptor.trim();
+        if (descriptor.equals("V"))
+            return 0;
+        return descriptor.equals("J") || descriptor.equals("D") ? 2 : 1;
+    }
+
+    public int getSize() {
+        if (isLabel())
+            return 0;
+        // Jasmin only emits the short iinc for an increment of 127
+        if ("iinc".equals(this.opcode))
+            return getRegister() <= 255 && this.argument.endsWith(" 127") ? 3 : 6;
+        if (isGoto() || isConditionalBranch() || THREE_BYTE_OPCODES.contains(this.opcode))
+            return 3;
+        if (isLoad() || isStore())
+            return this.opcode.indexOf('_') >= 0 ? 1 : getRegister() > 255 ? 4 : 2;
+        if (this.opcode.equals("bipush") || this.opcode.equals("ldc") || this.opcode.equals("newarray"))
+            return 2;
+        if (this.opcode.equals("invokeinterface"))
+            return 5;
+        if (this.opcode.equals("multianewarray"))
+            return 4;
+        return 1;
+    }
+
+    @Override
+    public String toString() {
+        if (isLabel())
+            return "\t" + this.label + ":";
+        return "\t" + this.opcode + (this.argument.isEmpty() ? "" : " " + this.argument);
+    }
+}
@@ -1,9 +1,13 @@
 package pt.up.fe.comp2023.jasmin;
 
 import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.optimization.LivenessAnalysis;
+import pt.up.fe.comp2023.optimization.ReachingDefinitions;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 public class JasminUtils {
 
@@ -122,10 +126,8 @@ public class JasminUtils {
                         (CallInstruction)instruction,
                         varTable
                 );
-                if (!isRhs && ((CallInstruction)instruction).getReturnType().getTypeOfElement() != ElementType.VOID) {
+                if (!isRhs && ((CallInstruction)instruction).getReturnType().getTypeOfElement() != ElementType.VOID)
                     statementList += "\tpop\n";
-                    JVMInstructionUtils.decreaseStackSize(1);
-                }
                 break;
             case GOTO:
                 statementList += JVMInstructionUtils.createGotoStatement(
@@ -202,34 +204,51 @@ public class JasminUtils {
         JVMInstructionUtils.varEquivalence.clear();
         JVMInstructionUtils.iincVars.clear();
 
-        for (Instruction instruction: method.getInstructions()) {
+        // A temporary is only replaced by the variable it is copied to if the copy is its only use and comes right
+        // after its definition, as the variable may still be read in between
+        LivenessAnalysis liveness = new LivenessAnalysis(method);
+        Map<String, Integer> uses = new HashMap<>();
+        for (Instruction instruction: method.getInstructions())
+            for (String var: liveness.getUses(instruction))
+                uses.merge(var, 1, Integer::sum);
+
+        List<Instruction> instructions = method.getInstructions();
+        for (int i = 1; i < instructions.size(); i++) {
+            Instruction instruction = instructions.get(i);
             if (instruction instanceof AssignInstruction && JVMInstructionUtils.checkTempAssign((AssignInstruction)instruction)) {
                 Operand lhs = ((Operand)((AssignInstruction)instruction).getDest());
                 Operand rhs = ((Operand)((SingleOpInstruction)(((AssignInstruction)instruction).getRhs())).getSingleOperand());
-                JVMInstructionUtils.varEquivalence.put(rhs.getName(), lhs.getName());
+                boolean isNext = rhs.getName().equals(ReachingDefinitions.getDefinedVar(instructions.get(i - 1)))
+                        && !method.getLabels().containsValue(instruction);
+                if (isNext && uses.getOrDefault(rhs.getName(), 0) <= 1)
+                    JVMInstructionUtils.varEquivalence.put(rhs.getName(), lhs.getName());
             }
         }
     }
 
-    public static String createMethodDirective(Method method) {
-        JVMInstructionUtils.numLocals = 0;
-        JVMInstructionUtils.stackSize = 0;
-        JVMInstructionUtils.currStackSize = 0;
+    // This and the parameters take the first locals, and the other variables the registers in the var table, which
+    // the register allocation sets when it runs. Only the registers the code still uses count, as the temporaries
+    // replaced by the variables they are copied to are never stored
+    public static int getLocalsLimit(Method method, List<JasminInstruction> code) {
+        int locals = (method.isStaticMethod() ? 0 : 1) + method.getParams().size();
+        for (JasminInstruction instruction : code)
+            locals = Math.max(locals, instruction.getRegister() + 1);
+        return locals;
+    }
+
+    public static String createMethodDirective(Method method, PeepholeOptimizer peepholeOptimizer) {
         createVarEquivalence(method);
 
-        String instructions = handleMethodStatements(method);
-        if (method.isStaticMethod() && method.getParams().size() > 0)
-            JVMInstructionUtils.numLocals++;
-        else if (!method.isStaticMethod()) {
-            if (JVMInstructionUtils.numLocals < method.getParams().size())
-                JVMInstructionUtils.numLocals += method.getParams().size();
-            JVMInstructionUtils.numLocals++;
-        }
+        List<JasminInstruction> code = JasminInstruction.parse(handleMethodStatements(method));
+        if (peepholeOptimizer != null)
+            code = peepholeOptimizer.optimize(code);
+        StackDepthAnalysis stackDepth = new StackDepthAnalysis(method.getMethodName(), code);
+        String instructions = JasminInstruction.print(code);
 
         String methodDirective = ".method ";
         methodDirective += createMethodDeclaration(method);
-        methodDirective += "\t.limit stack " + JVMInstructionUtils.stackSize + "\n";
-        methodDirective += "\t.limit locals " + JVMInstructionUtils.numLocals + "\n";
+        methodDirective += "\t.limit stack " + stackDepth.getMaxDepth() + "\n";
+        methodDirective += "\t.limit locals " + getLocalsLimit(method, code) + "\n";
         methodDirective += instructions;
         return methodDirective + ".end method\n\n";
     }
@@ -0,0 +1,304 @@
+package pt.up.fe.comp2023.jasmin;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+
+/*
+ * Rewrites short sequences of the Jasmin code of methods with a table of rules, swept over the whole code until none
+ * of them applies anymore:
+ * - store-load: a store to a local followed by a load of it, when the local is not read afterwards, leaves the value
+ *   on the stack instead;
+ * - boolean-branch: a comparison turned into 0 or 1 only to be branched on becomes a branch on the comparison;
+ * - jump-chaining: a jump to a goto jumps to where the goto does;
+ * - branch-over-goto: a conditional branch over a goto becomes the opposite branch to where the goto jumps;
+ * - jump-to-next: a jump to the next instruction is removed, the conditional ones popping what they compared;
+ * - redundant-pop: a value pushed only to be popped is not pushed;
+ * - unreachable-code: the instructions after a goto or a return that are never jumped to are removed;
+ * - unused-label: the labels no instruction jumps to are removed.
+ * The rules remove instructions by setting them to null, so that the indices of the code do not change until the end
+ * of a sweep. The hits of each rule and the code size in bytes are added up over the methods.
+ */
+public class PeepholeOptimizer {
+    private final Map<String, IntPredicate> rules = new LinkedHashMap<>();
+    private final Map<String, Integer> hits = new LinkedHashMap<>();
+    private int sizeBefore = 0;
+    private int sizeAfter = 0;
+
+    private List<JasminInstruction> code;
+    // Computed at the start of each sweep: the index of each label, the jumps to it, and the locals that may be read
+    // from each index on, which only shrink as the rules are applied
+    private final Map<String, Integer> labels = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private BitSet[] liveIn;
+
+    public PeepholeOptimizer() {
+        this.rules.put("store-load", this::eliminateStoreLoad);
+        this.rules.put("boolean-branch", this::branchOnComparison);
+        this.rules.put("jump-chaining", this::chainJumps);
+        this.rules.put("branch-over-goto", this::invertBranchOverGoto);
+        this.rules.put("jump-to-next", this::removeJumpToNext);
+        this.rules.put("redundant-pop", this::removeRedundantPop);
+        this.rules.put("unreachable-code", this::removeUnreachableCode);
+        this.rules.put("unused-label", this::removeUnusedLabel);
+        for (String rule : this.rules.keySet())
+            this.hits.put(rule, 0);
+    }
+
+    public Map<String, Integer> getHits() {
+        return this.hits;
+    }
+
+    public int getSizeBefore() {
+        return this.sizeBefore;
+    }
+
+    public int getSizeAfter() {
+        return this.sizeAfter;
+    }
+
+    public List<JasminInstruction> optimize(List<JasminInstruction> instructions) {
+        this.code = new ArrayList<>(instructions);
+        this.sizeBefore += JasminInstruction.getSize(this.code);
+
+        boolean changed;
+        do {
+            changed = false;
+            analyse();
+            for (int i = 0; i < this.code.size(); i++) {
+                for (Map.Entry<String, IntPredicate> rule : this.rules.entrySet()) {
+                    if (this.code.get(i) != null && rule.getValue().test(i)) {
+                        this.hits.merge(rule.getKey(), 1, Integer::sum);
+                        changed = true;
+                    }
+                }
+            }
+            this.code.removeIf(Objects::isNull);
+        } while (changed);
+
+        this.sizeAfter += JasminInstruction.getSize(this.code);
+        return this.code;
+    }
+
+    private void analyse() {
+        this.labels.clear();
+        this.references.clear();
+        for (int i = 0; i < this.code.size(); i++) {
+            JasminInstruction instruction = this.code.get(i);
+            if (instruction.isLabel())
+                this.labels.put(instruction.getLabel(), i);
+            else if (instruction.getTarget() != null)
+                this.references.merge(instruction.getTarget(), 1, Integer::sum);
+        }
+
+        this.liveIn = new BitSet[this.code.size() + 1];
+        for (int i = 0; i < this.liveIn.length; i++)
+            this.liveIn[i] = new BitSet();
+        boolean changed;
+        do {
+            changed = false;
+            for (int i = this.code.size() - 1; i >= 0; i--) {
+                JasminInstruction instruction = this.code.get(i);
+                BitSet live = new BitSet();
+                if (!instruction.endsBlock())
+                    live.or(this.liveIn[i + 1]);
+                if (instruction.getTarget() != null && this.labels.containsKey(instruction.getTarget()))
+                    live.or(this.liveIn[this.labels.get(instruction.getTarget())]);
+                // Loads and increments read the local
+                if (instruction.isStore())
+                    live.clear(instruction.getRegister());
+                else if (instruction.getRegister() >= 0)
+                    live.set(instruction.getRegister());
+                if (!live.equals(this.liveIn[i])) {
+                    this.liveIn[i] = live;
+                    changed = true;
+                }
+            }
+        } while (changed);
+    }
+
+    // The index of the next instruction or label left after the given index
+    private int next(int index) {
+        do
+            index++;
+        while (index < this.code.size() && this.code.get(index) == null);
+        return index;
+    }
+
+    private JasminInstruction get(int index) {
+        return index < this.code.size() ? this.code.get(index) : null;
+    }
+
+    // The first instruction left from the given index on, skipping the labels
+    private JasminInstruction getInstructionFrom(int index) {
+        while (index < this.code.size() && (this.code.get(index) == null || this.code.get(index).isLabel()))
+            index++;
+        return get(index);
+    }
+
+    // Whether the label is one of those right after the given index
+    private boolean isLabelledNext(int index, String label) {
+        for (int i = next(index); i < this.code.size() && this.code.get(i).isLabel(); i = next(i))
+            if (this.code.get(i).getLabel().equals(label))
+                return true;
+        return false;
+    }
+
+    private void remove(int index) {
+        String target = this.code.get(index).getTarget();
+        if (target != null)
+            this.references.merge(target, -1, Integer::sum);
+        this.code.set(index, null);
+    }
+
+    private void replace(int index, JasminInstruction instruction) {
+        remove(index);
+        if (instruction.getTarget() != null)
+            this.references.merge(instruction.getTarget(), 1, Integer::sum);
+        this.code.set(index, instruction);
+    }
+
+    private boolean eliminateStoreLoad(int index) {
+        JasminInstruction store = this.code.get(index);
+        int loadIndex = next(index);
+        JasminInstruction load = get(loadIndex);
+        if (!store.isStore() || load == null || !load.isLoad() || load.getRegister() != store.getRegister())
+            return false;
+        if (load.getOpcode().charAt(0) != store.getOpcode().charAt(0) || this.liveIn[loadIndex + 1].get(load.getRegister()))
+            return false;
+
+        remove(index);
+        remove(loadIndex);
+        return true;
+    }
+
+    // "if<cond> T; iconst_0; goto F; T: iconst_1; F: ifne L" is "if<cond> L", and the same with ifeq, or the constants
+    // swapped, is the opposite branch
+    private boolean branchOnComparison(int index) {
+        JasminInstruction branch = this.code.get(index);
+        if (!branch.isConditionalBranch())
+            return false;
+
+        int[] indices = new int[6];
+        indices[0] = next(index);
+        for (int i = 1; i < indices.length; i++)
+            indices[i] = next(indices[i - 1]);
+        if (indices[5] >= this.code.size())
+            return false;
+
+        JasminInstruction notTaken = this.code.get(indices[0]), skip = this.code.get(indices[1]);
+        JasminInstruction taken = this.code.get(indices[3]), test = this.code.get(indices[5]);
+        JasminInstruction takenLabel = this.code.get(indices[2]), skipLabel = this.code.get(indices[4]);
+        if (!skip.isGoto() || !takenLabel.isLabel() || !skipLabel.isLabel())
+            return false;
+        if (!takenLabel.getLabel().equals(branch.getTarget()) || !skipLabel.getLabel().equals(skip.getTarget()))
+            return false;
+        if (this.references.get(branch.getTarget()) != 1 || this.references.get(skip.getTarget()) != 1)
+            return false;
+        if (!isBooleanConstant(notTaken) || !isBooleanConstant(taken) || notTaken.getOpcode().equals(taken.getOpcode()))
+            return false;
+        if (!"ifne".equals(test.getOpcode()) && !"ifeq".equals(test.getOpcode()))
+            return false;
+
+        boolean jumpsWhenTaken = test.getOpcode().equals("ifne") == taken.getOpcode().equals("iconst_1");
+        replace(index, (jumpsWhenTaken ? branch : branch.invert()).retarget(test.getTarget()));
+        for (int i : indices)
+            remove(i);
+        return true;
+    }
+
+    private static boolean isBooleanConstant(JasminInstruction instruction) {
+        return "iconst_0".equals(instruction.getOpcode()) || "iconst_1".equals(instruction.getOpcode());
+    }
+
+    // Jumps in a loop of gotos are left as they are
+    private boolean chainJumps(int index) {
+        JasminInstruction jump = this.code.get(index);
+        if (jump.getTarget() == null)
+            return false;
+
+        String target = jump.getTarget();
+        Set<String> visited = new HashSet<>();
+        while (true) {
+            if (!visited.add(target) || !this.labels.containsKey(target))
+                return false;
+            JasminInstruction next = getInstructionFrom(this.labels.get(target));
+            if (next == null || !next.isGoto())
+                break;
+            target = next.getTarget();
+        }
+        if (target.equals(jump.getTarget()))
+            return false;
+
+        replace(index, jump.retarget(target));
+        return true;
+    }
+
+    private boolean invertBranchOverGoto(int index) {
+        JasminInstruction branch = this.code.get(index);
+        int jumpIndex = next(index);
+        JasminInstruction jump = get(jumpIndex);
+        if (!branch.isConditionalBranch() || jump == null || !jump.isGoto() || !isLabelledNext(jumpIndex, branch.getTarget()))
+            return false;
+
+        replace(index, branch.invert().retarget(jump.getTarget()));
+        remove(jumpIndex);
+        return true;
+    }
+
+    private boolean removeJumpToNext(int index) {
+        JasminInstruction jump = this.code.get(index);
+        if (jump.getTarget() == null || !isLabelledNext(index, jump.getTarget()))
+            return false;
+
+        if (jump.isGoto())
+            remove(index);
+        else
+            replace(index, JasminInstruction.instruction(jump.getComparedValues() == 2 ? "pop2" : "pop", ""));
+        return true;
+    }
+
+    private boolean removeRedundantPop(int index) {
+        JasminInstruction value = this.code.get(index);
+        int popIndex = next(index);
+        JasminInstruction pop = get(popIndex);
+        if (pop == null || !"pop".equals(pop.getOpcode()) && !"pop2".equals(pop.getOpcode()))
+            return false;
+
+        if (value.isPush()) {
+            remove(index);
+            if (pop.getOpcode().equals("pop"))
+                remove(popIndex);
+            else
+                replace(popIndex, JasminInstruction.instruction("pop", ""));
+            return true;
+        }
+        // The operands of an operation whose value is popped are popped instead
+        if (value.isPureBinaryOperation() && pop.getOpcode().equals("pop")) {
+            remove(index);
+            replace(popIndex, JasminInstruction.instruction("pop2", ""));
+            return true;
+        }
+        return false;
+    }
+
+    private boolean removeUnreachableCode(int index) {
+        if (!this.code.get(index).endsBlock())
+            return false;
+
+        boolean removed = false;
+        for (int i = next(index); i < this.code.size() && !this.code.get(i).isLabel(); i = next(i)) {
+            remove(i);
+            removed = true;
+        }
+        return removed;
+    }
+
+    private boolean removeUnusedLabel(int index) {
+        JasminInstruction label = this.code.get(index);
+        if (!label.isLabel() || this.references.getOrDefault(label.getLabel(), 0) > 0)
+            return false;
+
+        remove(index);
+        return true;
+    }
+}
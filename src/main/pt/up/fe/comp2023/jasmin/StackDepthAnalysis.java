@@ -0,0 +1,75 @@
+package pt.up.fe.comp2023.jasmin;
+
+import java.util.*;
+
+/*
+ * The depth of the operand stack before each instruction of the Jasmin code of a method, propagated from the start of
+ * the method along the fall-through and the jump edges, and the maximum depth it reaches.
+ * Every path to an instruction must reach it with the same depth and never pop more than was pushed. Otherwise the
+ * generated code is wrong, and the JVM would reject it, so an InconsistentStackException names where it happens.
+ */
+public class StackDepthAnalysis {
+    private final int[] depths;
+    private int maxDepth = 0;
+
+    public static class InconsistentStackException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public InconsistentStackException(String message) {
+            super(message);
+        }
+    }
+
+    public StackDepthAnalysis(String methodName, List<JasminInstruction> code) {
+        Map<String, Integer> labels = new HashMap<>();
+        for (int i = 0; i < code.size(); i++)
+            if (code.get(i).isLabel())
+                labels.put(code.get(i).getLabel(), i);
+
+        // -1 marks the instructions that are not reached
+        this.depths = new int[code.size() + 1];
+        Arrays.fill(this.depths, -1);
+        Deque<Integer> worklist = new ArrayDeque<>();
+        setDepth(methodName, code, 0, 0, worklist);
+
+        while (!worklist.isEmpty()) {
+            int index = worklist.pop();
+            JasminInstruction instruction = code.get(index);
+            int depth = this.depths[index] - instruction.getPopped();
+            if (depth < 0)
+                throw new InconsistentStackException("Stack underflow in method " + methodName + " at " + describe(code, index) + ".");
+            depth += instruction.getPushed();
+            this.maxDepth = Math.max(this.maxDepth, depth);
+
+            if (instruction.getTarget() != null) {
+                Integer target = labels.get(instruction.getTarget());
+                if (target == null)
+                    throw new InconsistentStackException("Jump to unknown label " + instruction.getTarget() + " in method " + methodName + ".");
+                setDepth(methodName, code, target, depth, worklist);
+            }
+            if (!instruction.endsBlock())
+                setDepth(methodName, code, index + 1, depth, worklist);
+        }
+    }
+
+    public int getMaxDepth() {
+        return this.maxDepth;
+    }
+
+    private void setDepth(String methodName, List<JasminInstruction> code, int index, int depth, Deque<Integer> worklist) {
+        if (this.depths[index] == depth)
+            return;
+        if (this.depths[index] >= 0)
+            throw new InconsistentStackException("Stack depths " + this.depths[index] + " and " + depth + " meet in method "
+                    + methodName + " at " + describe(code, index) + ".");
+        if (index == code.size())
+            throw new InconsistentStackException("Method " + methodName + " does not end with a return or a jump.");
+
+        this.depths[index] = depth;
+        worklist.push(index);
+    }
+
+    private static String describe(List<JasminInstruction> code, int index) {
+        return index < code.size() ? "\"" + code.get(index).toString().trim() + "\" (instruction " + index + ")" : "its end";
+    }
+}
@@ -4,17 +4,21 @@ import org.specs.comp.ollir.*;
 import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
 import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.analysis.table.SymbolTable;
-import pt.up.fe.comp.jmm.ast.AJmmVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.ollir.JmmOptimization;
 import pt.up.fe.comp.jmm.ollir.OllirResult;
 import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.CancellableVisitor;
+import pt.up.fe.comp2023.CancellationToken;
 import pt.up.fe.comp2023.optimization.*;
+import pt.up.fe.comp2023.semantic.SemanticUtils;
 
 import java.util.ArrayList;
 import java.util.List;
 
-public class Optimization extends AJmmVisitor<Void, Void> implements JmmOptimization {
+public class Optimization extends CancellableVisitor<Void, Void> implements JmmOptimization {
     String code = "";
     String temp;
     List<Report> reports = new ArrayList<>();
@@ -24,7 +28,14 @@ public class Optimization extends AJmmVisitor<Void, Void> implements JmmOptimiza
     @Override
     public OllirResult toOllir(JmmSemanticsResult semanticsResult) {
         this.table = semanticsResult.getSymbolTable();
-        visit(semanticsResult.getRootNode());
+        try {
+            CancellationToken.current().startStage(Stage.LLIR, semanticsResult.getConfig());
+            visit(semanticsResult.getRootNode());
+        } catch (CancellationToken.CancelledException e) {
+            // Partial code cannot be parsed, an empty class is returned along with the report
+            reports.add(e.toReport());
+            return new OllirResult(semanticsResult, table.getClassName() + " {\n}\n", reports);
+        }
         code += "} \n";
         System.out.println(code);
         return new OllirResult(semanticsResult, code, reports);
@@ -32,25 +43,34 @@ public class Optimization extends AJmmVisitor<Void, Void> implements JmmOptimiza
 
     @Override
     public JmmSemanticsResult optimize(JmmSemanticsResult semanticsResult) {
-        if (Boolean.parseBoolean(semanticsResult.getConfig().get("optimize"))) {
-            ConstantPropagation constantPropagation = new ConstantPropagation(semanticsResult);
-            ConstantFolding constantFolding = new ConstantFolding(semanticsResult);
-
-            boolean codeModified = constantPropagation.apply() || constantFolding.apply();
-            while (codeModified) {
-                codeModified = constantPropagation.apply() || constantFolding.apply();
+        PassManager passManager = new PassManager(semanticsResult.getConfig(), semanticsResult.getReports());
+        if (passManager.hasAstPasses()) {
+            try {
+                CancellationToken.current().startStage(Stage.OPTIMIZATION, semanticsResult.getConfig());
+                passManager.optimize(semanticsResult);
+            } catch (CancellationToken.CancelledException e) {
+                // Every rewrite keeps the AST valid, so it can still be compiled as it is
+                semanticsResult.getReports().add(e.toReport());
             }
         }
         return semanticsResult;
     }
 
     public OllirResult optimize(OllirResult ollirResult) {
+        PassManager passManager = new PassManager(ollirResult.getConfig(), ollirResult.getReports());
         int registerAllocationOption = Integer.parseInt(ollirResult.getConfig().getOrDefault("registerAllocation", "-1"));
 
-        if (registerAllocationOption >= 0){
-            ClassUnit classUnit = ollirResult.getOllirClass();
-            for (Method method : classUnit.getMethods())
-                new RegisterAllocation(method, registerAllocationOption);
+        if (passManager.hasOllirPasses() || registerAllocationOption >= 0) {
+            try {
+                CancellationToken.current().startStage(Stage.OPTIMIZATION, ollirResult.getConfig());
+                passManager.optimize(ollirResult);
+                if (registerAllocationOption >= 0)
+                    for (Method method : ollirResult.getOllirClass().getMethods())
+                        new RegisterAllocation(method, registerAllocationOption);
+            } catch (CancellationToken.CancelledException e) {
+                // Every rewrite keeps the method valid, and registers are only updated once a method is fully allocated
+                ollirResult.getReports().add(e.toReport());
+            }
         }
         return ollirResult;
     }
@@ -88,30 +108,26 @@ public class Optimization extends AJmmVisitor<Void, Void> implements JmmOptimiza
     }
 
     private Void dealWithCycle(JmmNode jmmNode, Void unused) {
-        code += "\t\t"; visit(jmmNode.getJmmChild(0)); code += "\n";
         var ifId = tempVarId++;
 
-        // Condition statement - negation
-        code += "\t\tif (!.bool " +  jmmNode.getJmmChild(0).get("valueOl") + ") goto end_loop" + ifId + ";\n";
+        // Single entry jump to the condition, which is the header of the loop and the only way out of it
+        code += "\t\tgoto loop_cond" + ifId + ";\n";
 
         // What occurs if the condition is met
         code += "\t\tloop" + ifId + ":\n\t"; visit(jmmNode.getJmmChild(1));
-        code += "\t\t"; visit(jmmNode.getJmmChild(0)); code += "\n";
-        code += "\t\t if( " + jmmNode.getJmmChild(0).get("valueOl")  + ") goto loop" + ifId + ";\n";
-
-        // End of If
-        code +="\t\tend_loop" + ifId + ":\n\t";
 
+        // Condition statement, emitted once at the bottom of the loop
+        code += "\t\tloop_cond" + ifId + ":\n\t";
+        dealWithBranch(jmmNode.getJmmChild(0), "loop" + ifId, true);
 
         return null;
     }
 
     private Void dealWithCondition(JmmNode jmmNode, Void unused) {
-        code += "\t\t"; visit(jmmNode.getJmmChild(0));
         var ifId = tempVarId++;
 
         // Condition statement
-        code += "\t\tif (" + jmmNode.getJmmChild(0).get("valueOl") + ") goto if" + ifId + ";\n";
+        dealWithBranch(jmmNode.getJmmChild(0), "if" + ifId, true);
 
         // What occurs if the condition isn't met
         code += "\t\t\t"; visit(jmmNode.getJmmChild(2));
@@ -127,6 +143,43 @@ public class Optimization extends AJmmVisitor<Void, Void> implements JmmOptimiza
         return null;
     }
 
+    // Jumps to the label if the condition has the given value. The operands of && and || jump on their own, so that
+    // no boolean is computed for them and the right operand is skipped once the left one decides the condition.
+    // Comparisons are the condition of the jump themselves, inverted to jump when they are false
+    private void dealWithBranch(JmmNode condition, String label, boolean jumpIf) {
+        switch (condition.getKind()) {
+            case "ParenthesesExpr" -> dealWithBranch(condition.getJmmChild(0), label, jumpIf);
+            case "NegationExpr" -> dealWithBranch(condition.getJmmChild(0), label, !jumpIf);
+            case "ComparisonExpr" -> {
+                code += "\t\t"; visit(condition.getJmmChild(0));
+                code += "\t\t"; visit(condition.getJmmChild(1));
+                String op = condition.get("op");
+                if (!jumpIf)
+                    op = op.equals("<") ? ">=" : "<=";
+                code += "\n\t\tif (" + condition.getJmmChild(0).get("valueOl") + " " + op + ".bool "
+                        + condition.getJmmChild(1).get("valueOl") + ") goto " + label + ";\n";
+            }
+            case "LogicalExpr" -> {
+                // A false left operand decides "a && b", and a true one decides "a || b"
+                boolean decidingValue = condition.get("op").equals("||");
+                if (jumpIf == decidingValue) {
+                    dealWithBranch(condition.getJmmChild(0), label, jumpIf);
+                    dealWithBranch(condition.getJmmChild(1), label, jumpIf);
+                }
+                else {
+                    String next = "logic_next" + tempVarId++;
+                    dealWithBranch(condition.getJmmChild(0), next, decidingValue);
+                    dealWithBranch(condition.getJmmChild(1), label, jumpIf);
+                    code += "\t\t" + next + ":\n";
+                }
+            }
+            default -> {
+                code += "\t\t"; visit(condition); code += "\n";
+                code += "\t\tif (" + (jumpIf ? "" : "!.bool ") + condition.get("valueOl") + ") goto " + label + ";\n";
+            }
+        }
+    }
+
     private Void dealWithIdentifier(JmmNode jmmNode, Void unused) {
         var method = jmmNode.getAncestor("MethodDecl");
         var voidMethod = jmmNode.getAncestor("VoidMethodDecl");
@@ -235,6 +288,15 @@ public class Optimization extends AJmmVisitor<Void, Void> implements JmmOptimiza
             if (m.equals(methodName))
                 returnType = OllirUtils.ollirTypes(table.getReturnType(m));
 
+        // Semantic analysis knows the exact type of calls to external classes and of calls used in assignments
+        String typeName = jmmNode.getOptional("typename").orElse("#");
+        if (!typeName.startsWith("#"))
+            returnType = OllirUtils.ollirTypes(SemanticUtils.getTypeFromName(typeName));
+
+        // Otherwise, a returned call has the return type of the method instead of void
+        JmmNode parent = jmmNode.getJmmParent();
+        if (returnType.equals(".V") && parent.getKind().equals("MethodDecl") && parent.getJmmChild(parent.getNumChildren() - 1) == jmmNode)
+            returnType = OllirUtils.ollirTypes(table.getReturnType(parent.get("methodname")));
 
         JmmNode params = jmmNode.getJmmChild(1);
         for (var child : params.getChildren()) {
@@ -307,19 +369,34 @@ public class Optimization extends AJmmVisitor<Void, Void> implements JmmOptimiza
         return null;
     }
 
+    // The value is the left operand, unless it does not decide the result, in which case it is the right operand.
+    // A right operand that takes no instructions, like a variable or a literal, is cheaper to compute than to jump over
     private Void dealWithLogicalExpr(JmmNode jmmNode, Void unused) {
         JmmNode leftSon = jmmNode.getJmmChild(0);
         JmmNode rightSon = jmmNode.getJmmChild(1);
 
         visit(leftSon);
+        String codeBefore = code;
         visit(rightSon);
+        String rightCode = code.substring(codeBefore.length());
+        code = codeBefore;
 
         String left = leftSon.get("valueOl");
         String right = rightSon.get("valueOl");
-        temp = "t" + tempVarId++ + ".bool";
+        String result = "t" + tempVarId++ + ".bool";
+        if (rightCode.isBlank()) {
+            code += result + " :=.bool " + left + " " + jmmNode.get("op") + ".bool " + right + ";\n";
+            jmmNode.put("valueOl", result);
+            return null;
+        }
 
-        code += temp + " :=.bool " + left + " " + jmmNode.get("op") + ".bool " + right + ";\n";
-        jmmNode.put("valueOl", temp);
+        String end = "logic_end" + tempVarId++;
+        code += result + " :=.bool " + left + ";\n";
+        code += "\t\tif (" + (jmmNode.get("op").equals("&&") ? "!.bool " : "") + result + ") goto " + end + ";\n";
+        code += "\t\t" + rightCode + "\n";
+        code += "\t\t" + result + " :=.bool " + right + ";\n";
+        code += "\t\t" + end + ":\n";
+        jmmNode.put("valueOl", result);
 
         return null;
     }
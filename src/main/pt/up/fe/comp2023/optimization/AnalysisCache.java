@@ -0,0 +1,46 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.Method;
+
+import java.util.*;
+import java.util.function.Function;
+
+/*
+ * The analyses of OLLIR methods, computed once and kept until the method changes.
+ * The pass manager drops the analyses of a method after a pass changes it, except the ones the pass preserves, while
+ * a pass that changes a method and then analyses it again drops them itself.
+ */
+public class AnalysisCache {
+    private final Map<Method, Map<Class<?>, Object>> analyses = new HashMap<>();
+
+    // The analysis of the method computed since it last changed, or a new one
+    public <T> T get(Method method, Class<T> analysis, Function<Method, T> compute) {
+        Map<Class<?>, Object> methodAnalyses = this.analyses.computeIfAbsent(method, key -> new HashMap<>());
+        Object result = methodAnalyses.get(analysis);
+        if (result == null) {
+            // Computing an analysis may get the ones it is built on, so the map is not changed in the meantime
+            result = compute.apply(method);
+            methodAnalyses.put(analysis, result);
+        }
+        return analysis.cast(result);
+    }
+
+    public DominatorTree getDominatorTree(Method method) {
+        return get(method, DominatorTree.class, DominatorTree::new);
+    }
+
+    public LoopNest getLoopNest(Method method) {
+        return get(method, LoopNest.class, key -> new LoopNest(getDominatorTree(key)));
+    }
+
+    public void invalidate(Method method) {
+        this.analyses.remove(method);
+    }
+
+    // Drops the analyses of the method, except the preserved ones
+    public void invalidate(Method method, Set<Class<?>> preserved) {
+        Map<Class<?>, Object> methodAnalyses = this.analyses.get(method);
+        if (methodAnalyses != null)
+            methodAnalyses.keySet().retainAll(preserved);
+    }
+}
@@ -0,0 +1,267 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Sparse conditional constant propagation over the CFG of an OLLIR method.
+ * Every local variable starts undefined and can only go down to a constant and then to not constant. Only the edges
+ * that can be taken are followed, so a branch whose condition is constant only reaches one of its targets and the
+ * definitions of the code that is never reached do not spoil the values of the variables.
+ */
+public class ConditionalConstantPropagation {
+    // Value of the variables that may have more than one value, undefined variables are not in the maps
+    private static final String NOT_CONSTANT = "NAC";
+
+    private final Method method;
+    private final Map<Node, Map<String, String>> in = new HashMap<>();
+    private final Map<Node, Map<String, String>> out = new HashMap<>();
+    private final Map<Node, Set<Node>> executablePredecessors = new HashMap<>();
+    private final Map<Instruction, Instruction> nextInstructions = new HashMap<>();
+    private int foldedInstructions = 0;
+    private int removedInstructions = 0;
+
+    public ConditionalConstantPropagation(Method method) {
+        this.method = method;
+
+        buildCFG(this.method);
+        propagateConstants();
+        rewriteInstructions();
+    }
+
+    public int getFoldedInstructions() {
+        return this.foldedInstructions;
+    }
+
+    public int getRemovedInstructions() {
+        return this.removedInstructions;
+    }
+
+    private void propagateConstants() {
+        List<Instruction> instructions = this.method.getInstructions();
+        if (instructions.isEmpty())
+            return;
+        for (int i = 0; i < instructions.size() - 1; i++)
+            this.nextInstructions.put(instructions.get(i), instructions.get(i + 1));
+
+        CancellationToken token = CancellationToken.current();
+        Deque<Instruction> worklist = new ArrayDeque<>();
+        Set<Instruction> inWorklist = new HashSet<>();
+        Node begin = this.method.getBeginNode();
+        this.out.put(begin, new HashMap<>());
+        markEdge(begin, instructions.get(0), worklist, inWorklist);
+
+        while (!worklist.isEmpty()) {
+            token.poll();
+            Instruction instruction = worklist.poll();
+            inWorklist.remove(instruction);
+
+            Map<String, String> inValues = new HashMap<>();
+            for (Node predecessor : this.executablePredecessors.get(instruction))
+                meet(inValues, this.out.get(predecessor));
+            this.in.put(instruction, inValues);
+
+            Map<String, String> outValues = transfer(instruction, inValues);
+            if (outValues.equals(this.out.put(instruction, outValues)))
+                continue;
+
+            // The values that reach the successors changed, or they are being reached for the first time
+            for (Node successor : getExecutableSuccessors(instruction, inValues))
+                markEdge(instruction, successor, worklist, inWorklist);
+        }
+    }
+
+    private void markEdge(Node from, Node to, Deque<Instruction> worklist, Set<Instruction> inWorklist) {
+        if (to.getNodeType() == NodeType.END)
+            return;
+        this.executablePredecessors.computeIfAbsent(to, node -> new HashSet<>()).add(from);
+        if (inWorklist.add((Instruction) to))
+            worklist.add((Instruction) to);
+    }
+
+    private static void meet(Map<String, String> values, Map<String, String> other) {
+        for (Map.Entry<String, String> entry : other.entrySet()) {
+            String value = values.get(entry.getKey());
+            if (value == null)
+                values.put(entry.getKey(), entry.getValue());
+            else if (!value.equals(entry.getValue()))
+                values.put(entry.getKey(), NOT_CONSTANT);
+        }
+    }
+
+    private Map<String, String> transfer(Instruction instruction, Map<String, String> inValues) {
+        if (instruction.getInstType() != ASSIGN)
+            return inValues;
+
+        AssignInstruction assignInst = (AssignInstruction) instruction;
+        if (!isTracked(assignInst.getDest()))
+            return inValues;
+
+        Map<String, String> outValues = new HashMap<>(inValues);
+        String value = evaluate(assignInst.getRhs(), inValues);
+        if (value == null)
+            outValues.remove(toVarName(assignInst.getDest()));
+        else
+            outValues.put(toVarName(assignInst.getDest()), value);
+        return outValues;
+    }
+
+    private List<Node> getExecutableSuccessors(Instruction instruction, Map<String, String> inValues) {
+        if (instruction.getInstType() != BRANCH)
+            return instruction.getSuccessors();
+
+        CondBranchInstruction branchInst = (CondBranchInstruction) instruction;
+        String condition = evaluate(branchInst.getCondition(), inValues);
+        if (condition == null) // Nothing is known about the condition yet
+            return List.of();
+        if (condition.equals(NOT_CONSTANT))
+            return instruction.getSuccessors();
+
+        if (!condition.equals("0"))
+            return List.of(this.method.getLabels().get(branchInst.getLabel()));
+        Instruction next = this.nextInstructions.get(instruction);
+        return next == null ? List.of() : List.of(next);
+    }
+
+    // Only locals can be constant, the values of parameters and fields are not known
+    private boolean isTracked(Element element) {
+        if (element.isLiteral() || element instanceof ArrayOperand)
+            return false;
+
+        Descriptor descriptor = this.method.getVarTable().get(toVarName(element));
+        if (descriptor == null || descriptor.getScope() != VarScope.LOCAL)
+            return false;
+        ElementType type = descriptor.getVarType().getTypeOfElement();
+        return type == ElementType.INT32 || type == ElementType.BOOLEAN;
+    }
+
+    // Returns the constant value of the element, null if it is still undefined, or NOT_CONSTANT
+    private String getValue(Element element, Map<String, String> values) {
+        if (element.isLiteral())
+            return ((LiteralElement) element).getLiteral();
+        if (!isTracked(element))
+            return NOT_CONSTANT;
+        return values.get(toVarName(element));
+    }
+
+    private String evaluate(Instruction instruction, Map<String, String> values) {
+        switch (instruction.getInstType()) {
+            case NOPER -> {
+                return getValue(((SingleOpInstruction) instruction).getSingleOperand(), values);
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unaryOpInst = (UnaryOpInstruction) instruction;
+                String operand = getValue(unaryOpInst.getOperand(), values);
+                OperationType opType = unaryOpInst.getOperation().getOpType();
+                if (operand == null || operand.equals(NOT_CONSTANT))
+                    return operand;
+                if (opType == OperationType.NOT || opType == OperationType.NOTB)
+                    return operand.equals("0") ? "1" : "0";
+                return NOT_CONSTANT;
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) instruction;
+                String left = getValue(binaryOpInst.getLeftOperand(), values);
+                String right = getValue(binaryOpInst.getRightOperand(), values);
+                if (NOT_CONSTANT.equals(left) || NOT_CONSTANT.equals(right))
+                    return NOT_CONSTANT;
+                if (left == null || right == null)
+                    return null;
+                return computeBinaryOp(binaryOpInst.getOperation().getOpType(), Integer.parseInt(left), Integer.parseInt(right));
+            }
+            default -> { // Calls, fields, arrays and objects are never constant
+                return NOT_CONSTANT;
+            }
+        }
+    }
+
+    private static String computeBinaryOp(OperationType opType, int left, int right) {
+        return switch (opType) {
+            case ADD -> String.valueOf(left + right);
+            case SUB -> String.valueOf(left - right);
+            case MUL -> String.valueOf(left * right);
+            case DIV -> right == 0 ? NOT_CONSTANT : String.valueOf(left / right); // division by zero must still throw at run time
+            case SHL -> String.valueOf(left << right);
+            case SHR -> String.valueOf(left >> right);
+            case SHRR -> String.valueOf(left >>> right);
+            case XOR -> String.valueOf(left ^ right);
+            case LTH -> toBoolean(left < right);
+            case GTH -> toBoolean(left > right);
+            case LTE -> toBoolean(left <= right);
+            case GTE -> toBoolean(left >= right);
+            case EQ -> toBoolean(left == right);
+            case NEQ -> toBoolean(left != right);
+            case AND, ANDB -> toBoolean(left != 0 && right != 0);
+            case OR, ORB -> toBoolean(left != 0 || right != 0);
+            default -> NOT_CONSTANT;
+        };
+    }
+
+    private static String toBoolean(boolean value) {
+        return value ? "1" : "0";
+    }
+
+    private void rewriteInstructions() {
+        List<Instruction> instructions = this.method.getInstructions();
+
+        // Going backwards, the labels of removed instructions are moved to instructions that are kept
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            Instruction instruction = instructions.get(i);
+            Map<String, String> inValues = this.in.get(instruction);
+            if (inValues == null) { // Never reached
+                removeInstruction(this.method, i);
+                this.removedInstructions++;
+                continue;
+            }
+
+            if (instruction.getInstType() == ASSIGN)
+                rewriteAssign(i, (AssignInstruction) instruction, inValues);
+            else if (instruction.getInstType() == BRANCH)
+                rewriteBranch(i, (CondBranchInstruction) instruction, inValues);
+            else
+                replaceOperands(instruction, element -> replaceOperand(element, inValues));
+        }
+    }
+
+    private void rewriteAssign(int index, AssignInstruction assignInst, Map<String, String> inValues) {
+        Element dest = assignInst.getDest();
+        Instruction rhs = assignInst.getRhs();
+        String value = isTracked(dest) ? this.out.get(assignInst).get(toVarName(dest)) : null;
+
+        if (value != null && !value.equals(NOT_CONSTANT)) {
+            if (rhs.getInstType() == NOPER && ((SingleOpInstruction) rhs).getSingleOperand().isLiteral())
+                return;
+            Instruction constant = new SingleOpInstruction(new LiteralElement(value, dest.getType()));
+            replaceInstruction(this.method, index, new AssignInstruction(dest, assignInst.getTypeOfAssign(), constant));
+            this.foldedInstructions++;
+        }
+        else
+            replaceOperands(assignInst, element -> replaceOperand(element, inValues));
+    }
+
+    private void rewriteBranch(int index, CondBranchInstruction branchInst, Map<String, String> inValues) {
+        String condition = evaluate(branchInst.getCondition(), inValues);
+        if (condition == null || condition.equals(NOT_CONSTANT)) {
+            replaceOperands(branchInst, element -> replaceOperand(element, inValues));
+            return;
+        }
+
+        if (condition.equals("0"))
+            removeInstruction(this.method, index);
+        else
+            replaceInstruction(this.method, index, new GotoInstruction(branchInst.getLabel()));
+        this.foldedInstructions++;
+    }
+
+    private Element replaceOperand(Element element, Map<String, String> values) {
+        String value = getValue(element, values);
+        if (element.isLiteral() || value == null || value.equals(NOT_CONSTANT))
+            return element;
+        return new LiteralElement(value, element.getType());
+    }
+}
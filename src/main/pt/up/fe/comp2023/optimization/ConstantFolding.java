@@ -1,128 +1,97 @@
 package pt.up.fe.comp2023.optimization;
 
-import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
-import pt.up.fe.comp.jmm.ast.AJmmVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.ast.JmmNodeImpl;
 
-public class ConstantFolding extends AJmmVisitor<Void, Void> {
-    private final JmmSemanticsResult semanticsResult;
-    private boolean codeModified;
-    public ConstantFolding (JmmSemanticsResult semanticsResult){
-        this.semanticsResult = semanticsResult;
-    }
+import java.util.Set;
 
-    public boolean apply(){
-        this.codeModified = false;
-        visit(semanticsResult.getRootNode());
-        return this.codeModified;
-    }
+public class ConstantFolding {
+    public static final Set<String> FOLDABLE_KINDS = Set.of("ParenthesesExpr", "NegationExpr", "ArithmeticExpr", "ComparisonExpr", "LogicalExpr");
 
-    @Override
-    protected void buildVisitor() {
-        setDefaultVisit(this::setDefaultVisit);
-        addVisit("ParenthesesExpr", this::computeParenthesesExprResult);
-        addVisit("NegationExpr", this::negateBooleanExpr);
-        addVisit("ArithmeticExpr", this::computeArithmeticExprResult);
-        addVisit("ComparisonExpr", this::computeComparisonResult);
-        addVisit("LogicalExpr", this::computeLogicalExprResult);
+    public static boolean isLiteral(JmmNode jmmNode) {
+        return jmmNode.getKind().equals("Integer") || jmmNode.getKind().equals("Boolean");
+    }
 
+    public static JmmNode createLiteral(String value) {
+        JmmNode newNode;
+        if (value.equals("true") || value.equals("false")) //Boolean constant
+            newNode = new JmmNodeImpl("Boolean");
+        else //Integer constant
+            newNode = new JmmNodeImpl("Integer");
+        newNode.put("value", value);
+        return newNode;
     }
 
-    private Void setDefaultVisit(JmmNode jmmNode, Void unused) {
-        for (JmmNode child: jmmNode.getChildren())
-            visit(child);
-        return null;
+    // Replaces an expression whose operands are literals by its result, returning the new literal or null if it cannot be folded
+    public static JmmNode fold(JmmNode jmmNode) {
+        String value = switch (jmmNode.getKind()) {
+            case "ParenthesesExpr" -> computeParenthesesExprResult(jmmNode);
+            case "NegationExpr" -> negateBooleanExpr(jmmNode);
+            case "ArithmeticExpr" -> computeArithmeticExprResult(jmmNode);
+            case "ComparisonExpr" -> computeComparisonResult(jmmNode);
+            case "LogicalExpr" -> computeLogicalExprResult(jmmNode);
+            default -> null;
+        };
+        if (value == null)
+            return null;
+
+        JmmNode newNode = createLiteral(value);
+        jmmNode.replace(newNode);
+        return newNode;
     }
 
-    private Void computeParenthesesExprResult(JmmNode jmmNode, Void unused) {
+    private static String computeParenthesesExprResult(JmmNode jmmNode) {
         JmmNode exprNode = jmmNode.getJmmChild(0);
-        visit(exprNode);
-
-        if(exprNode.getKind().equals("Integer") || exprNode.getKind().equals("Boolean")){
-            this.codeModified = true;
-            jmmNode.replace(exprNode);
-        }
-        return null;
+        return isLiteral(exprNode) ? exprNode.get("value") : null;
     }
 
-    private Void negateBooleanExpr(JmmNode jmmNode, Void unused) {
+    private static String negateBooleanExpr(JmmNode jmmNode) {
         JmmNode exprNode = jmmNode.getJmmChild(0);
-        visit(exprNode);
-
-        if (exprNode.getKind().equals("Boolean")) {
-            this.codeModified = true;
-            boolean exprValue = Boolean.parseBoolean(exprNode.get("value"));
-            exprNode.put("value", String.valueOf(!exprValue));
-            jmmNode.replace(exprNode);
-        }
-        return null;
+        if (!exprNode.getKind().equals("Boolean"))
+            return null;
+        return String.valueOf(!Boolean.parseBoolean(exprNode.get("value")));
     }
 
-    private Void computeArithmeticExprResult(JmmNode jmmNode, Void unused) {
+    private static String computeArithmeticExprResult(JmmNode jmmNode) {
         JmmNode leftExpr = jmmNode.getJmmChild(0);
         JmmNode rightExpr = jmmNode.getJmmChild(1);
-        String operator = jmmNode.get("op");
-        visit(leftExpr);
-        visit(rightExpr);
-
-        if (leftExpr.getKind().equals("Integer") && rightExpr.getKind().equals("Integer")){
-            this.codeModified = true;
-            int leftValue = Integer.parseInt(leftExpr.get("value"));
-            int rightValue = Integer.parseInt(rightExpr.get("value"));
-
-            switch (operator) {
-                case "+" -> leftExpr.put("value", String.valueOf(leftValue + rightValue));
-                case "-" -> leftExpr.put("value", String.valueOf(leftValue - rightValue));
-                case "*" -> leftExpr.put("value", String.valueOf(leftValue * rightValue));
-                case "/" -> leftExpr.put("value", String.valueOf(leftValue / rightValue));
-            }
-            jmmNode.replace(leftExpr);
-        }
-        return null;
+        if (!leftExpr.getKind().equals("Integer") || !rightExpr.getKind().equals("Integer"))
+            return null;
+
+        int leftValue = Integer.parseInt(leftExpr.get("value"));
+        int rightValue = Integer.parseInt(rightExpr.get("value"));
+        return switch (jmmNode.get("op")) {
+            case "+" -> String.valueOf(leftValue + rightValue);
+            case "-" -> String.valueOf(leftValue - rightValue);
+            case "*" -> String.valueOf(leftValue * rightValue);
+            case "/" -> rightValue == 0 ? null : String.valueOf(leftValue / rightValue); // division by zero must still throw at run time
+            default -> null;
+        };
     }
 
-    private Void computeComparisonResult(JmmNode jmmNode, Void unused) {
+    private static String computeComparisonResult(JmmNode jmmNode) {
         JmmNode leftExpr = jmmNode.getJmmChild(0);
         JmmNode rightExpr = jmmNode.getJmmChild(1);
-        String operator = jmmNode.get("op");
-        visit(leftExpr);
-        visit(rightExpr);
-
-        if (leftExpr.getKind().equals("Integer") && rightExpr.getKind().equals("Integer")){
-            this.codeModified = true;
-            int leftValue = Integer.parseInt(leftExpr.get("value"));
-            int rightValue = Integer.parseInt(rightExpr.get("value"));
-            JmmNodeImpl newNode = new JmmNodeImpl("Boolean");
-
-            if (operator.equals("<"))
-                newNode.put("value", String.valueOf(leftValue < rightValue));
-            else
-                newNode.put("value", String.valueOf(leftValue > rightValue));
-
-            jmmNode.replace(newNode);
-        }
-        return null;
+        if (!leftExpr.getKind().equals("Integer") || !rightExpr.getKind().equals("Integer"))
+            return null;
+
+        int leftValue = Integer.parseInt(leftExpr.get("value"));
+        int rightValue = Integer.parseInt(rightExpr.get("value"));
+        if (jmmNode.get("op").equals("<"))
+            return String.valueOf(leftValue < rightValue);
+        return String.valueOf(leftValue > rightValue);
     }
 
-    private Void computeLogicalExprResult(JmmNode jmmNode, Void unused) {
+    private static String computeLogicalExprResult(JmmNode jmmNode) {
         JmmNode leftExpr = jmmNode.getJmmChild(0);
         JmmNode rightExpr = jmmNode.getJmmChild(1);
-        String operator = jmmNode.get("op");
-        visit(leftExpr);
-        visit(rightExpr);
-
-        if (leftExpr.getKind().equals("Boolean") && rightExpr.getKind().equals("Boolean")){
-            this.codeModified = true;
-            boolean leftValue = Boolean.parseBoolean(leftExpr.get("value"));
-            boolean rightValue = Boolean.parseBoolean(rightExpr.get("value"));
-
-            if (operator.equals("&&"))
-                leftExpr.put("value", String.valueOf(leftValue && rightValue));
-            else
-                leftExpr.put("value", String.valueOf(leftValue || rightValue));
-            jmmNode.replace(leftExpr);
-        }
-        return null;
+        if (!leftExpr.getKind().equals("Boolean") || !rightExpr.getKind().equals("Boolean"))
+            return null;
+
+        boolean leftValue = Boolean.parseBoolean(leftExpr.get("value"));
+        boolean rightValue = Boolean.parseBoolean(rightExpr.get("value"));
+        if (jmmNode.get("op").equals("&&"))
+            return String.valueOf(leftValue && rightValue);
+        return String.valueOf(leftValue || rightValue);
     }
 }
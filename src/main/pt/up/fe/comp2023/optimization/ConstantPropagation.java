@@ -1,17 +1,33 @@
 package pt.up.fe.comp2023.optimization;
 
 import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
-import pt.up.fe.comp.jmm.ast.AJmmVisitor;
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.ast.JmmNodeImpl;
+import pt.up.fe.comp2023.CancellableVisitor;
+import pt.up.fe.comp2023.CancellationToken;
 
 import java.util.*;
 
-import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+import static pt.up.fe.comp2023.optimization.ConstantFolding.*;
+
+/*
+ * Propagates and folds constants in a single pass per method.
+ * The walk over the method computes the reaching definitions of every local variable (the assignments whose value
+ * may be read by each identifier) and folds the expressions whose operands are already literals. Afterwards, only
+ * the uses of definitions that became constant are revisited, through a worklist, instead of the whole tree.
+ */
+public class ConstantPropagation extends CancellableVisitor<Map<String, Set<JmmNode>>, Void> {
+    // Definition of the variables whose value is not known, like uninitialized ones
+    private static final JmmNode UNKNOWN_DEFINITION = new JmmNodeImpl("Unknown");
 
-public class ConstantPropagation extends AJmmVisitor<Map<String, String>, Void> {
     private final JmmSemanticsResult semanticsResult;
+    private final Map<JmmNode, Set<JmmNode>> reachingDefinitions = new HashMap<>();
+    private final Map<JmmNode, List<JmmNode>> definitionUses = new HashMap<>();
+    private final List<JmmNode> definitions = new ArrayList<>();
+    private final Set<String> localVariables = new HashSet<>();
     private boolean codeModified;
+    private int visitedNodes;
 
     public ConstantPropagation (JmmSemanticsResult semanticsResult){
         this.semanticsResult = semanticsResult;
@@ -19,92 +35,193 @@ public class ConstantPropagation extends AJmmVisitor<Map<String, String>, Void>
 
     public boolean apply(){
         this.codeModified = false;
-        Map<String, String> constants = new HashMap<>();
+        this.visitedNodes = 0;
 
-        visit(semanticsResult.getRootNode(), constants);
+        visit(semanticsResult.getRootNode(), new HashMap<>());
         return this.codeModified;
     }
 
+    public int getVisitedNodes() {
+        return this.visitedNodes;
+    }
+
+    @Override
+    public Void visit(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
+        this.visitedNodes++;
+        return super.visit(jmmNode, definitions);
+    }
+
     @Override
     protected void buildVisitor() {
         setDefaultVisit(this::setDefaultVisit);
-        addVisit("MethodDecl", this::clearConstants);
-        addVisit("VoidMethodDecl", this::clearConstants);
-        addVisit("MainMethodDecl", this::clearConstants);
+        addVisit("MethodDecl", this::dealWithMethod);
+        addVisit("VoidMethodDecl", this::dealWithMethod);
+        addVisit("MainMethodDecl", this::dealWithMethod);
         addVisit("Condition", this::dealWithCondition);
         addVisit("Cycle", this::dealWithCycle);
         addVisit("Assignment", this::dealWithAssignment);
         addVisit("Identifier", this::dealWithIdentifier);
+        for (String kind : FOLDABLE_KINDS)
+            addVisit(kind, this::dealWithFoldableExpr);
     }
 
-    private Void setDefaultVisit(JmmNode jmmNode, Map<String, String> constants) {
+    private Void setDefaultVisit(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
         for (JmmNode child: jmmNode.getChildren())
-            visit(child, constants);
+            visit(child, definitions); //each statement modifies the map
         return null;
     }
 
-    private Void clearConstants(JmmNode jmmNode, Map<String, String> constants) {
-        constants.clear();
+    private Void dealWithMethod(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
+        String methodName = jmmNode.get("methodname");
+        this.reachingDefinitions.clear();
+        this.definitionUses.clear();
+        this.definitions.clear();
+        this.localVariables.clear();
+        definitions.clear();
+
+        // Only locals are propagated, fields may be changed by any call and parameters are never constant
+        for (Symbol symbol : this.semanticsResult.getSymbolTable().getLocalVariables(methodName))
+            this.localVariables.add(symbol.getName());
+        for (Symbol symbol : this.semanticsResult.getSymbolTable().getParameters(methodName))
+            this.localVariables.remove(symbol.getName());
+        for (String variable : this.localVariables)
+            definitions.put(variable, Set.of(UNKNOWN_DEFINITION));
 
         for (JmmNode child: jmmNode.getChildren())
-            visit(child, constants); //each statement modifies the map
+            visit(child, definitions);
+
+        propagateConstants();
         return null;
     }
 
-    private Void dealWithCondition(JmmNode jmmNode, Map<String, String> constants) {
+    private Void dealWithCondition(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
         JmmNode conditionNode = jmmNode.getJmmChild(0);
         JmmNode ifCode = jmmNode.getJmmChild(1);
         JmmNode elseCode = jmmNode.getJmmChild(2);
-        Map<String, String> ifConstants =  new HashMap<>(constants);
-        Map<String, String> elseConstants =  new HashMap<>(constants);
 
-        visit(conditionNode, constants);
-        visit(ifCode, ifConstants);
-        visit(elseCode, elseConstants);
-        intersectMaps(ifConstants, elseConstants, constants);
+        visit(conditionNode, definitions);
+        Map<String, Set<JmmNode>> elseDefinitions = new HashMap<>(definitions);
+        visit(ifCode, definitions);
+        visit(elseCode, elseDefinitions);
+        mergeDefinitions(definitions, elseDefinitions);
         return null;
     }
 
-    private Void dealWithCycle(JmmNode jmmNode, Map<String, String> constants) {
-        Map <String, String> oldConstants = new HashMap<>(constants);
-        Map <String, String> cycleConstants = new HashMap<>(constants);
-
-        for (JmmNode child: jmmNode.getChildren())
-            visit(child, cycleConstants);
-
-        intersectMaps(cycleConstants, oldConstants, constants);
+    private Void dealWithCycle(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
+        JmmNode conditionNode = jmmNode.getJmmChild(0);
+        JmmNode cycleCode = jmmNode.getJmmChild(1);
+
+        // The condition is reached from before the cycle and from the end of its body, until nothing new reaches it
+        boolean changed = true;
+        while (changed) {
+            visit(conditionNode, definitions);
+            Map<String, Set<JmmNode>> cycleDefinitions = new HashMap<>(definitions);
+            visit(cycleCode, cycleDefinitions);
+            changed = mergeDefinitions(definitions, cycleDefinitions);
+        }
         return null;
     }
 
-    private Void dealWithAssignment(JmmNode jmmNode, Map<String, String> constants) {
+    private Void dealWithAssignment(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
         String varName = jmmNode.get("varname");
-        if(jmmNode.getAncestor("Cycle").isPresent())
-            constants.remove(varName);
+        visit(jmmNode.getJmmChild(0), definitions);
+
+        if (this.localVariables.contains(varName)) {
+            if (!this.definitionUses.containsKey(jmmNode)) {
+                this.definitionUses.put(jmmNode, new ArrayList<>());
+                this.definitions.add(jmmNode);
+            }
+            definitions.put(varName, Set.of(jmmNode));
+        }
+        return null;
+    }
 
-        JmmNode exprNode = jmmNode.getJmmChild(0);
-        visit(exprNode, constants);
+    private Void dealWithIdentifier(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
+        String identifierName = jmmNode.get("value");
+        if (!this.localVariables.contains(identifierName))
+            return null;
 
-        if (exprNode.getKind().equals("Integer") || exprNode.getKind().equals("Boolean"))
-            constants.put(varName, exprNode.get("value"));
-        else //Unknown Value
-            constants.remove(varName);
+        Set<JmmNode> reaching = this.reachingDefinitions.computeIfAbsent(jmmNode, node -> new HashSet<>());
+        for (JmmNode definition : definitions.get(identifierName))
+            if (reaching.add(definition) && definition != UNKNOWN_DEFINITION)
+                this.definitionUses.get(definition).add(jmmNode);
         return null;
     }
 
-    private Void dealWithIdentifier(JmmNode jmmNode, Map<String, String> constants) {
-        String identifierName = jmmNode.get("value");
-        String constant = constants.get(identifierName);
-
-        if(constant != null) {
-            JmmNode newNode;
-            if(constant.equals("true") || constant.equals("false")) //Boolean constant
-                newNode = new JmmNodeImpl("Boolean");
-            else  //Integer constant
-                newNode = new JmmNodeImpl("Integer");
-            newNode.put("value", constant);
-            jmmNode.replace(newNode);
+    private Void dealWithFoldableExpr(JmmNode jmmNode, Map<String, Set<JmmNode>> definitions) {
+        for (JmmNode child: jmmNode.getChildren())
+            visit(child, definitions);
+
+        if (fold(jmmNode) != null)
             this.codeModified = true;
-        }
         return null;
     }
+
+    // Adds the definitions of other to definitions, returning whether any was added
+    private static boolean mergeDefinitions(Map<String, Set<JmmNode>> definitions, Map<String, Set<JmmNode>> other) {
+        boolean changed = false;
+        for (Map.Entry<String, Set<JmmNode>> entry : other.entrySet()) {
+            Set<JmmNode> current = definitions.get(entry.getKey());
+            if (current.containsAll(entry.getValue()))
+                continue;
+            Set<JmmNode> merged = new HashSet<>(current);
+            merged.addAll(entry.getValue());
+            definitions.put(entry.getKey(), merged);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private void propagateConstants() {
+        CancellationToken token = CancellationToken.current();
+        Map<JmmNode, String> constantDefinitions = new HashMap<>();
+        Deque<JmmNode> worklist = new ArrayDeque<>();
+
+        for (JmmNode definition : this.definitions)
+            addConstantDefinition(definition, definition.getJmmChild(0), constantDefinitions, worklist);
+
+        while (!worklist.isEmpty()) {
+            token.poll();
+            this.visitedNodes++;
+            JmmNode use = worklist.poll();
+            if (use.getJmmParent() == null) // Already replaced
+                continue;
+
+            String value = null;
+            for (JmmNode definition : this.reachingDefinitions.get(use)) {
+                String definitionValue = constantDefinitions.get(definition);
+                if (definitionValue == null || (value != null && !value.equals(definitionValue))) {
+                    value = null;
+                    break;
+                }
+                value = definitionValue;
+            }
+            if (value == null)
+                continue;
+
+            JmmNode node = createLiteral(value);
+            use.replace(node);
+            this.codeModified = true;
+
+            // Folds the enclosing expressions for as long as their operands are literals
+            JmmNode parent = node.getJmmParent();
+            while (FOLDABLE_KINDS.contains(parent.getKind())) {
+                this.visitedNodes++;
+                JmmNode folded = fold(parent);
+                if (folded == null)
+                    break;
+                node = folded;
+                parent = node.getJmmParent();
+            }
+            if (this.definitionUses.containsKey(parent))
+                addConstantDefinition(parent, node, constantDefinitions, worklist);
+        }
+    }
+
+    private void addConstantDefinition(JmmNode definition, JmmNode value, Map<JmmNode, String> constantDefinitions, Deque<JmmNode> worklist) {
+        if (isLiteral(value) && !constantDefinitions.containsKey(definition)) {
+            constantDefinitions.put(definition, value.get("value"));
+            worklist.addAll(this.definitionUses.get(definition));
+        }
+    }
 }
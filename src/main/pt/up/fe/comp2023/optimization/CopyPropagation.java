@@ -0,0 +1,163 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Removes the copies between variables of an OLLIR method.
+ * A temporary that is only copied to a variable right after being computed is replaced by the variable, and the uses
+ * of the variables assigned by a copy "x := y" read y instead of x for as long as neither is assigned again, so that
+ * the copies are left dead for dead store elimination.
+ */
+public class CopyPropagation {
+    private final Method method;
+    private final Map<Node, Map<String, Element>> in = new HashMap<>();
+    private final Map<Node, Map<String, Element>> out = new HashMap<>();
+    private int coalescedTemporaries = 0;
+    private int propagatedCopies = 0;
+
+    public CopyPropagation(Method method) {
+        this.method = method;
+
+        coalesceTemporaries();
+        computeAvailableCopies();
+        propagateCopies();
+    }
+
+    public int getCoalescedTemporaries() {
+        return this.coalescedTemporaries;
+    }
+
+    public int getPropagatedCopies() {
+        return this.propagatedCopies;
+    }
+
+    // "t := <expression>; x := t" becomes "x := <expression>" when t is not read afterwards
+    private void coalesceTemporaries() {
+        LivenessAnalysis liveness = new LivenessAnalysis(this.method);
+        List<Instruction> instructions = this.method.getInstructions();
+
+        for (int i = instructions.size() - 2; i >= 0; i--) {
+            Instruction definition = instructions.get(i);
+            Instruction copy = instructions.get(i + 1);
+            if (!isCopy(definition, copy) || this.method.getLabels().containsValue(copy))
+                continue;
+
+            String temporary = toVarName(((AssignInstruction) definition).getDest());
+            Set<String> liveOut = liveness.getLiveOut(copy);
+            if (liveOut == null || liveOut.contains(temporary))
+                continue;
+
+            AssignInstruction copyInst = (AssignInstruction) copy;
+            Instruction rhs = ((AssignInstruction) definition).getRhs();
+            replaceInstruction(this.method, i + 1, new AssignInstruction(copyInst.getDest(), copyInst.getTypeOfAssign(), rhs));
+            removeInstruction(this.method, i);
+            this.coalescedTemporaries++;
+        }
+    }
+
+    // Whether copy is "x := t", with t assigned by definition
+    private boolean isCopy(Instruction definition, Instruction copy) {
+        if (definition.getInstType() != ASSIGN || !isCopy(copy))
+            return false;
+
+        Element dest = ((AssignInstruction) definition).getDest();
+        Element source = ((SingleOpInstruction) ((AssignInstruction) copy).getRhs()).getSingleOperand();
+        return !(dest instanceof ArrayOperand) && toVarName(dest).equals(toVarName(source)) && isLocalVar(dest, this.method);
+    }
+
+    // Whether the instruction is "x := y", with both x and y being locals or parameters
+    private boolean isCopy(Instruction instruction) {
+        if (instruction.getInstType() != ASSIGN)
+            return false;
+
+        AssignInstruction assignInst = (AssignInstruction) instruction;
+        if (assignInst.getRhs().getInstType() != NOPER || assignInst.getDest() instanceof ArrayOperand)
+            return false;
+        Element source = ((SingleOpInstruction) assignInst.getRhs()).getSingleOperand();
+        return isVariable(assignInst.getDest()) && isVariable(source)
+                && !toVarName(assignInst.getDest()).equals(toVarName(source));
+    }
+
+    private boolean isVariable(Element element) {
+        if (element.isLiteral() || element instanceof ArrayOperand)
+            return false;
+        Descriptor descriptor = this.method.getVarTable().get(toVarName(element));
+        return descriptor != null && (descriptor.getScope() == VarScope.LOCAL || descriptor.getScope() == VarScope.PARAMETER);
+    }
+
+    private void computeAvailableCopies() {
+        buildCFG(this.method);
+        CancellationToken token = CancellationToken.current();
+
+        // A copy is available if it is available coming from every predecessor, the ones not yet computed included
+        boolean changed;
+        do {
+            changed = false;
+            for (Instruction instruction : this.method.getInstructions()) {
+                token.poll();
+                Map<String, Element> inCopies = null;
+                for (Node predecessor : instruction.getPredecessors()) {
+                    Map<String, Element> predecessorCopies = predecessor.getNodeType() == NodeType.BEGIN ? Map.of() : this.out.get(predecessor);
+                    if (predecessorCopies == null)
+                        continue;
+                    if (inCopies == null)
+                        inCopies = new HashMap<>(predecessorCopies);
+                    else
+                        inCopies.entrySet().removeIf(entry -> !isSameCopy(entry.getValue(), predecessorCopies.get(entry.getKey())));
+                }
+                if (inCopies == null)
+                    continue;
+                this.in.put(instruction, inCopies);
+
+                Map<String, Element> outCopies = transfer(instruction, inCopies);
+                Map<String, Element> previous = this.out.put(instruction, outCopies);
+                if (previous == null || !previous.keySet().equals(outCopies.keySet()))
+                    changed = true;
+            }
+        } while (changed);
+    }
+
+    private static boolean isSameCopy(Element source, Element other) {
+        return other != null && toVarName(source).equals(toVarName(other));
+    }
+
+    private Map<String, Element> transfer(Instruction instruction, Map<String, Element> inCopies) {
+        if (instruction.getInstType() != ASSIGN || ((AssignInstruction) instruction).getDest() instanceof ArrayOperand)
+            return inCopies;
+
+        AssignInstruction assignInst = (AssignInstruction) instruction;
+        String dest = toVarName(assignInst.getDest());
+        Map<String, Element> outCopies = new HashMap<>(inCopies);
+        outCopies.remove(dest);
+        outCopies.values().removeIf(source -> toVarName(source).equals(dest));
+        if (isCopy(instruction))
+            outCopies.put(dest, ((SingleOpInstruction) assignInst.getRhs()).getSingleOperand());
+        return outCopies;
+    }
+
+    private void propagateCopies() {
+        for (Instruction instruction : this.method.getInstructions()) {
+            Map<String, Element> inCopies = this.in.get(instruction);
+            if (inCopies == null || inCopies.isEmpty())
+                continue;
+
+            replaceOperands(instruction, element -> {
+                if (element.isLiteral() || element instanceof ArrayOperand || !inCopies.containsKey(toVarName(element)))
+                    return element;
+                this.propagatedCopies++;
+
+                // The copies of copies are available too, like "y := x" after "x := i", so y is replaced by i
+                Element source = inCopies.get(toVarName(element));
+                for (int i = 0; i < inCopies.size() && inCopies.containsKey(toVarName(source)); i++)
+                    source = inCopies.get(toVarName(source));
+                return source;
+            });
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package pt.up.fe.comp2023.optimization;
+
+import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.JmmNodeImpl;
+import pt.up.fe.comp2023.CancellableVisitor;
+
+/*
+ * Removes the statements whose condition was folded to a literal.
+ * An if is replaced by the arm that is always taken and a while whose condition is false by an empty block, so
+ * that neither the test nor the other arm are generated.
+ */
+public class DeadBranchElimination extends CancellableVisitor<Void, Void> {
+    private final JmmSemanticsResult semanticsResult;
+    private boolean codeModified;
+    private int removedStatements;
+
+    public DeadBranchElimination(JmmSemanticsResult semanticsResult) {
+        this.semanticsResult = semanticsResult;
+    }
+
+    public boolean apply() {
+        this.codeModified = false;
+        visit(semanticsResult.getRootNode());
+        return this.codeModified;
+    }
+
+    public int getRemovedStatements() {
+        return this.removedStatements;
+    }
+
+    @Override
+    protected void buildVisitor() {
+        setDefaultVisit(this::setDefaultVisit);
+        addVisit("Condition", this::dealWithCondition);
+        addVisit("Cycle", this::dealWithCycle);
+    }
+
+    private Void setDefaultVisit(JmmNode jmmNode, Void unused) {
+        for (JmmNode child: jmmNode.getChildren())
+            visit(child);
+        return null;
+    }
+
+    private Void dealWithCondition(JmmNode jmmNode, Void unused) {
+        JmmNode conditionNode = jmmNode.getJmmChild(0);
+        if (!conditionNode.getKind().equals("Boolean"))
+            return setDefaultVisit(jmmNode, unused);
+
+        JmmNode takenCode = jmmNode.getJmmChild(conditionNode.get("value").equals("true") ? 1 : 2);
+        jmmNode.removeJmmChild(takenCode);
+        jmmNode.replace(takenCode);
+        this.codeModified = true;
+        this.removedStatements++;
+
+        visit(takenCode);
+        return null;
+    }
+
+    private Void dealWithCycle(JmmNode jmmNode, Void unused) {
+        JmmNode conditionNode = jmmNode.getJmmChild(0);
+        if (!conditionNode.getKind().equals("Boolean") || conditionNode.get("value").equals("true"))
+            return setDefaultVisit(jmmNode, unused);
+
+        // An empty block keeps the place of the statement, which may be the only statement of another one
+        jmmNode.replace(new JmmNodeImpl("CodeBlock"));
+        this.codeModified = true;
+        this.removedStatements++;
+        return null;
+    }
+}
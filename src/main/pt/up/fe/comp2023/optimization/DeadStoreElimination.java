@@ -0,0 +1,71 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Removes the assignments to local variables whose value is never read.
+ * Removing one store may leave the stores of its operands dead too, like the temporaries of an expression, so the
+ * liveness is computed again until nothing else is removed.
+ */
+public class DeadStoreElimination {
+    private final Method method;
+    private int removedInstructions = 0;
+
+    public DeadStoreElimination(Method method) {
+        this.method = method;
+
+        while (removeDeadStores());
+    }
+
+    public int getRemovedInstructions() {
+        return this.removedInstructions;
+    }
+
+    private boolean removeDeadStores() {
+        LivenessAnalysis liveness = new LivenessAnalysis(this.method);
+        List<Instruction> instructions = this.method.getInstructions();
+        boolean changed = false;
+
+        // Going backwards, the labels of removed instructions are moved to instructions that are kept
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            Instruction instruction = instructions.get(i);
+            Set<String> defs = liveness.getDefs(instruction);
+            if (defs.isEmpty() || liveness.getLiveOut(instruction).containsAll(defs))
+                continue;
+            if (hasSideEffects(((AssignInstruction) instruction).getRhs()))
+                continue;
+
+            removeInstruction(this.method, i);
+            this.removedInstructions++;
+            changed = true;
+        }
+        return changed;
+    }
+
+    // Calls may do anything, while array accesses and divisions may throw
+    private static boolean hasSideEffects(Instruction rhs) {
+        switch (rhs.getInstType()) {
+            case CALL -> {
+                return true;
+            }
+            case NOPER -> {
+                return ((SingleOpInstruction) rhs).getSingleOperand() instanceof ArrayOperand;
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) rhs;
+                if (binaryOpInst.getOperation().getOpType() != OperationType.DIV)
+                    return false;
+                Element divisor = binaryOpInst.getRightOperand();
+                return !divisor.isLiteral() || ((LiteralElement) divisor).getLiteral().equals("0");
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+}
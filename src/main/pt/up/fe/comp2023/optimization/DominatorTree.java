@@ -0,0 +1,184 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Immediate dominators of the instructions of an OLLIR method, computed with the iterative algorithm of Cooper,
+ * Harvey and Kennedy over the reverse postorder of the CFG. The begin node is the root of the tree.
+ * The tree is numbered in preorder, along with the last descendant of each node, so that whether a node dominates
+ * another one is answered without walking up the tree. The dominance frontiers are only computed when asked for.
+ */
+public class DominatorTree {
+    private final Method method;
+    private final List<Node> reversePostorder = new ArrayList<>();
+    private final Map<Node, Integer> postorderNumber = new HashMap<>();
+    private final Map<Node, Node> immediateDominator = new HashMap<>();
+    private final Map<Node, List<Node>> children = new HashMap<>();
+    private final Map<Node, Integer> preorderNumber = new HashMap<>();
+    private final Map<Node, Integer> lastDescendant = new HashMap<>();
+    private Map<Node, Set<Node>> dominanceFrontiers = null;
+
+    public DominatorTree(Method method) {
+        this.method = method;
+
+        buildCFG(this.method);
+        computeReversePostorder();
+        computeImmediateDominators();
+        for (Node node : this.reversePostorder)
+            this.children.put(node, new ArrayList<>());
+        for (Map.Entry<Node, Node> entry : this.immediateDominator.entrySet())
+            if (entry.getKey() != entry.getValue())
+                this.children.get(entry.getValue()).add(entry.getKey());
+        numberTree();
+    }
+
+    public Node getRoot() {
+        return this.method.getBeginNode();
+    }
+
+    // Null for the root and for the instructions that cannot be reached
+    public Node getImmediateDominator(Node node) {
+        Node dominator = this.immediateDominator.get(node);
+        return dominator == node ? null : dominator;
+    }
+
+    public List<Node> getChildren(Node node) {
+        return this.children.getOrDefault(node, List.of());
+    }
+
+    public boolean isReachable(Node node) {
+        return this.immediateDominator.containsKey(node);
+    }
+
+    // The nodes a node dominates are the ones numbered from it to its last descendant
+    public boolean dominates(Node dominator, Node node) {
+        if (!isReachable(dominator) || !isReachable(node))
+            return false;
+        int number = this.preorderNumber.get(node);
+        return this.preorderNumber.get(dominator) <= number && number <= this.lastDescendant.get(dominator);
+    }
+
+    // Reachable nodes, each one after all of its dominators
+    public List<Node> getReversePostorder() {
+        return this.reversePostorder;
+    }
+
+    // The nodes where the dominance of the node ends, which are the ones with a predecessor it dominates but which it
+    // does not strictly dominate
+    public Set<Node> getDominanceFrontier(Node node) {
+        if (this.dominanceFrontiers == null)
+            computeDominanceFrontiers();
+        return this.dominanceFrontiers.getOrDefault(node, Set.of());
+    }
+
+    private void computeReversePostorder() {
+        // Iterative depth-first search, a node is numbered once all of its successors were visited
+        Set<Node> visited = new HashSet<>();
+        Deque<Iterator<Node>> stack = new ArrayDeque<>();
+        Deque<Node> path = new ArrayDeque<>();
+        Node begin = this.method.getBeginNode();
+        visited.add(begin);
+        stack.push(begin.getSuccessors().iterator());
+        path.push(begin);
+
+        while (!stack.isEmpty()) {
+            Iterator<Node> successors = stack.peek();
+            if (successors.hasNext()) {
+                Node successor = successors.next();
+                if (successor.getNodeType() != NodeType.END && visited.add(successor)) {
+                    stack.push(successor.getSuccessors().iterator());
+                    path.push(successor);
+                }
+                continue;
+            }
+            stack.pop();
+            Node node = path.pop();
+            this.postorderNumber.put(node, this.postorderNumber.size());
+            this.reversePostorder.add(node);
+        }
+        Collections.reverse(this.reversePostorder);
+    }
+
+    private void computeImmediateDominators() {
+        CancellationToken token = CancellationToken.current();
+        Node begin = this.method.getBeginNode();
+        this.immediateDominator.put(begin, begin);
+
+        boolean changed;
+        do {
+            changed = false;
+            for (Node node : this.reversePostorder) {
+                token.poll();
+                if (node == begin)
+                    continue;
+
+                Node newDominator = null;
+                for (Node predecessor : node.getPredecessors()) {
+                    if (!this.immediateDominator.containsKey(predecessor))
+                        continue;
+                    newDominator = newDominator == null ? predecessor : intersect(predecessor, newDominator);
+                }
+                if (newDominator != null && this.immediateDominator.get(node) != newDominator) {
+                    this.immediateDominator.put(node, newDominator);
+                    changed = true;
+                }
+            }
+        } while (changed);
+    }
+
+    private void numberTree() {
+        Deque<Node> stack = new ArrayDeque<>();
+        List<Node> preorder = new ArrayList<>();
+        stack.push(getRoot());
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            this.preorderNumber.put(node, preorder.size());
+            preorder.add(node);
+            for (Node child : getChildren(node))
+                stack.push(child);
+        }
+
+        // The children of a node come after it in preorder, so the last descendants are known going backwards
+        for (int i = preorder.size() - 1; i >= 0; i--) {
+            Node node = preorder.get(i);
+            int last = i;
+            for (Node child : getChildren(node))
+                last = Math.max(last, this.lastDescendant.get(child));
+            this.lastDescendant.put(node, last);
+        }
+    }
+
+    // Each join node is in the frontier of the nodes from its predecessors up to, but not including, its immediate
+    // dominator
+    private void computeDominanceFrontiers() {
+        this.dominanceFrontiers = new HashMap<>();
+        for (Node node : this.reversePostorder) {
+            List<Node> predecessors = new ArrayList<>();
+            for (Node predecessor : node.getPredecessors())
+                if (isReachable(predecessor))
+                    predecessors.add(predecessor);
+            if (predecessors.size() < 2)
+                continue;
+
+            Node dominator = getImmediateDominator(node);
+            for (Node predecessor : predecessors)
+                for (Node runner = predecessor; runner != null && runner != dominator; runner = getImmediateDominator(runner))
+                    this.dominanceFrontiers.computeIfAbsent(runner, key -> new HashSet<>()).add(node);
+        }
+    }
+
+    private Node intersect(Node first, Node second) {
+        while (first != second) {
+            while (this.postorderNumber.get(first) < this.postorderNumber.get(second))
+                first = this.immediateDominator.get(first);
+            while (this.postorderNumber.get(second) < this.postorderNumber.get(first))
+                second = this.immediateDominator.get(second);
+        }
+        return first;
+    }
+}
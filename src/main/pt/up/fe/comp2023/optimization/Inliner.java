@@ -0,0 +1,195 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+import java.util.function.UnaryOperator;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Replaces the calls "invokevirtual(this, m, ...)" to small methods m of the same class by a copy of the body of m.
+ * The variables and labels of the copy are renamed, the parameters are assigned the arguments, and each return
+ * assigns the value of the call and jumps to the instruction after it.
+ * Recursive methods, directly or through other methods of the class, are never inlined. Methods are only inlined
+ * while they have at most MAX_CALLEE_SIZE instructions and the caller has at most MAX_CALLER_SIZE instructions.
+ * Java-- has no final or private methods, so a subclass could override the callee and the call on this would reach
+ * the override. Inlining assumes no subclass overrides an inlined method, and enforces it by declaring the method
+ * final: a subclass that overrides it then fails to load, instead of silently running the inlined body.
+ */
+public class Inliner {
+    private static final int MAX_CALLEE_SIZE = 12;
+    private static final int MAX_CALLER_SIZE = 300;
+
+    private final ClassUnit classUnit;
+    private final Map<String, Method> methods = new HashMap<>();
+    private final Set<String> recursiveMethods = new HashSet<>();
+    private int inlinedCalls = 0;
+    private int instructionsBefore = 0;
+    private int instructionsAfter = 0;
+
+    public Inliner(ClassUnit classUnit) {
+        this.classUnit = classUnit;
+
+        for (Method method : this.classUnit.getMethods()) {
+            if (!method.isConstructMethod() && !method.isStaticMethod())
+                this.methods.put(method.getMethodName(), method);
+            this.instructionsBefore += method.getInstructions().size();
+        }
+        findRecursiveMethods();
+
+        for (Method method : this.classUnit.getMethods()) {
+            inlineCalls(method);
+            this.instructionsAfter += method.getInstructions().size();
+        }
+    }
+
+    public int getInlinedCalls() {
+        return this.inlinedCalls;
+    }
+
+    public int getInstructionsBefore() {
+        return this.instructionsBefore;
+    }
+
+    public int getInstructionsAfter() {
+        return this.instructionsAfter;
+    }
+
+    // Methods that may call themselves through the calls on this
+    private void findRecursiveMethods() {
+        Map<String, Set<String>> callees = new HashMap<>();
+        for (Method method : this.methods.values()) {
+            Set<String> methodCallees = new HashSet<>();
+            for (Instruction instruction : method.getInstructions()) {
+                Method callee = getCallee(instruction);
+                if (callee != null)
+                    methodCallees.add(callee.getMethodName());
+            }
+            callees.put(method.getMethodName(), methodCallees);
+        }
+
+        for (String method : callees.keySet()) {
+            Set<String> reached = new HashSet<>();
+            Deque<String> worklist = new ArrayDeque<>(callees.get(method));
+            while (!worklist.isEmpty()) {
+                String callee = worklist.pop();
+                if (reached.add(callee))
+                    worklist.addAll(callees.getOrDefault(callee, Set.of()));
+            }
+            if (reached.contains(method))
+                this.recursiveMethods.add(method);
+        }
+    }
+
+    // The method of this class called on this by the instruction, or its value
+    private Method getCallee(Instruction instruction) {
+        if (instruction.getInstType() == ASSIGN)
+            instruction = ((AssignInstruction) instruction).getRhs();
+        if (instruction.getInstType() != CALL)
+            return null;
+
+        CallInstruction callInst = (CallInstruction) instruction;
+        if (callInst.getInvocationType() != CallType.invokevirtual || callInst.getFirstArg().isLiteral())
+            return null;
+        if (!((Operand) callInst.getFirstArg()).getName().equals("this"))
+            return null;
+
+        String name = ((LiteralElement) callInst.getSecondArg()).getLiteral().replace("\"", "");
+        Method callee = this.methods.get(name);
+        int arguments = callInst.getListOfOperands() == null ? 0 : callInst.getListOfOperands().size();
+        return callee != null && callee.getParams().size() == arguments ? callee : null;
+    }
+
+    private void inlineCalls(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        for (int i = 0; i < instructions.size(); i++) {
+            Method callee = getCallee(instructions.get(i));
+            if (callee == null || callee == method || this.recursiveMethods.contains(callee.getMethodName()))
+                continue;
+            if (callee.getInstructions().size() > MAX_CALLEE_SIZE || instructions.size() > MAX_CALLER_SIZE)
+                continue;
+
+            // The inlined instructions are not visited again, so callees are only inlined one level deep
+            i += inline(method, i, callee) - 1;
+            callee.setFinalMethod();
+            this.inlinedCalls++;
+        }
+    }
+
+    // Replaces the call at the given index by the body of the callee, returning the number of instructions inserted
+    private int inline(Method caller, int index, Method callee) {
+        List<Instruction> instructions = caller.getInstructions();
+        Instruction call = instructions.get(index);
+        Element result = call.getInstType() == ASSIGN ? ((AssignInstruction) call).getDest() : null;
+        CallInstruction callInst = (CallInstruction) (result != null ? ((AssignInstruction) call).getRhs() : call);
+        String prefix = "inl" + this.inlinedCalls + "_";
+
+        // The variables of the callee become new locals of the caller
+        Map<String, String> renames = new HashMap<>();
+        HashMap<String, Descriptor> varTable = caller.getVarTable();
+        int register = 0;
+        for (Descriptor descriptor : varTable.values())
+            register = Math.max(register, descriptor.getVirtualReg() + 1);
+        for (Map.Entry<String, Descriptor> entry : callee.getVarTable().entrySet()) {
+            if (entry.getKey().equals("this"))
+                continue;
+            renames.put(entry.getKey(), prefix + entry.getKey());
+            varTable.put(prefix + entry.getKey(), new Descriptor(VarScope.LOCAL, register++, entry.getValue().getVarType()));
+        }
+
+        UnaryOperator<String> rename = name -> renames.getOrDefault(name, name);
+        List<Instruction> inlined = new ArrayList<>();
+        for (int i = 0; i < callee.getParams().size(); i++) {
+            Element param = callee.getParams().get(i);
+            Element argument = callInst.getListOfOperands().get(i);
+            inlined.add(new AssignInstruction(copyElement(param, rename), param.getType(), new SingleOpInstruction(argument)));
+        }
+
+        String endLabel = prefix + "end";
+        boolean jumpsToEnd = false;
+        Map<Instruction, Instruction> copies = new HashMap<>();
+        List<Instruction> body = callee.getInstructions();
+        for (int i = 0; i < body.size(); i++) {
+            Instruction instruction = body.get(i);
+            int first = inlined.size();
+            if (instruction.getInstType() == RETURN) {
+                ReturnInstruction returnInst = (ReturnInstruction) instruction;
+                if (result != null && returnInst.hasReturnValue()) {
+                    Instruction value = new SingleOpInstruction(copyElement(returnInst.getOperand(), rename));
+                    inlined.add(new AssignInstruction(result, ((AssignInstruction) call).getTypeOfAssign(), value));
+                }
+                if (i != body.size() - 1) {
+                    inlined.add(new GotoInstruction(endLabel));
+                    jumpsToEnd = true;
+                }
+            }
+            else
+                inlined.add(copyInstruction(instruction, rename, label -> prefix + label));
+            if (inlined.size() > first)
+                copies.put(instruction, inlined.get(first));
+        }
+
+        // Labels of returns that left no instructions point to the instruction after the call
+        Instruction next = instructions.get(index + 1);
+        for (Map.Entry<String, Instruction> entry : callee.getLabels().entrySet()) {
+            int position = body.indexOf(entry.getValue());
+            Instruction target = null;
+            for (int i = position; i < body.size() && target == null; i++)
+                target = copies.get(body.get(i));
+            caller.getLabels().put(prefix + entry.getKey(), target != null ? target : next);
+        }
+        if (jumpsToEnd)
+            caller.getLabels().put(endLabel, next);
+
+        // The labels of the call point to the first inlined instruction, or to the next one if none was inlined
+        instructions.remove(index);
+        instructions.addAll(index, inlined);
+        Instruction first = inlined.isEmpty() ? next : inlined.get(0);
+        for (Map.Entry<String, Instruction> entry : caller.getLabels().entrySet())
+            if (entry.getValue() == call)
+                entry.setValue(first);
+        return inlined.size();
+    }
+}
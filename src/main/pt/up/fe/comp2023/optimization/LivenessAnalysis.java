@@ -0,0 +1,152 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+public class LivenessAnalysis {
+    private final Method method;
+    private final Map<Node, Set<String>> defs = new HashMap<>();
+    private final Map<Node, Set<String>> uses = new HashMap<>();
+    private final Map<Node, Set<String>> in = new HashMap<>();
+    private final Map<Node, Set<String>> out = new HashMap<>();
+
+    public LivenessAnalysis(Method method) {
+        this.method = method;
+
+        buildCFG(this.method);
+        for (Instruction instruction : this.method.getInstructions()){
+            this.defs.put(instruction, getDef(instruction));
+            this.uses.put(instruction, getUse(instruction, new HashSet<>()));
+        }
+        computeLiveInOut();
+    }
+
+    public Set<String> getDefs(Instruction instruction) {
+        return this.defs.get(instruction);
+    }
+
+    public Set<String> getUses(Instruction instruction) {
+        return this.uses.get(instruction);
+    }
+
+    public Set<String> getLiveIn(Instruction instruction) {
+        return this.in.get(instruction);
+    }
+
+    public Set<String> getLiveOut(Instruction instruction) {
+        return this.out.get(instruction);
+    }
+
+    private Set<String> getDef(Instruction instruction){
+        Set<String> def = new HashSet<>();
+
+        if(instruction.getInstType() == ASSIGN) {
+            AssignInstruction assignInst = (AssignInstruction)instruction;
+            Element dest = assignInst.getDest();
+            //Storing in an array element reads the array, it does not define it
+            if(!(dest instanceof ArrayOperand) && isLocalVar(dest, this.method))
+                def.add(toVarName(dest));
+        }
+        return def;
+    }
+
+    private Set<String> getUse(Instruction instruction, Set<String> result){
+        switch (instruction.getInstType()) {
+            case ASSIGN -> {
+                AssignInstruction assignInst = (AssignInstruction) instruction;
+                if (assignInst.getDest() instanceof ArrayOperand)
+                    addUse(assignInst.getDest(), result);
+                return getUse(assignInst.getRhs(), result);
+            }
+            case CALL -> {
+                CallInstruction callInst = (CallInstruction) instruction;
+                addUse(callInst.getFirstArg(), result);
+                List<Element> arguments = callInst.getListOfOperands();
+                if (arguments != null)
+                    for (Element argument : arguments)
+                        addUse(argument, result);
+            }
+            case RETURN -> {
+                ReturnInstruction returnInst = (ReturnInstruction) instruction;
+                if (returnInst.hasReturnValue())
+                    addUse(returnInst.getOperand(), result);
+            }
+            case BRANCH -> {
+                CondBranchInstruction branchInst = (CondBranchInstruction) instruction;
+                return getUse(branchInst.getCondition(), result);
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unaryOpInstruction = (UnaryOpInstruction) instruction;
+                addUse(unaryOpInstruction.getOperand(), result);
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binInst = (BinaryOpInstruction) instruction;
+                addUse(binInst.getLeftOperand(), result);
+                addUse(binInst.getRightOperand(), result);
+            }
+            case NOPER -> {
+                SingleOpInstruction singleOpInstruction = (SingleOpInstruction) instruction;
+                addUse(singleOpInstruction.getSingleOperand(), result);
+            }
+            case PUTFIELD -> {
+                PutFieldInstruction putFieldInstruction = (PutFieldInstruction) instruction;
+                addUse(putFieldInstruction.getThirdOperand(), result);
+            }
+        }
+        return result;
+    }
+
+    private void addUse(Element element, Set<String> result) {
+        //Class names, like the ones of static calls, are operands that are not variables
+        if (element == null || element.isLiteral() || !this.method.getVarTable().containsKey(toVarName(element)))
+            return;
+
+        if (isLocalVar(element, this.method))
+            result.add(toVarName(element));
+        if (element instanceof ArrayOperand)
+            for (Element index : ((ArrayOperand) element).getIndexOperands())
+                addUse(index, result);
+    }
+
+    private void computeLiveInOut() {
+        for (Instruction instruction : method.getInstructions()){
+            this.in.put(instruction, new HashSet<>());
+            this.out.put(instruction, new HashSet<>());
+        }
+
+        CancellationToken token = CancellationToken.current();
+        boolean liveChanged;
+        do {
+            liveChanged = false;
+            for(Instruction instruction : method.getInstructions()){
+                token.poll();
+                //Save current liveIn and liveOut
+                Set<String> liveInAux = new HashSet<>(this.in.get(instruction));
+                Set<String> liveOutAux = new HashSet<>(this.out.get(instruction));
+
+                //Update liveIn
+                Set<String> difference = differenceSets(this.out.get(instruction), this.defs.get(instruction));
+                Set<String> newLiveIn = unionSets(this.uses.get(instruction), difference);
+                this.in.put(instruction, newLiveIn);
+
+                //Update liveOut
+                Set<String> newLiveOut = new HashSet<>();
+
+                for(Node successor : instruction.getSuccessors()){
+                    Set<String> liveInSuccessor =  this.in.get(successor);
+                    newLiveOut = unionSets(newLiveOut, liveInSuccessor);
+                }
+                this.out.put(instruction, newLiveOut);
+
+                //Check if liveIn or liveOut changed
+                if(!liveInAux.equals(newLiveIn) || !liveOutAux.equals(newLiveOut))
+                    liveChanged = true;
+            }
+        } while(liveChanged);
+    }
+}
@@ -0,0 +1,268 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Moves the assignments of a loop whose value is the same in every iteration to right before the loop header, where
+ * they are only executed once. An operand is invariant if none of its reaching definitions is in the loop, or if its
+ * only one is an invariant assignment of the loop.
+ * Array elements and fields are only invariant in loops without calls and without stores to them. Instructions that
+ * may throw are only moved when they are executed first thing in every iteration, so that nothing else observable
+ * happens before them. The inner loops are handled first, so invariants may move out of several loops.
+ */
+public class LoopInvariantCodeMotion {
+    private final Method method;
+    private final AnalysisCache analyses;
+    private int hoistedInstructions = 0;
+
+    public LoopInvariantCodeMotion(Method method) {
+        this(method, new AnalysisCache());
+    }
+
+    public LoopInvariantCodeMotion(Method method, AnalysisCache analyses) {
+        this.method = method;
+        this.analyses = analyses;
+
+        while (hoistFromSomeLoop());
+    }
+
+    public int getHoistedInstructions() {
+        return this.hoistedInstructions;
+    }
+
+    private boolean hoistFromSomeLoop() {
+        DominatorTree dominatorTree = this.analyses.getDominatorTree(this.method);
+        List<NaturalLoop> loops = this.analyses.getLoopNest(this.method).getLoops();
+        if (loops.isEmpty())
+            return false;
+
+        ReachingDefinitions reachingDefinitions = new ReachingDefinitions(this.method);
+        LivenessAnalysis liveness = new LivenessAnalysis(this.method);
+        for (NaturalLoop loop : loops) {
+            if (hoist(loop, dominatorTree, reachingDefinitions, liveness)) {
+                this.analyses.invalidate(this.method);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hoist(NaturalLoop loop, DominatorTree dominatorTree, ReachingDefinitions reachingDefinitions, LivenessAnalysis liveness) {
+        List<Instruction> instructions = this.method.getInstructions();
+        Instruction preheader = loop.getPreheader(this.method);
+        if (preheader == null)
+            return false;
+
+        // In the order of an iteration, which starts at the header even when it is at the bottom of the loop
+        List<Instruction> body = new ArrayList<>(loop.getBody());
+        int headerIndex = instructions.indexOf(loop.getHeader());
+        body.sort(Comparator.comparingInt(instruction -> Math.floorMod(instructions.indexOf(instruction) - headerIndex, instructions.size())));
+
+        // Calls may store to any array or field
+        boolean hasCall = false, hasArrayStore = false;
+        Set<String> storedFields = new HashSet<>();
+        for (Instruction instruction : body) {
+            Instruction rhs = instruction.getInstType() == ASSIGN ? ((AssignInstruction) instruction).getRhs() : instruction;
+            if (rhs.getInstType() == CALL && ((CallInstruction) rhs).getInvocationType() != CallType.arraylength)
+                hasCall = true;
+            else if (rhs.getInstType() == PUTFIELD)
+                storedFields.add(toVarName(((PutFieldInstruction) rhs).getSecondOperand()));
+            if (instruction.getInstType() == ASSIGN && ((AssignInstruction) instruction).getDest() instanceof ArrayOperand)
+                hasArrayStore = true;
+        }
+
+        Set<Instruction> invariants = new LinkedHashSet<>();
+        boolean changed;
+        do {
+            changed = false;
+            for (Instruction instruction : body) {
+                if (invariants.contains(instruction) || !hasInvariantRhs(instruction, hasCall, hasArrayStore, storedFields))
+                    continue;
+                if (hasInvariantOperands(instruction, loop, reachingDefinitions, invariants::contains)) {
+                    invariants.add(instruction);
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        // Instructions that may throw are only moved while every instruction before them in the iteration was moved too
+        Set<String> nonNullArrays = getNonNullArrays(instructions.indexOf(preheader));
+        List<Instruction> hoisted = new ArrayList<>();
+        boolean firstInIteration = true;
+        int previousIndex = -1;
+        for (Instruction instruction : body) {
+            int index = instructions.indexOf(instruction);
+            if (instruction != loop.getHeader() && (index != previousIndex + 1 || this.method.getLabels().containsValue(instruction)))
+                firstInIteration = false;
+            previousIndex = index;
+
+            boolean mayThrow = mayThrow(instruction, nonNullArrays);
+            if (invariants.contains(instruction) && (firstInIteration || !mayThrow)
+                    && canHoist(instruction, loop, dominatorTree, reachingDefinitions, liveness, hoisted)) {
+                hoisted.add(instruction);
+                continue;
+            }
+            if (mayThrow || hasSideEffects(instruction))
+                firstInIteration = false;
+        }
+
+        for (Instruction instruction : hoisted)
+            removeInstruction(this.method, instructions.indexOf(instruction));
+        NaturalLoop.insertInPreheader(this.method, preheader, hoisted);
+        this.hoistedInstructions += hoisted.size();
+        return !hoisted.isEmpty();
+    }
+
+    private static boolean hasInvariantRhs(Instruction instruction, boolean hasCall, boolean hasArrayStore, Set<String> storedFields) {
+        if (instruction.getInstType() != ASSIGN || ((AssignInstruction) instruction).getDest() instanceof ArrayOperand)
+            return false;
+
+        Instruction rhs = ((AssignInstruction) instruction).getRhs();
+        switch (rhs.getInstType()) {
+            case NOPER -> {
+                return !(((SingleOpInstruction) rhs).getSingleOperand() instanceof ArrayOperand) || !hasCall && !hasArrayStore;
+            }
+            case UNARYOPER, BINARYOPER -> {
+                return true;
+            }
+            case GETFIELD -> {
+                return !hasCall && !storedFields.contains(toVarName(((GetFieldInstruction) rhs).getSecondOperand()));
+            }
+            case CALL -> {
+                return ((CallInstruction) rhs).getInvocationType() == CallType.arraylength;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    private boolean hasInvariantOperands(Instruction instruction, NaturalLoop loop, ReachingDefinitions reachingDefinitions,
+                                         Predicate<Instruction> isInvariant) {
+        for (Element operand : getReadOperands(instruction)) {
+            // Literals, "this" and class names are never assigned
+            if (operand.isLiteral() || !this.method.getVarTable().containsKey(toVarName(operand)))
+                continue;
+
+            Set<Instruction> definitions = reachingDefinitions.getReachingDefinitions(instruction, toVarName(operand));
+            Set<Instruction> loopDefinitions = new HashSet<>(definitions);
+            loopDefinitions.retainAll(loop.getBody());
+            if (loopDefinitions.isEmpty())
+                continue;
+            if (definitions.size() != 1 || !isInvariant.test(loopDefinitions.iterator().next()))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean canHoist(Instruction instruction, NaturalLoop loop, DominatorTree dominatorTree,
+                             ReachingDefinitions reachingDefinitions, LivenessAnalysis liveness, List<Instruction> hoisted) {
+        // The operands assigned in the loop must be assigned before it too
+        if (!hasInvariantOperands(instruction, loop, reachingDefinitions, hoisted::contains))
+            return false;
+
+        // The variable must be a local only assigned here, whose value from before the loop is never read
+        Element dest = ((AssignInstruction) instruction).getDest();
+        String varName = toVarName(dest);
+        if (!isLocalVar(dest, this.method) || liveness.getLiveIn(loop.getHeader()).contains(varName))
+            return false;
+        for (Instruction other : loop.getBody())
+            if (other != instruction && varName.equals(ReachingDefinitions.getDefinedVar(other)))
+                return false;
+
+        // Leaving the loop without executing the instruction would keep the value from before the loop
+        for (Instruction exit : loop.getExits()) {
+            if (dominatorTree.dominates(instruction, exit))
+                continue;
+            for (Node successor : exit.getSuccessors()) {
+                if (loop.contains(successor) || successor.getNodeType() != NodeType.INSTRUCTION)
+                    continue;
+                if (liveness.getLiveIn((Instruction) successor).contains(varName))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // Array accesses may be out of bounds, divisions may be by zero, and lengths may be of null arrays
+    private static boolean mayThrow(Instruction instruction, Set<String> nonNullArrays) {
+        if (instruction.getInstType() != ASSIGN)
+            return false;
+
+        Instruction rhs = ((AssignInstruction) instruction).getRhs();
+        switch (rhs.getInstType()) {
+            case NOPER -> {
+                return ((SingleOpInstruction) rhs).getSingleOperand() instanceof ArrayOperand;
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) rhs;
+                if (binaryOpInst.getOperation().getOpType() != OperationType.DIV)
+                    return false;
+                Element divisor = binaryOpInst.getRightOperand();
+                return !divisor.isLiteral() || ((LiteralElement) divisor).getLiteral().equals("0");
+            }
+            case CALL -> {
+                CallInstruction callInst = (CallInstruction) rhs;
+                return callInst.getInvocationType() == CallType.arraylength && !nonNullArrays.contains(toVarName(callInst.getFirstArg()));
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    private static boolean hasSideEffects(Instruction instruction) {
+        switch (instruction.getInstType()) {
+            case ASSIGN -> {
+                AssignInstruction assignInst = (AssignInstruction) instruction;
+                return assignInst.getDest() instanceof ArrayOperand || assignInst.getRhs().getInstType() == CALL;
+            }
+            case CALL, PUTFIELD, BRANCH, GOTO, RETURN -> {
+                return true;
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+
+    // Arrays accessed or created on the only path to the instruction after the given one, and not assigned since
+    private Set<String> getNonNullArrays(int index) {
+        List<Instruction> instructions = this.method.getInstructions();
+        Set<String> nonNullArrays = new HashSet<>();
+        Set<String> assigned = new HashSet<>();
+
+        for (int i = index; i >= 0; i--) {
+            Instruction instruction = instructions.get(i);
+            String definedVar = ReachingDefinitions.getDefinedVar(instruction);
+            if (definedVar != null) {
+                Instruction rhs = ((AssignInstruction) instruction).getRhs();
+                if (!assigned.contains(definedVar) && rhs.getInstType() == CALL && ((CallInstruction) rhs).getInvocationType() == CallType.NEW)
+                    nonNullArrays.add(definedVar);
+                assigned.add(definedVar);
+            }
+
+            for (Element operand : getReadOperands(instruction)) {
+                boolean accessed = operand instanceof ArrayOperand || isArrayLength(instruction, operand);
+                if (accessed && !assigned.contains(toVarName(operand)))
+                    nonNullArrays.add(toVarName(operand));
+            }
+
+            if (this.method.getLabels().containsValue(instruction))
+                break;
+        }
+        return nonNullArrays;
+    }
+
+    private static boolean isArrayLength(Instruction instruction, Element operand) {
+        Instruction rhs = instruction.getInstType() == ASSIGN ? ((AssignInstruction) instruction).getRhs() : instruction;
+        return rhs.getInstType() == CALL && ((CallInstruction) rhs).getInvocationType() == CallType.arraylength
+                && ((CallInstruction) rhs).getFirstArg() == operand;
+    }
+}
@@ -0,0 +1,51 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/*
+ * The loop nesting forest of an OLLIR method, where each natural loop is a child of the smallest loop containing it.
+ * Loops with different headers are either disjoint or nested, so going from the largest loops to the smallest ones,
+ * the loop containing the header of a loop is its parent, and each instruction ends up in its innermost loop.
+ */
+public class LoopNest {
+    private final List<NaturalLoop> loops;
+    private final List<NaturalLoop> roots = new ArrayList<>();
+    private final Map<Node, NaturalLoop> innermostLoop = new HashMap<>();
+
+    public LoopNest(DominatorTree dominatorTree) {
+        this.loops = NaturalLoop.findLoops(dominatorTree);
+
+        for (int i = this.loops.size() - 1; i >= 0; i--) {
+            NaturalLoop loop = this.loops.get(i);
+            NaturalLoop parent = this.innermostLoop.get(loop.getHeader());
+            loop.setParent(parent);
+            if (parent == null)
+                this.roots.add(loop);
+            for (Instruction instruction : loop.getBody())
+                this.innermostLoop.put(instruction, loop);
+        }
+    }
+
+    // The loops of the method, the inner ones first
+    public List<NaturalLoop> getLoops() {
+        return this.loops;
+    }
+
+    // The outermost loops
+    public List<NaturalLoop> getRoots() {
+        return this.roots;
+    }
+
+    // Null for the nodes out of every loop
+    public NaturalLoop getInnermostLoop(Node node) {
+        return this.innermostLoop.get(node);
+    }
+
+    // How many loops contain the node, 0 out of every loop
+    public int getDepth(Node node) {
+        NaturalLoop loop = this.innermostLoop.get(node);
+        return loop == null ? 0 : loop.getDepth();
+    }
+}
@@ -0,0 +1,141 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+/*
+ * A loop of the CFG of an OLLIR method: the header, which dominates every instruction of the loop, and the
+ * instructions that reach one of the back edges to the header without going through it.
+ * The loops with the same header are merged into a single one.
+ */
+public class NaturalLoop {
+    private final Instruction header;
+    private final Set<Instruction> body = new HashSet<>();
+    private final Set<Instruction> latches = new HashSet<>();
+    private NaturalLoop parent = null;
+    private final List<NaturalLoop> children = new ArrayList<>();
+
+    private NaturalLoop(Instruction header) {
+        this.header = header;
+        this.body.add(header);
+    }
+
+    // Loops of the method, the inner ones first
+    public static List<NaturalLoop> findLoops(DominatorTree dominatorTree) {
+        Map<Node, NaturalLoop> loops = new LinkedHashMap<>();
+        for (Node node : dominatorTree.getReversePostorder()) {
+            for (Node successor : node.getSuccessors()) {
+                if (successor.getNodeType() != NodeType.INSTRUCTION || !dominatorTree.dominates(successor, node))
+                    continue;
+                NaturalLoop loop = loops.computeIfAbsent(successor, header -> new NaturalLoop((Instruction) header));
+                loop.addBackEdge((Instruction) node);
+            }
+        }
+
+        List<NaturalLoop> result = new ArrayList<>(loops.values());
+        result.sort(Comparator.comparingInt(loop -> loop.body.size()));
+        return result;
+    }
+
+    private void addBackEdge(Instruction latch) {
+        this.latches.add(latch);
+        Deque<Node> worklist = new ArrayDeque<>();
+        worklist.push(latch);
+        while (!worklist.isEmpty()) {
+            Node node = worklist.pop();
+            if (node.getNodeType() == NodeType.INSTRUCTION && this.body.add((Instruction) node))
+                worklist.addAll(node.getPredecessors());
+        }
+    }
+
+    public Instruction getHeader() {
+        return this.header;
+    }
+
+    // The innermost loop this one is nested in, set by the loop nest
+    public NaturalLoop getParent() {
+        return this.parent;
+    }
+
+    void setParent(NaturalLoop parent) {
+        this.parent = parent;
+        if (parent != null)
+            parent.children.add(this);
+    }
+
+    public List<NaturalLoop> getChildren() {
+        return this.children;
+    }
+
+    // 1 for the outermost loops
+    public int getDepth() {
+        int depth = 1;
+        for (NaturalLoop loop = this.parent; loop != null; loop = loop.parent)
+            depth++;
+        return depth;
+    }
+
+    public Set<Instruction> getBody() {
+        return this.body;
+    }
+
+    public boolean contains(Node node) {
+        return this.body.contains(node);
+    }
+
+    // The only instruction out of the loop that leads to the header, if it leads nowhere else: either a jump to the
+    // header or the instruction right before it. A branch that may also jump to the header is not, as what is
+    // inserted after it would be skipped by the jump
+    public Instruction getPreheader(Method method) {
+        Instruction preheader = null;
+        for (Node predecessor : this.header.getPredecessors()) {
+            if (contains(predecessor))
+                continue;
+            if (preheader != null || predecessor.getNodeType() != NodeType.INSTRUCTION)
+                return null;
+            preheader = (Instruction) predecessor;
+        }
+        if (preheader == null || preheader.getInstType() == InstructionType.GOTO)
+            return preheader;
+
+        List<Instruction> instructions = method.getInstructions();
+        int headerIndex = instructions.indexOf(this.header);
+        if (headerIndex <= 0 || instructions.get(headerIndex - 1) != preheader)
+            return null;
+        if (preheader.getInstType() == InstructionType.BRANCH || preheader.getInstType() == InstructionType.RETURN)
+            return null;
+        return preheader;
+    }
+
+    // Inserts the instructions at the end of the preheader, before its jump to the header if it has one.
+    // The labels of the jump then point to the first inserted instruction
+    public static void insertInPreheader(Method method, Instruction preheader, List<Instruction> inserted) {
+        if (inserted.isEmpty())
+            return;
+        List<Instruction> instructions = method.getInstructions();
+        int index = instructions.indexOf(preheader);
+        if (preheader.getInstType() != InstructionType.GOTO) {
+            instructions.addAll(index + 1, inserted);
+            return;
+        }
+
+        instructions.addAll(index, inserted);
+        method.getLabels().replaceAll((label, target) -> target == preheader ? inserted.get(0) : target);
+    }
+
+    // Instructions with a back edge to the header
+    public Set<Instruction> getLatches() {
+        return this.latches;
+    }
+
+    // Instructions of the loop with a successor out of it
+    public Set<Instruction> getExits() {
+        Set<Instruction> exits = new HashSet<>();
+        for (Instruction instruction : this.body)
+            for (Node successor : instruction.getSuccessors())
+                if (!this.body.contains(successor))
+                    exits.add(instruction);
+        return exits;
+    }
+}
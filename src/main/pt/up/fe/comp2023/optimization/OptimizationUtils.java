@@ -1,25 +1,11 @@
 package pt.up.fe.comp2023.optimization;
 
-import org.specs.comp.ollir.Descriptor;
-import org.specs.comp.ollir.Element;
-import org.specs.comp.ollir.Method;
-import org.specs.comp.ollir.Operand;
+import org.specs.comp.ollir.*;
 
 import java.util.*;
+import java.util.function.UnaryOperator;
 
 public class OptimizationUtils {
-    public static void intersectMaps (Map<String, String> map1, Map<String, String> map2, Map<String, String> result){
-        result.clear();
-
-        for (Map.Entry<String, String> entry : map1.entrySet()) {
-            String key = entry.getKey();
-            String value = entry.getValue();
-
-            if (map2.containsKey(key) && map2.get(key).equals(value))
-                result.put(key, value);
-        }
-    }
-
     public static <T> Set<T> differenceSets(Set<T> set1, Set<T> set2) {
         Set<T> result = new HashSet<>(set1);
         if(set2 != null)
@@ -73,4 +59,216 @@ public class OptimizationUtils {
     public static int numParams(Method method){
         return method.getParams().size();
     }
+
+    // OLLIR only appends edges, so the CFG of a rewritten method is built again from scratch
+    public static void buildCFG(Method method) {
+        List<Instruction> instructions = method.getInstructions();
+        for (Instruction instruction : instructions) {
+            instruction.getSuccessors().clear();
+            instruction.getPredecessors().clear();
+        }
+        method.buildCFG();
+
+        Node begin = method.getBeginNode();
+        Node end = method.getEndNode();
+        begin.getSuccessors().clear();
+        begin.getSuccessors().add(instructions.isEmpty() ? end : instructions.get(0));
+
+        // A return only leads to the end, not to the instruction after it
+        for (Instruction instruction : instructions) {
+            if (instruction.getInstType() != InstructionType.RETURN)
+                continue;
+            for (Node successor : instruction.getSuccessors())
+                successor.getPredecessors().remove(instruction);
+            instruction.getSuccessors().clear();
+            instruction.getSuccessors().add(end);
+        }
+
+        end.getPredecessors().clear();
+        if (instructions.isEmpty())
+            end.getPredecessors().add(begin);
+        for (Instruction instruction : instructions)
+            if (instruction.getSuccessors().contains(end))
+                end.getPredecessors().add(instruction);
+    }
+
+    // Replaces the instruction at the given index, keeping the labels that pointed to it
+    public static void replaceInstruction(Method method, int index, Instruction newInstruction) {
+        Instruction oldInstruction = method.getInstructions().set(index, newInstruction);
+        for (Map.Entry<String, Instruction> entry : method.getLabels().entrySet())
+            if (entry.getValue() == oldInstruction)
+                entry.setValue(newInstruction);
+    }
+
+    // Removes the instruction at the given index, moving its labels to the next one
+    public static void removeInstruction(Method method, int index) {
+        List<Instruction> instructions = method.getInstructions();
+        Instruction oldInstruction = instructions.remove(index);
+        Instruction next = index < instructions.size() ? instructions.get(index) : null;
+
+        Iterator<Map.Entry<String, Instruction>> iterator = method.getLabels().entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Instruction> entry = iterator.next();
+            if (entry.getValue() != oldInstruction)
+                continue;
+            if (next != null)
+                entry.setValue(next);
+            else
+                iterator.remove();
+        }
+    }
+
+    // Replaces the operands the instruction reads, except the objects of calls and fields, which cannot be set
+    public static void replaceOperands(Instruction instruction, UnaryOperator<Element> replacement) {
+        switch (instruction.getInstType()) {
+            case ASSIGN -> {
+                AssignInstruction assignInst = (AssignInstruction) instruction;
+                if (assignInst.getDest() instanceof ArrayOperand)
+                    replaceIndexOperands((ArrayOperand) assignInst.getDest(), replacement);
+                replaceOperands(assignInst.getRhs(), replacement);
+            }
+            case BRANCH -> replaceOperands(((CondBranchInstruction) instruction).getCondition(), replacement);
+            case NOPER -> {
+                SingleOpInstruction singleOpInst = (SingleOpInstruction) instruction;
+                if (singleOpInst.getSingleOperand() instanceof ArrayOperand)
+                    replaceIndexOperands((ArrayOperand) singleOpInst.getSingleOperand(), replacement);
+                else
+                    singleOpInst.setSingleOperand(replacement.apply(singleOpInst.getSingleOperand()));
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unaryOpInst = (UnaryOpInstruction) instruction;
+                unaryOpInst.setOperand(replacement.apply(unaryOpInst.getOperand()));
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) instruction;
+                binaryOpInst.setLeftOperand(replacement.apply(binaryOpInst.getLeftOperand()));
+                binaryOpInst.setRightOperand(replacement.apply(binaryOpInst.getRightOperand()));
+            }
+            case CALL -> {
+                List<Element> arguments = ((CallInstruction) instruction).getListOfOperands();
+                if (arguments != null)
+                    arguments.replaceAll(replacement);
+            }
+            case RETURN -> {
+                ReturnInstruction returnInst = (ReturnInstruction) instruction;
+                if (returnInst.hasReturnValue())
+                    returnInst.setOperand(replacement.apply(returnInst.getOperand()));
+            }
+            case PUTFIELD -> {
+                PutFieldInstruction putFieldInst = (PutFieldInstruction) instruction;
+                putFieldInst.setThirdOperand(replacement.apply(putFieldInst.getThirdOperand()));
+            }
+        }
+    }
+
+    // Operands the instruction reads, the arrays of array accesses and the objects of calls and fields included
+    public static List<Element> getReadOperands(Instruction instruction) {
+        List<Element> operands = new ArrayList<>();
+        replaceOperands(instruction, operand -> {
+            operands.add(operand);
+            return operand;
+        });
+
+        Instruction rhs = instruction.getInstType() == InstructionType.ASSIGN ? ((AssignInstruction) instruction).getRhs() : instruction;
+        if (instruction.getInstType() == InstructionType.ASSIGN && ((AssignInstruction) instruction).getDest() instanceof ArrayOperand)
+            operands.add(((AssignInstruction) instruction).getDest());
+        switch (rhs.getInstType()) {
+            case NOPER -> {
+                if (((SingleOpInstruction) rhs).getSingleOperand() instanceof ArrayOperand)
+                    operands.add(((SingleOpInstruction) rhs).getSingleOperand());
+            }
+            case CALL -> operands.add(((CallInstruction) rhs).getFirstArg());
+            case GETFIELD, PUTFIELD -> operands.add(((FieldInstruction) rhs).getFirstOperand());
+        }
+        return operands;
+    }
+
+    // A copy of the instruction with new operands, with the variables and labels renamed
+    public static Instruction copyInstruction(Instruction instruction, UnaryOperator<String> renameVar, UnaryOperator<String> renameLabel) {
+        switch (instruction.getInstType()) {
+            case ASSIGN -> {
+                AssignInstruction assignInst = (AssignInstruction) instruction;
+                Instruction rhs = copyInstruction(assignInst.getRhs(), renameVar, renameLabel);
+                return new AssignInstruction(copyElement(assignInst.getDest(), renameVar), assignInst.getTypeOfAssign(), rhs);
+            }
+            case NOPER -> {
+                return new SingleOpInstruction(copyElement(((SingleOpInstruction) instruction).getSingleOperand(), renameVar));
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unaryOpInst = (UnaryOpInstruction) instruction;
+                return new UnaryOpInstruction(copyOperation(unaryOpInst.getOperation()), copyElement(unaryOpInst.getOperand(), renameVar));
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) instruction;
+                return new BinaryOpInstruction(copyElement(binaryOpInst.getLeftOperand(), renameVar),
+                        copyOperation(binaryOpInst.getOperation()), copyElement(binaryOpInst.getRightOperand(), renameVar));
+            }
+            // The field operands are names of fields, not variables
+            case GETFIELD -> {
+                GetFieldInstruction getFieldInst = (GetFieldInstruction) instruction;
+                return new GetFieldInstruction(copyElement(getFieldInst.getFirstOperand(), renameVar),
+                        getFieldInst.getSecondOperand(), getFieldInst.getFieldType());
+            }
+            case PUTFIELD -> {
+                PutFieldInstruction putFieldInst = (PutFieldInstruction) instruction;
+                return new PutFieldInstruction(copyElement(putFieldInst.getFirstOperand(), renameVar), putFieldInst.getSecondOperand(),
+                        copyElement(putFieldInst.getThirdOperand(), renameVar), putFieldInst.getFieldType());
+            }
+            case CALL -> {
+                CallInstruction callInst = (CallInstruction) instruction;
+                ArrayList<Element> arguments = new ArrayList<>();
+                if (callInst.getListOfOperands() != null)
+                    for (Element argument : callInst.getListOfOperands())
+                        arguments.add(copyElement(argument, renameVar));
+                return new CallInstruction(callInst.getInvocationType(), copyElement(callInst.getFirstArg(), renameVar),
+                        callInst.getSecondArg(), arguments, callInst.getReturnType());
+            }
+            case BRANCH -> {
+                CondBranchInstruction branchInst = (CondBranchInstruction) instruction;
+                Instruction condition = copyInstruction(branchInst.getCondition(), renameVar, renameLabel);
+                CondBranchInstruction copy = condition.getInstType() == InstructionType.NOPER
+                        ? new SingleOpCondInstruction((SingleOpInstruction) condition)
+                        : new OpCondInstruction((OpInstruction) condition);
+                copy.setLabel(renameLabel.apply(branchInst.getLabel()));
+                return copy;
+            }
+            case GOTO -> {
+                return new GotoInstruction(renameLabel.apply(((GotoInstruction) instruction).getLabel()));
+            }
+            case RETURN -> {
+                ReturnInstruction returnInst = (ReturnInstruction) instruction;
+                ReturnInstruction copy = returnInst.hasReturnValue()
+                        ? new ReturnInstruction(copyElement(returnInst.getOperand(), renameVar))
+                        : new ReturnInstruction();
+                copy.setReturnType(returnInst.getReturnType());
+                return copy;
+            }
+            default -> throw new IllegalArgumentException("Cannot copy instruction " + instruction.getInstType());
+        }
+    }
+
+    public static Operation copyOperation(Operation operation) {
+        return new Operation(operation.getOpType(), operation.getTypeInfo());
+    }
+
+    // Class names and "this" are only renamed if renameVar renames them
+    public static Element copyElement(Element element, UnaryOperator<String> renameVar) {
+        if (element == null)
+            return null;
+        if (element.isLiteral())
+            return new LiteralElement(((LiteralElement) element).getLiteral(), element.getType());
+
+        String newName = renameVar.apply(((Operand) element).getName());
+        if (element instanceof ArrayOperand) {
+            List<Element> indexes = new ArrayList<>();
+            for (Element index : ((ArrayOperand) element).getIndexOperands())
+                indexes.add(copyElement(index, renameVar));
+            return new ArrayOperand(newName, element.getType(), indexes);
+        }
+        return new Operand(newName, element.getType());
+    }
+
+    private static void replaceIndexOperands(ArrayOperand array, UnaryOperator<Element> replacement) {
+        array.getIndexOperands().replaceAll(replacement);
+    }
 }
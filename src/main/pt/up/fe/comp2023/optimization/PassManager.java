@@ -0,0 +1,313 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.ClassUnit;
+import org.specs.comp.ollir.Instruction;
+import org.specs.comp.ollir.Method;
+import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+import java.util.function.Function;
+
+/*
+ * Runs the optimization passes of a level, from "optimizationLevel" (0 to 3, with -o being level 2), or the passes
+ * listed in "passes", in order.
+ * A pass runs on the AST, on the OLLIR class or on each OLLIR method. Passes declare the passes they depend on, which
+ * run before them when a custom list misses them. Once a pass changes a method, the analyses cached for it are dropped,
+ * except the ones the pass preserves: the analyses are built over the instructions of the method, so a pass can only
+ * preserve them by rewriting the operands of instructions in place. Any pass that replaces, removes or inserts
+ * instructions or labels drops them all.
+ * Each pass reports what it did along with its time and how many nodes or instructions it added or removed.
+ */
+public class PassManager {
+    private static final int DEFAULT_LEVEL = 2;
+    private static final List<List<String>> LEVELS = List.of(
+            List.of(),
+            List.of("constant-propagation", "dead-branch-elimination", "conditional-constant-propagation",
+                    "unreachable-code-elimination", "copy-propagation", "dead-store-elimination"),
+            List.of("constant-propagation", "dead-branch-elimination", "inlining", "tail-recursion-elimination",
+                    "conditional-constant-propagation", "unreachable-code-elimination", "loop-invariant-code-motion",
+                    "value-numbering", "copy-propagation", "strength-reduction", "copy-propagation", "dead-store-elimination"),
+            // The code left by strength reduction and the other loop passes is cleaned up once more
+            List.of("constant-propagation", "dead-branch-elimination", "inlining", "tail-recursion-elimination",
+                    "conditional-constant-propagation", "unreachable-code-elimination", "loop-invariant-code-motion",
+                    "global-value-numbering", "copy-propagation", "strength-reduction", "conditional-constant-propagation",
+                    "unreachable-code-elimination", "global-value-numbering", "copy-propagation", "dead-store-elimination")
+    );
+
+    // The analyses built on the control-flow graph, which a pass that only rewrites operands leaves unchanged
+    private static final Set<Class<?>> CFG_ANALYSES = Set.of(DominatorTree.class, LoopNest.class);
+
+    private enum Kind { AST, CLASS, METHOD }
+
+    private static class Pass<T> {
+        private final String name;
+        private final Kind kind;
+        private final List<String> dependencies;
+        // The analyses that stay valid when the pass changes a method without changing its instructions or labels
+        private final Set<Class<?>> preserved;
+        // The counts of what the pass did, which are added up over the methods, and the report made of them
+        private final Function<T, int[]> run;
+        private final Function<int[], String> describe;
+
+        private Pass(String name, Kind kind, List<String> dependencies, Set<Class<?>> preserved, Function<T, int[]> run,
+                     Function<int[], String> describe) {
+            this.name = name;
+            this.kind = kind;
+            this.dependencies = dependencies;
+            this.preserved = preserved;
+            this.run = run;
+            this.describe = describe;
+        }
+    }
+
+    // Thrown by a pass that leaves a method the next passes cannot work on, which stops the pipeline with an error
+    public static class PassFailedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public PassFailedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Map<String, Pass<?>> passes = new LinkedHashMap<>();
+    private final List<String> pipeline = new ArrayList<>();
+    private final AnalysisCache analyses = new AnalysisCache();
+    private final boolean globalValueNumbering;
+
+    // Unknown levels and passes throw an IllegalArgumentException. The dependencies added to a custom list are reported
+    // once: both optimization stages build a pass manager, and the reports of the AST carry over to the OLLIR result
+    public PassManager(Map<String, String> config, List<Report> reports) {
+        this.globalValueNumbering = config.getOrDefault("valueNumbering", "local").equals("global");
+        registerPasses();
+
+        String passList = config.getOrDefault("passes", "");
+        if (!passList.isBlank()) {
+            List<String> addedDependencies = new ArrayList<>();
+            for (String name : passList.split(","))
+                addPass(name.trim(), new HashSet<>(), addedDependencies);
+            for (String dependency : addedDependencies) {
+                Report report = new Report(ReportType.LOG, Stage.OPTIMIZATION, -1, -1, "Pass manager added " + dependency + ".");
+                if (reports.stream().noneMatch(other -> other.getMessage().equals(report.getMessage())))
+                    reports.add(report);
+            }
+            return;
+        }
+        int level = Boolean.parseBoolean(config.get("optimize")) ? DEFAULT_LEVEL : 0;
+        level = Integer.parseInt(config.getOrDefault("optimizationLevel", Integer.toString(level)));
+        if (level < 0 || level >= LEVELS.size())
+            throw new IllegalArgumentException("Unknown optimization level " + level + ", expected 0 to " + (LEVELS.size() - 1) + ".");
+        this.pipeline.addAll(LEVELS.get(level));
+    }
+
+    private void registerPasses() {
+        register(new Pass<JmmSemanticsResult>("constant-propagation", Kind.AST, List.of(), Set.of(),
+                semanticsResult -> {
+                    ConstantPropagation constantPropagation = new ConstantPropagation(semanticsResult);
+                    constantPropagation.apply();
+                    return new int[]{constantPropagation.getVisitedNodes()};
+                },
+                counts -> "Constant propagation visited " + counts[0] + " nodes."));
+        // Removing a dead branch also removes its definitions, which may turn more variables into constants
+        register(new Pass<JmmSemanticsResult>("dead-branch-elimination", Kind.AST, List.of("constant-propagation"), Set.of(),
+                semanticsResult -> {
+                    ConstantPropagation constantPropagation = new ConstantPropagation(semanticsResult);
+                    DeadBranchElimination deadBranchElimination = new DeadBranchElimination(semanticsResult);
+                    while (deadBranchElimination.apply())
+                        constantPropagation.apply();
+                    return new int[]{deadBranchElimination.getRemovedStatements()};
+                },
+                counts -> "Dead branch elimination removed " + counts[0] + " statements."));
+
+        register(new Pass<ClassUnit>("inlining", Kind.CLASS, List.of(), Set.of(),
+                classUnit -> new int[]{new Inliner(classUnit).getInlinedCalls()},
+                counts -> "Inlining inlined " + counts[0] + " calls."));
+        register(new Pass<Method>("tail-recursion-elimination", Kind.METHOD, List.of(), Set.of(),
+                method -> new int[]{new TailRecursionElimination(method).getEliminatedCalls()},
+                counts -> "Tail recursion elimination turned " + counts[0] + " calls into jumps."));
+        register(new Pass<Method>("conditional-constant-propagation", Kind.METHOD, List.of(), CFG_ANALYSES,
+                method -> {
+                    ConditionalConstantPropagation propagation = new ConditionalConstantPropagation(method);
+                    return new int[]{propagation.getFoldedInstructions(), propagation.getRemovedInstructions()};
+                },
+                counts -> "Conditional constant propagation folded " + counts[0] + " instructions and removed " + counts[1] + " unreachable ones."));
+        register(new Pass<Method>("unreachable-code-elimination", Kind.METHOD, List.of("conditional-constant-propagation"), Set.of(),
+                method -> new int[]{new UnreachableCodeElimination(method).getRemovedInstructions()},
+                counts -> "Unreachable code elimination removed " + counts[0] + " instructions."));
+        register(new Pass<Method>("loop-invariant-code-motion", Kind.METHOD, List.of(), Set.of(),
+                method -> new int[]{new LoopInvariantCodeMotion(method, this.analyses).getHoistedInstructions()},
+                counts -> "Loop invariant code motion hoisted " + counts[0] + " instructions."));
+        register(new Pass<Method>("value-numbering", Kind.METHOD, List.of(), Set.of(),
+                method -> new int[]{new ValueNumbering(method, this.globalValueNumbering, this.analyses).getRedundantExpressions()},
+                counts -> (this.globalValueNumbering ? "Global" : "Local") + " value numbering removed " + counts[0] + " redundant expressions."));
+        register(new Pass<Method>("global-value-numbering", Kind.METHOD, List.of(), Set.of(),
+                method -> new int[]{new ValueNumbering(method, true, this.analyses).getRedundantExpressions()},
+                counts -> "Global value numbering removed " + counts[0] + " redundant expressions."));
+        register(new Pass<Method>("copy-propagation", Kind.METHOD, List.of(), CFG_ANALYSES,
+                method -> {
+                    CopyPropagation copyPropagation = new CopyPropagation(method);
+                    return new int[]{copyPropagation.getCoalescedTemporaries(), copyPropagation.getPropagatedCopies()};
+                },
+                counts -> "Copy propagation coalesced " + counts[0] + " temporaries and propagated " + counts[1] + " copies."));
+        register(new Pass<Method>("strength-reduction", Kind.METHOD, List.of(), Set.of(),
+                method -> {
+                    StrengthReduction strengthReduction = new StrengthReduction(method, this.analyses);
+                    return new int[]{strengthReduction.getReducedMultiplications(), strengthReduction.getRemovedInductionVariables(), strengthReduction.getShifts()};
+                },
+                counts -> "Strength reduction reduced " + counts[0] + " multiplications of induction variables, removed " + counts[1] + " induction variables and made " + counts[2] + " shifts."));
+        // Only in custom lists, as the SSA form is not used by the other passes yet
+        register(new Pass<Method>("ssa", Kind.METHOD, List.of(), Set.of(),
+                method -> {
+                    SsaForm ssaForm = new SsaForm(method, this.analyses);
+                    List<String> problems = ssaForm.verify();
+                    if (!problems.isEmpty())
+                        throw new PassFailedException("Invalid SSA form of method " + method.getMethodName() + ": " + problems + ".");
+                    ssaForm.destruct();
+                    return new int[]{ssaForm.getPlacedPhis(), ssaForm.getInsertedCopies(), ssaForm.getCoalescedCopies()};
+                },
+                counts -> "SSA construction placed " + counts[0] + " phis, which became " + counts[1] + " copies, and coalesced " + counts[2] + " copies."));
+        // The copies left by the other passes are only removed once copy propagation leaves them dead
+        register(new Pass<Method>("dead-store-elimination", Kind.METHOD, List.of("copy-propagation"), Set.of(),
+                method -> new int[]{new DeadStoreElimination(method).getRemovedInstructions()},
+                counts -> "Dead store elimination removed " + counts[0] + " instructions."));
+    }
+
+    private void register(Pass<?> pass) {
+        this.passes.put(pass.name, pass);
+    }
+
+    // Adds the dependencies missing from the pipeline before the pass itself
+    private void addPass(String name, Set<String> adding, List<String> addedDependencies) {
+        Pass<?> pass = this.passes.get(name);
+        if (pass == null)
+            throw new IllegalArgumentException("Unknown optimization pass '" + name + "', expected one of " + this.passes.keySet() + ".");
+        if (!adding.add(name))
+            throw new IllegalArgumentException("The optimization pass '" + name + "' depends on itself.");
+
+        for (String dependency : pass.dependencies) {
+            if (this.pipeline.contains(dependency))
+                continue;
+            addPass(dependency, adding, addedDependencies);
+            addedDependencies.add(dependency + " before " + name);
+        }
+        this.pipeline.add(name);
+        adding.remove(name);
+    }
+
+    public List<String> getPipeline() {
+        return this.pipeline;
+    }
+
+    public boolean hasAstPasses() {
+        return this.pipeline.stream().anyMatch(name -> this.passes.get(name).kind == Kind.AST);
+    }
+
+    public boolean hasOllirPasses() {
+        return this.pipeline.stream().anyMatch(name -> this.passes.get(name).kind != Kind.AST);
+    }
+
+    // A pass may rewrite instructions without counting it, so the instructions and labels are compared too
+    private void invalidate(Method method, Pass<?> pass, int[] counts, List<Instruction> instructions, Map<String, Instruction> labels) {
+        boolean rewritten = !labels.equals(method.getLabels()) || instructions.size() != method.getInstructions().size();
+        for (int i = 0; i < instructions.size() && !rewritten; i++)
+            rewritten = instructions.get(i) != method.getInstructions().get(i);
+        if (rewritten)
+            this.analyses.invalidate(method, Set.of());
+        else if (Arrays.stream(counts).anyMatch(count -> count != 0))
+            this.analyses.invalidate(method, pass.preserved);
+    }
+
+    // The reports are added as each pass finishes, so the ones that ran are reported even if the stage is cancelled
+    @SuppressWarnings("unchecked")
+    public void optimize(JmmSemanticsResult semanticsResult) {
+        for (String name : this.pipeline) {
+            Pass<?> pass = this.passes.get(name);
+            if (pass.kind != Kind.AST)
+                continue;
+
+            CancellationToken.current().check();
+            int sizeBefore = countNodes(semanticsResult.getRootNode());
+            long start = System.nanoTime();
+            int[] counts = ((Pass<JmmSemanticsResult>) pass).run.apply(semanticsResult);
+            long time = System.nanoTime() - start;
+            report(semanticsResult.getReports(), pass, counts, time, sizeBefore, countNodes(semanticsResult.getRootNode()), "nodes");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void optimize(OllirResult ollirResult) {
+        ClassUnit classUnit = ollirResult.getOllirClass();
+        for (String name : this.pipeline) {
+            Pass<?> pass = this.passes.get(name);
+            if (pass.kind == Kind.AST)
+                continue;
+
+            CancellationToken.current().check();
+            int sizeBefore = countInstructions(classUnit);
+            long start = System.nanoTime();
+            int[] counts;
+            try {
+                if (pass.kind == Kind.CLASS) {
+                    Map<Method, List<Instruction>> instructions = new HashMap<>();
+                    Map<Method, Map<String, Instruction>> labels = new HashMap<>();
+                    for (Method method : classUnit.getMethods()) {
+                        instructions.put(method, new ArrayList<>(method.getInstructions()));
+                        labels.put(method, new HashMap<>(method.getLabels()));
+                    }
+                    counts = ((Pass<ClassUnit>) pass).run.apply(classUnit);
+                    for (Method method : classUnit.getMethods())
+                        invalidate(method, pass, counts, instructions.get(method), labels.get(method));
+                }
+                else {
+                    counts = null;
+                    for (Method method : classUnit.getMethods()) {
+                        List<Instruction> instructions = new ArrayList<>(method.getInstructions());
+                        Map<String, Instruction> labels = new HashMap<>(method.getLabels());
+                        int[] methodCounts = ((Pass<Method>) pass).run.apply(method);
+                        invalidate(method, pass, methodCounts, instructions, labels);
+                        counts = counts == null ? methodCounts : add(counts, methodCounts);
+                    }
+                }
+            } catch (PassFailedException e) {
+                ollirResult.getReports().add(new Report(ReportType.ERROR, Stage.OPTIMIZATION, -1, -1, e.getMessage()));
+                return;
+            }
+            if (counts == null)
+                continue;
+            long time = System.nanoTime() - start;
+            report(ollirResult.getReports(), pass, counts, time, sizeBefore, countInstructions(classUnit), "instructions");
+        }
+    }
+
+    private static int[] add(int[] counts, int[] moreCounts) {
+        int[] result = counts.clone();
+        for (int i = 0; i < result.length; i++)
+            result[i] += moreCounts[i];
+        return result;
+    }
+
+    private static void report(List<Report> reports, Pass<?> pass, int[] counts, long time, int sizeBefore, int sizeAfter, String unit) {
+        String message = pass.describe.apply(counts) + String.format(Locale.ROOT, " [%s: %.2f ms, %d -> %d %s]",
+                pass.name, time / 1e6, sizeBefore, sizeAfter, unit);
+        reports.add(new Report(ReportType.LOG, Stage.OPTIMIZATION, -1, -1, message));
+    }
+
+    private static int countNodes(JmmNode jmmNode) {
+        int count = 1;
+        for (JmmNode child : jmmNode.getChildren())
+            count += countNodes(child);
+        return count;
+    }
+
+    private static int countInstructions(ClassUnit classUnit) {
+        int count = 0;
+        for (Method method : classUnit.getMethods())
+            count += method.getInstructions().size();
+        return count;
+    }
+}
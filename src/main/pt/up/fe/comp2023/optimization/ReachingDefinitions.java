@@ -0,0 +1,88 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * The assignments of an OLLIR method that may be the last one of their variable when each instruction is reached.
+ * Parameters that are never assigned have no definitions.
+ */
+public class ReachingDefinitions {
+    private final Method method;
+    private final Map<Instruction, String> definedVars = new HashMap<>();
+    private final Map<Node, Set<Instruction>> in = new HashMap<>();
+    private final Map<Node, Set<Instruction>> out = new HashMap<>();
+
+    public ReachingDefinitions(Method method) {
+        this.method = method;
+
+        buildCFG(this.method);
+        for (Instruction instruction : this.method.getInstructions()) {
+            String definedVar = getDefinedVar(instruction);
+            if (definedVar != null)
+                this.definedVars.put(instruction, definedVar);
+        }
+        computeReachingInOut();
+    }
+
+    // Name of the variable the instruction assigns, or null if it assigns none
+    public static String getDefinedVar(Instruction instruction) {
+        if (instruction.getInstType() != ASSIGN || ((AssignInstruction) instruction).getDest() instanceof ArrayOperand)
+            return null;
+        return toVarName(((AssignInstruction) instruction).getDest());
+    }
+
+    // Assignments to the variable that reach the instruction
+    public Set<Instruction> getReachingDefinitions(Instruction instruction, String varName) {
+        Set<Instruction> result = new HashSet<>();
+        for (Instruction definition : this.in.getOrDefault(instruction, Set.of()))
+            if (this.definedVars.get(definition).equals(varName))
+                result.add(definition);
+        return result;
+    }
+
+    public Set<Instruction> getReachingIn(Instruction instruction) {
+        return this.in.get(instruction);
+    }
+
+    public Set<Instruction> getReachingOut(Instruction instruction) {
+        return this.out.get(instruction);
+    }
+
+    private void computeReachingInOut() {
+        for (Instruction instruction : this.method.getInstructions()) {
+            this.in.put(instruction, new HashSet<>());
+            this.out.put(instruction, new HashSet<>());
+        }
+
+        CancellationToken token = CancellationToken.current();
+        boolean changed;
+        do {
+            changed = false;
+            for (Instruction instruction : this.method.getInstructions()) {
+                token.poll();
+                Set<Instruction> newIn = new HashSet<>();
+                for (Node predecessor : instruction.getPredecessors())
+                    newIn.addAll(this.out.getOrDefault(predecessor, Set.of()));
+
+                // An assignment kills the other assignments to its variable
+                Set<Instruction> newOut = new HashSet<>(newIn);
+                String definedVar = this.definedVars.get(instruction);
+                if (definedVar != null) {
+                    newOut.removeIf(definition -> this.definedVars.get(definition).equals(definedVar));
+                    newOut.add(instruction);
+                }
+
+                if (!newIn.equals(this.in.get(instruction)) || !newOut.equals(this.out.get(instruction)))
+                    changed = true;
+                this.in.put(instruction, newIn);
+                this.out.put(instruction, newOut);
+            }
+        } while (changed);
+    }
+}
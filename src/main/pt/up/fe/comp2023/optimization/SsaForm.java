@@ -0,0 +1,629 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Static single assignment form of an OLLIR method, where every variable is assigned once.
+ * Phis are placed on the iterated dominance frontiers of the assignments of each variable, and the variables are
+ * renamed over the dominator tree. The original name of a variable is its value on entry, so parameters keep their
+ * names until they are assigned. OLLIR has no phi instruction, so the phis are kept aside, by the instruction they
+ * come before, and the phis whose value is never read are dropped.
+ * Going out of SSA, each phi becomes copies on the edges into its instruction, with a new block for the edges of
+ * branches to it. The copies of an edge are done in parallel, through a temporary when they form a cycle. The
+ * versions of a variable whose values are never live at the same time are then coalesced back into a single name.
+ */
+public class SsaForm {
+    public static class Phi {
+        private final String variable;
+        private String dest;
+        // By predecessor, the begin node included
+        private final Map<Node, String> arguments = new LinkedHashMap<>();
+
+        private Phi(String variable) {
+            this.variable = variable;
+            this.dest = variable;
+        }
+
+        public String getVariable() {
+            return this.variable;
+        }
+
+        public String getDest() {
+            return this.dest;
+        }
+
+        public Map<Node, String> getArguments() {
+            return this.arguments;
+        }
+
+        @Override
+        public String toString() {
+            return this.dest + " := phi" + this.arguments.values();
+        }
+    }
+
+    private final Method method;
+    private final AnalysisCache analyses;
+    private final DominatorTree dominatorTree;
+    private final Set<String> variables = new HashSet<>();
+    private final Map<String, String> originals = new HashMap<>();
+    private final Map<Instruction, List<Phi>> phis = new HashMap<>();
+    private int placedPhis = 0;
+    private int insertedCopies = 0;
+    private int coalescedCopies = 0;
+    private final Map<String, String> edgeLabels = new HashMap<>();
+    private int nextRegister = -1;
+
+    public SsaForm(Method method) {
+        this(method, new AnalysisCache());
+    }
+
+    public SsaForm(Method method, AnalysisCache analyses) {
+        this.method = method;
+        this.analyses = analyses;
+        this.dominatorTree = this.analyses.getDominatorTree(this.method);
+
+        for (Map.Entry<String, Descriptor> entry : this.method.getVarTable().entrySet()) {
+            VarScope scope = entry.getValue().getScope();
+            if (!entry.getKey().equals("this") && (scope == VarScope.LOCAL || scope == VarScope.PARAMETER)) {
+                this.variables.add(entry.getKey());
+                this.originals.put(entry.getKey(), entry.getKey());
+            }
+        }
+        placePhis();
+        rename();
+        removeDeadPhis();
+    }
+
+    public Map<Instruction, List<Phi>> getPhis() {
+        return this.phis;
+    }
+
+    public int getPlacedPhis() {
+        return this.placedPhis;
+    }
+
+    // The variable a version was renamed from
+    public String getOriginal(String version) {
+        return this.originals.get(version);
+    }
+
+    public int getInsertedCopies() {
+        return this.insertedCopies;
+    }
+
+    public int getCoalescedCopies() {
+        return this.coalescedCopies;
+    }
+
+    private void placePhis() {
+        Map<String, List<Node>> definitions = new HashMap<>();
+        for (Node node : this.dominatorTree.getReversePostorder()) {
+            String definedVar = node.getNodeType() == NodeType.INSTRUCTION ? ReachingDefinitions.getDefinedVar((Instruction) node) : null;
+            if (definedVar != null && this.variables.contains(definedVar))
+                definitions.computeIfAbsent(definedVar, key -> new ArrayList<>()).add(node);
+        }
+
+        CancellationToken token = CancellationToken.current();
+        for (Map.Entry<String, List<Node>> entry : definitions.entrySet()) {
+            Set<Node> placed = new HashSet<>();
+            Deque<Node> worklist = new ArrayDeque<>(entry.getValue());
+            while (!worklist.isEmpty()) {
+                token.poll();
+                for (Node frontier : this.dominatorTree.getDominanceFrontier(worklist.pop())) {
+                    if (!placed.add(frontier))
+                        continue;
+                    this.phis.computeIfAbsent((Instruction) frontier, key -> new ArrayList<>()).add(new Phi(entry.getKey()));
+                    this.placedPhis++;
+                    worklist.push(frontier);
+                }
+            }
+        }
+    }
+
+    private String newVersion(String variable) {
+        HashMap<String, Descriptor> varTable = this.method.getVarTable();
+        if (this.nextRegister < 0)
+            for (Descriptor descriptor : varTable.values())
+                this.nextRegister = Math.max(this.nextRegister, descriptor.getVirtualReg() + 1);
+
+        int register = this.nextRegister++;
+        String name = variable + "_v" + register;
+        for (int i = 0; varTable.containsKey(name); i++)
+            name = variable + "_v" + register + "_" + i;
+        varTable.put(name, new Descriptor(VarScope.LOCAL, register, varTable.get(variable).getVarType()));
+        this.originals.put(name, this.originals.get(variable));
+        return name;
+    }
+
+    // Depth-first over the dominator tree, without recursion as methods may be long
+    private void rename() {
+        Map<String, Deque<String>> stacks = new HashMap<>();
+        for (String variable : this.variables)
+            stacks.put(variable, new ArrayDeque<>(List.of(variable)));
+        Map<Node, Instruction> renamed = new HashMap<>();
+        Map<Instruction, Integer> positions = new HashMap<>();
+        for (Instruction instruction : this.method.getInstructions())
+            positions.put(instruction, positions.size());
+
+        // A null node marks the end of the subtree of the node before it
+        Deque<Node> nodes = new LinkedList<>();
+        Deque<List<String>> pushed = new ArrayDeque<>();
+        nodes.push(this.dominatorTree.getRoot());
+        while (!nodes.isEmpty()) {
+            CancellationToken.current().poll();
+            Node node = nodes.pop();
+            if (node == null) {
+                for (String variable : pushed.pop())
+                    stacks.get(variable).pop();
+                continue;
+            }
+
+            List<String> definedVars = new ArrayList<>();
+            for (Phi phi : this.phis.getOrDefault(node, List.of())) {
+                phi.dest = newVersion(phi.variable);
+                stacks.get(phi.variable).push(phi.dest);
+                definedVars.add(phi.variable);
+            }
+            if (node.getNodeType() == NodeType.INSTRUCTION) {
+                Instruction instruction = (Instruction) node;
+                Instruction copy = copyInstruction(instruction, name -> stacks.containsKey(name) ? stacks.get(name).peek() : name, label -> label);
+                String definedVar = ReachingDefinitions.getDefinedVar(instruction);
+                if (definedVar != null && this.variables.contains(definedVar)) {
+                    AssignInstruction assignInst = (AssignInstruction) copy;
+                    String version = newVersion(definedVar);
+                    stacks.get(definedVar).push(version);
+                    definedVars.add(definedVar);
+                    copy = new AssignInstruction(new Operand(version, assignInst.getDest().getType()), assignInst.getTypeOfAssign(), assignInst.getRhs());
+                }
+                this.method.getInstructions().set(positions.get(instruction), copy);
+                renamed.put(instruction, copy);
+            }
+
+            for (Node successor : node.getSuccessors())
+                for (Phi phi : this.phis.getOrDefault(successor, List.of()))
+                    phi.arguments.put(node, stacks.get(phi.variable).peek());
+
+            nodes.push(null);
+            pushed.push(definedVars);
+            List<Node> children = this.dominatorTree.getChildren(node);
+            for (int i = children.size() - 1; i >= 0; i--)
+                nodes.push(children.get(i));
+        }
+
+        // The labels, phis and their arguments now refer to the renamed instructions
+        this.method.getLabels().replaceAll((label, instruction) -> renamed.containsKey(instruction) ? renamed.get(instruction) : instruction);
+        Map<Instruction, List<Phi>> renamedPhis = new HashMap<>();
+        for (Map.Entry<Instruction, List<Phi>> entry : this.phis.entrySet()) {
+            for (Phi phi : entry.getValue()) {
+                Map<Node, String> arguments = new LinkedHashMap<>(phi.arguments);
+                phi.arguments.clear();
+                arguments.forEach((predecessor, argument) -> phi.arguments.put(renamed.containsKey(predecessor) ? renamed.get(predecessor) : predecessor, argument));
+            }
+            renamedPhis.put(renamed.get(entry.getKey()), entry.getValue());
+        }
+        this.phis.clear();
+        this.phis.putAll(renamedPhis);
+        buildCFG(this.method);
+        this.analyses.invalidate(this.method);
+    }
+
+    // Phis whose value is only read by dead phis are dead too
+    private void removeDeadPhis() {
+        Set<String> read = new HashSet<>();
+        for (Instruction instruction : this.method.getInstructions())
+            for (Element operand : getReadOperands(instruction))
+                if (!operand.isLiteral())
+                    read.add(toVarName(operand));
+
+        Map<String, Phi> phiByDest = new HashMap<>();
+        for (List<Phi> blockPhis : this.phis.values())
+            for (Phi phi : blockPhis)
+                phiByDest.put(phi.dest, phi);
+        Set<Phi> live = new HashSet<>();
+        Deque<Phi> worklist = new ArrayDeque<>();
+        for (String name : read)
+            if (phiByDest.containsKey(name) && live.add(phiByDest.get(name)))
+                worklist.push(phiByDest.get(name));
+        while (!worklist.isEmpty())
+            for (String argument : worklist.pop().arguments.values())
+                if (phiByDest.containsKey(argument) && live.add(phiByDest.get(argument)))
+                    worklist.push(phiByDest.get(argument));
+
+        for (Iterator<List<Phi>> iterator = this.phis.values().iterator(); iterator.hasNext(); ) {
+            List<Phi> blockPhis = iterator.next();
+            for (Phi phi : blockPhis)
+                if (!live.contains(phi))
+                    this.method.getVarTable().remove(phi.dest);
+            blockPhis.retainAll(live);
+            if (blockPhis.isEmpty())
+                iterator.remove();
+        }
+        this.placedPhis = live.size();
+    }
+
+    // Problems with the SSA form, empty if every variable is assigned once and every use is dominated by its definition
+    public List<String> verify() {
+        List<String> problems = new ArrayList<>();
+        DominatorTree dominatorTree = this.analyses.getDominatorTree(this.method);
+
+        // A definition is an instruction, or the instruction a phi comes before, or null for the values on entry
+        Map<String, Instruction> definitions = new HashMap<>();
+        Set<String> phiDests = new HashSet<>();
+        for (Map.Entry<Instruction, List<Phi>> entry : this.phis.entrySet()) {
+            for (Phi phi : entry.getValue()) {
+                if (definitions.put(phi.dest, entry.getKey()) != null || !phiDests.add(phi.dest))
+                    problems.add(phi.dest + " is assigned more than once");
+                Set<Node> predecessors = new HashSet<>();
+                for (Node predecessor : entry.getKey().getPredecessors())
+                    if (dominatorTree.isReachable(predecessor))
+                        predecessors.add(predecessor);
+                if (!predecessors.equals(phi.arguments.keySet()))
+                    problems.add("The phi of " + phi.dest + " does not have one argument for each predecessor");
+            }
+        }
+        // Unreachable instructions are not renamed, like in rename()
+        for (Instruction instruction : this.method.getInstructions()) {
+            if (!dominatorTree.isReachable(instruction))
+                continue;
+            String definedVar = ReachingDefinitions.getDefinedVar(instruction);
+            if (definedVar == null || !this.originals.containsKey(definedVar))
+                continue;
+            if (definedVar.equals(this.originals.get(definedVar)) || definitions.containsKey(definedVar) || phiDests.contains(definedVar))
+                problems.add(definedVar + " is assigned more than once");
+            definitions.put(definedVar, instruction);
+        }
+
+        for (Instruction instruction : this.method.getInstructions()) {
+            if (!dominatorTree.isReachable(instruction))
+                continue;
+            for (Element operand : getReadOperands(instruction)) {
+                if (operand.isLiteral() || !definitions.containsKey(toVarName(operand)))
+                    continue;
+                Instruction definition = definitions.get(toVarName(operand));
+                boolean isPhi = phiDests.contains(toVarName(operand));
+                if (isPhi ? !dominatorTree.dominates(definition, instruction) : definition == instruction || !dominatorTree.dominates(definition, instruction))
+                    problems.add(toVarName(operand) + " is read where its definition does not dominate");
+            }
+        }
+        for (List<Phi> blockPhis : this.phis.values())
+            for (Phi phi : blockPhis)
+                phi.arguments.forEach((predecessor, argument) -> {
+                    Instruction definition = definitions.get(argument);
+                    if (definition != null && !dominatorTree.dominates(definition, predecessor))
+                        problems.add(argument + " reaches the phi of " + phi.dest + " where its definition does not dominate");
+                });
+        return problems;
+    }
+
+    // Replaces the phis by copies and coalesces the versions of each variable
+    public void destruct() {
+        List<Instruction> instructions = this.method.getInstructions();
+        Set<Instruction> fallsThroughToTarget = new HashSet<>();
+        for (int i = 0; i + 1 < instructions.size(); i++) {
+            Instruction instruction = instructions.get(i);
+            if (instruction.getInstType() == BRANCH && this.method.getLabels().get(((CondBranchInstruction) instruction).getLabel()) == instructions.get(i + 1))
+                fallsThroughToTarget.add(instruction);
+        }
+
+        for (Map.Entry<Instruction, List<Phi>> entry : this.phis.entrySet()) {
+            Instruction target = entry.getKey();
+            Map<Node, List<String[]>> edgeCopies = new LinkedHashMap<>();
+            for (Phi phi : entry.getValue())
+                phi.arguments.forEach((predecessor, argument) ->
+                        edgeCopies.computeIfAbsent(predecessor, key -> new ArrayList<>()).add(new String[]{phi.dest, argument}));
+            edgeCopies.forEach((predecessor, copies) -> insertCopies(predecessor, target, sequentialize(copies), fallsThroughToTarget));
+        }
+        this.phis.clear();
+        buildCFG(this.method);
+        coalesce();
+        removeEmptyEdgeBlocks();
+        renumberVersions();
+        buildCFG(this.method);
+        this.analyses.invalidate(this.method);
+    }
+
+    // Orders the parallel copies "dest := source" so that no source is overwritten before it is read
+    private List<Instruction> sequentialize(List<String[]> copies) {
+        List<String[]> pending = new ArrayList<>();
+        for (String[] copy : copies)
+            if (!copy[0].equals(copy[1]))
+                pending.add(copy.clone());
+
+        List<Instruction> result = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            String[] ready = null;
+            for (String[] copy : pending) {
+                boolean isRead = false;
+                for (String[] other : pending)
+                    isRead |= other != copy && other[1].equals(copy[0]);
+                if (!isRead) {
+                    ready = copy;
+                    break;
+                }
+            }
+
+            // In a cycle, every destination is read by another copy, so one of them is saved first
+            if (ready == null) {
+                String saved = pending.get(0)[0];
+                String temporary = newVersion(this.originals.get(saved));
+                result.add(newCopy(temporary, saved));
+                for (String[] copy : pending)
+                    if (copy[1].equals(saved))
+                        copy[1] = temporary;
+                continue;
+            }
+            result.add(newCopy(ready[0], ready[1]));
+            pending.remove(ready);
+        }
+        this.insertedCopies += result.size();
+        return result;
+    }
+
+    private Instruction newCopy(String dest, String source) {
+        Type type = this.method.getVarTable().get(dest).getVarType();
+        return new AssignInstruction(new Operand(dest, type), type, new SingleOpInstruction(new Operand(source, type)));
+    }
+
+    private void insertCopies(Node predecessor, Instruction target, List<Instruction> copies, Set<Instruction> fallsThroughToTarget) {
+        if (copies.isEmpty())
+            return;
+        List<Instruction> instructions = this.method.getInstructions();
+
+        // A branch to the target gets a new block with the copies, at the end of the method
+        if (predecessor.getNodeType() == NodeType.INSTRUCTION && ((Instruction) predecessor).getInstType() == BRANCH) {
+            CondBranchInstruction branchInst = (CondBranchInstruction) predecessor;
+            if (this.method.getLabels().get(branchInst.getLabel()) == target) {
+                String edgeLabel = "ssa_edge" + this.edgeLabels.size();
+                this.edgeLabels.put(edgeLabel, branchInst.getLabel());
+                List<Instruction> block = new ArrayList<>(copies);
+                block.add(new GotoInstruction(branchInst.getLabel()));
+                this.method.getLabels().put(edgeLabel, block.get(0));
+                instructions.addAll(block);
+                branchInst.setLabel(edgeLabel);
+                // The same branch may also fall through to the target
+                if (!fallsThroughToTarget.contains(branchInst))
+                    return;
+                copies = copiesOf(copies);
+            }
+        }
+
+        // Before a jump, the copies take its labels, while falling through they come right after the predecessor, as
+        // the target may already have copies of its own before it
+        if (predecessor.getNodeType() != NodeType.INSTRUCTION)
+            instructions.addAll(0, copies);
+        else if (((Instruction) predecessor).getInstType() == GOTO) {
+            instructions.addAll(instructions.indexOf((Instruction) predecessor), copies);
+            for (Map.Entry<String, Instruction> entry : this.method.getLabels().entrySet())
+                if (entry.getValue() == predecessor)
+                    entry.setValue(copies.get(0));
+        }
+        else
+            instructions.addAll(instructions.indexOf((Instruction) predecessor) + 1, copies);
+    }
+
+    private List<Instruction> copiesOf(List<Instruction> copies) {
+        List<Instruction> result = new ArrayList<>();
+        for (Instruction copy : copies)
+            result.add(copyInstruction(copy, name -> name, label -> label));
+        return result;
+    }
+
+    // The versions each class interferes with are kept by its representative, merged along with the classes
+    private void coalesce() {
+        Map<String, Set<String>> interference = computeInterference();
+        Map<String, String> representatives = new HashMap<>();
+        Map<String, Set<String>> classes = new HashMap<>();
+        for (String version : this.originals.keySet()) {
+            representatives.put(version, version);
+            classes.put(version, new HashSet<>(Set.of(version)));
+            interference.computeIfAbsent(version, key -> new HashSet<>());
+        }
+
+        for (Instruction instruction : this.method.getInstructions()) {
+            String[] copy = getCopy(instruction);
+            if (copy == null || !this.originals.containsKey(copy[0]) || !this.originals.containsKey(copy[1]))
+                continue;
+            if (!this.originals.get(copy[0]).equals(this.originals.get(copy[1])))
+                continue;
+            String first = representatives.get(copy[0]), second = representatives.get(copy[1]);
+            if (first.equals(second) || interferes(interference.get(first), classes.get(second)))
+                continue;
+
+            // The smaller class joins the larger one, so that each version changes representative few times
+            if (classes.get(second).size() > classes.get(first).size()) {
+                String swap = first;
+                first = second;
+                second = swap;
+            }
+            for (String version : classes.get(second))
+                representatives.put(version, first);
+            classes.put(first, merge(classes.get(first), classes.remove(second)));
+            interference.put(first, merge(interference.get(first), interference.remove(second)));
+            this.coalescedCopies++;
+        }
+
+        // The class with the value on entry keeps the original name, which is otherwise given to the first class to use
+        // it, while the other classes are named after their representatives
+        Set<String> used = new LinkedHashSet<>();
+        for (Instruction instruction : this.method.getInstructions())
+            for (String name : getVariables(instruction))
+                if (representatives.containsKey(name))
+                    used.add(representatives.get(name));
+        Map<String, String> names = new HashMap<>();
+        Set<String> taken = new HashSet<>();
+        for (String representative : used) {
+            String original = this.originals.get(representative);
+            if (classes.get(representative).contains(original)) {
+                names.put(representative, original);
+                taken.add(original);
+            }
+        }
+        for (String representative : used) {
+            String original = this.originals.get(representative);
+            if (!names.containsKey(representative))
+                names.put(representative, taken.add(original) ? original : representative);
+        }
+
+        // The labels of removed self copies move to the next instruction kept, all at once as methods may be long
+        List<Instruction> instructions = this.method.getInstructions();
+        Map<Instruction, Instruction> replaced = new HashMap<>();
+        List<Instruction> kept = new ArrayList<>();
+        Instruction next = null;
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            Instruction copy = copyInstruction(instructions.get(i), name -> names.getOrDefault(representatives.get(name), name), label -> label);
+            String[] copied = getCopy(copy);
+            if (copied == null || !copied[0].equals(copied[1])) {
+                next = copy;
+                kept.add(copy);
+            }
+            replaced.put(instructions.get(i), next);
+        }
+        this.method.getLabels().replaceAll((label, instruction) -> replaced.getOrDefault(instruction, instruction));
+        this.method.getLabels().values().removeIf(Objects::isNull);
+        Collections.reverse(kept);
+        instructions.clear();
+        instructions.addAll(kept);
+
+        Set<String> remaining = new HashSet<>();
+        for (Instruction instruction : instructions)
+            remaining.addAll(getVariables(instruction));
+        for (String version : this.originals.keySet())
+            if (!version.equals(this.originals.get(version)) && !remaining.contains(version))
+                this.method.getVarTable().remove(version);
+    }
+
+    // The branches to blocks whose copies were all coalesced jump straight to their targets again
+    private void removeEmptyEdgeBlocks() {
+        Map<String, String> emptyBlocks = new HashMap<>();
+        Set<Instruction> removed = new HashSet<>();
+        this.edgeLabels.forEach((edgeLabel, targetLabel) -> {
+            Instruction first = this.method.getLabels().get(edgeLabel);
+            if (first == null || first.getInstType() != GOTO)
+                return;
+            emptyBlocks.put(edgeLabel, targetLabel);
+            removed.add(first);
+            this.method.getLabels().remove(edgeLabel);
+        });
+
+        List<Instruction> instructions = this.method.getInstructions();
+        for (Instruction instruction : instructions)
+            if (instruction.getInstType() == BRANCH && emptyBlocks.containsKey(((CondBranchInstruction) instruction).getLabel()))
+                ((CondBranchInstruction) instruction).setLabel(emptyBlocks.get(((CondBranchInstruction) instruction).getLabel()));
+        instructions.removeIf(removed::contains);
+    }
+
+    // The versions left take the registers right after the ones of the original variables
+    private void renumberVersions() {
+        HashMap<String, Descriptor> varTable = this.method.getVarTable();
+        int register = 0;
+        List<String> versions = new ArrayList<>();
+        for (Map.Entry<String, Descriptor> entry : varTable.entrySet()) {
+            if (this.originals.containsKey(entry.getKey()) && !entry.getKey().equals(this.originals.get(entry.getKey())))
+                versions.add(entry.getKey());
+            else
+                register = Math.max(register, entry.getValue().getVirtualReg() + 1);
+        }
+        versions.sort(Comparator.comparingInt(version -> varTable.get(version).getVirtualReg()));
+        for (String version : versions)
+            varTable.put(version, new Descriptor(VarScope.LOCAL, register++, varTable.get(version).getVarType()));
+    }
+
+    // Adds the smaller set to the larger one, so that each element is only moved a logarithmic number of times
+    private static Set<String> merge(Set<String> first, Set<String> second) {
+        if (first.size() < second.size()) {
+            second.addAll(first);
+            return second;
+        }
+        first.addAll(second);
+        return first;
+    }
+
+    private static boolean interferes(Set<String> interference, Set<String> versions) {
+        for (String version : versions)
+            if (interference.contains(version))
+                return true;
+        return false;
+    }
+
+    // Versions assigned while another one is live, besides the source of a copy, interfere
+    private Map<String, Set<String>> computeInterference() {
+        List<Instruction> instructions = this.method.getInstructions();
+        Map<Instruction, Set<String>> liveOut = new HashMap<>();
+        Map<Instruction, Set<String>> liveIn = new HashMap<>();
+        for (Instruction instruction : instructions) {
+            liveIn.put(instruction, new HashSet<>());
+            liveOut.put(instruction, new HashSet<>());
+        }
+
+        CancellationToken token = CancellationToken.current();
+        boolean changed;
+        do {
+            changed = false;
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                token.poll();
+                Instruction instruction = instructions.get(i);
+                Set<String> out = new HashSet<>();
+                for (Node successor : instruction.getSuccessors())
+                    if (successor.getNodeType() == NodeType.INSTRUCTION)
+                        out.addAll(liveIn.get(successor));
+                Set<String> in = new HashSet<>(out);
+                in.remove(ReachingDefinitions.getDefinedVar(instruction));
+                for (Element operand : getReadOperands(instruction))
+                    if (!operand.isLiteral() && this.originals.containsKey(toVarName(operand)))
+                        in.add(toVarName(operand));
+                changed |= !out.equals(liveOut.put(instruction, out)) | !in.equals(liveIn.put(instruction, in));
+            }
+        } while (changed);
+
+        Map<String, Set<String>> interference = new HashMap<>();
+        for (Instruction instruction : instructions) {
+            String definedVar = ReachingDefinitions.getDefinedVar(instruction);
+            if (definedVar == null)
+                continue;
+            String[] copy = getCopy(instruction);
+            for (String live : liveOut.get(instruction)) {
+                if (live.equals(definedVar) || copy != null && live.equals(copy[1]))
+                    continue;
+                interference.computeIfAbsent(definedVar, key -> new HashSet<>()).add(live);
+                interference.computeIfAbsent(live, key -> new HashSet<>()).add(definedVar);
+            }
+        }
+
+        // The values on entry are all assigned at the start
+        Set<String> entry = instructions.isEmpty() ? Set.of() : liveIn.get(instructions.get(0));
+        for (String first : entry)
+            for (String second : entry)
+                if (!first.equals(second))
+                    interference.computeIfAbsent(first, key -> new HashSet<>()).add(second);
+        return interference;
+    }
+
+    // The destination and source of "x := y", or null
+    private String[] getCopy(Instruction instruction) {
+        String definedVar = ReachingDefinitions.getDefinedVar(instruction);
+        if (definedVar == null || ((AssignInstruction) instruction).getRhs().getInstType() != NOPER)
+            return null;
+        Element source = ((SingleOpInstruction) ((AssignInstruction) instruction).getRhs()).getSingleOperand();
+        if (source.isLiteral() || source instanceof ArrayOperand)
+            return null;
+        return new String[]{definedVar, toVarName(source)};
+    }
+
+    private static Set<String> getVariables(Instruction instruction) {
+        Set<String> variables = new HashSet<>();
+        String definedVar = ReachingDefinitions.getDefinedVar(instruction);
+        if (definedVar != null)
+            variables.add(definedVar);
+        for (Element operand : getReadOperands(instruction))
+            if (!operand.isLiteral())
+                variables.add(toVarName(operand));
+        return variables;
+    }
+}
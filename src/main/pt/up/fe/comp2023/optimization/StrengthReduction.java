@@ -0,0 +1,279 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Replaces expensive integer operations of an OLLIR method by cheaper ones.
+ * In a loop, an induction variable i is only assigned by "i := i + d". Each "j := i * c" of the loop is replaced by a
+ * new variable that is set to i * c before the loop and increased by c * d right after i is, which the JVM backend
+ * emits as an iinc. An induction variable that is then only read to increase itself is removed.
+ * Multiplications by powers of two become left shifts, and so do divisions by them into right shifts, but only when
+ * the dividend is known to be positive, as a right shift rounds negative numbers down instead of towards zero.
+ */
+public class StrengthReduction {
+    private final Method method;
+    private final AnalysisCache analyses;
+    private int reducedMultiplications = 0;
+    private int removedInductionVariables = 0;
+    private int shifts = 0;
+
+    public StrengthReduction(Method method) {
+        this(method, new AnalysisCache());
+    }
+
+    public StrengthReduction(Method method, AnalysisCache analyses) {
+        this.method = method;
+        this.analyses = analyses;
+
+        while (reduceSomeLoop());
+        replaceByShifts();
+    }
+
+    public int getReducedMultiplications() {
+        return this.reducedMultiplications;
+    }
+
+    public int getRemovedInductionVariables() {
+        return this.removedInductionVariables;
+    }
+
+    public int getShifts() {
+        return this.shifts;
+    }
+
+    private boolean reduceSomeLoop() {
+        for (NaturalLoop loop : this.analyses.getLoopNest(this.method).getLoops()) {
+            Instruction preheader = loop.getPreheader(this.method);
+            if (preheader == null)
+                continue;
+
+            Map<String, AssignInstruction> inductionVariables = getInductionVariables(loop);
+            if (reduceMultiplications(loop, preheader, inductionVariables) || removeInductionVariables(loop, inductionVariables)) {
+                this.analyses.invalidate(this.method);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Variables whose only assignment in the loop is "i := i + d" or "i := i - d", by their assignment
+    private Map<String, AssignInstruction> getInductionVariables(NaturalLoop loop) {
+        Map<String, List<Instruction>> definitions = new HashMap<>();
+        for (Instruction instruction : loop.getBody()) {
+            String definedVar = ReachingDefinitions.getDefinedVar(instruction);
+            if (definedVar != null)
+                definitions.computeIfAbsent(definedVar, key -> new ArrayList<>()).add(instruction);
+        }
+
+        Map<String, AssignInstruction> inductionVariables = new HashMap<>();
+        definitions.forEach((varName, varDefinitions) -> {
+            if (varDefinitions.size() == 1 && getStep((AssignInstruction) varDefinitions.get(0)) != null)
+                inductionVariables.put(varName, (AssignInstruction) varDefinitions.get(0));
+        });
+        return inductionVariables;
+    }
+
+    private Integer getStep(AssignInstruction update) {
+        if (update.getRhs().getInstType() != BINARYOPER || !isLocalVar(update.getDest(), this.method))
+            return null;
+
+        BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) update.getRhs();
+        OperationType opType = binaryOpInst.getOperation().getOpType();
+        Element variable = binaryOpInst.getLeftOperand(), step = binaryOpInst.getRightOperand();
+        if (opType == OperationType.ADD && variable.isLiteral()) {
+            variable = binaryOpInst.getRightOperand();
+            step = binaryOpInst.getLeftOperand();
+        }
+        if (opType != OperationType.ADD && opType != OperationType.SUB || variable.isLiteral() || !step.isLiteral())
+            return null;
+        if (!toVarName(variable).equals(toVarName(update.getDest())))
+            return null;
+
+        int value = Integer.parseInt(((LiteralElement) step).getLiteral());
+        return opType == OperationType.ADD ? value : -value;
+    }
+
+    private boolean reduceMultiplications(NaturalLoop loop, Instruction preheader, Map<String, AssignInstruction> inductionVariables) {
+        List<Instruction> instructions = this.method.getInstructions();
+        Map<String, Operand> reduced = new HashMap<>();
+
+        List<Instruction> body = new ArrayList<>(loop.getBody());
+        body.sort(Comparator.comparingInt(instructions::indexOf));
+        for (Instruction instruction : body) {
+            if (instruction.getInstType() != ASSIGN || ((AssignInstruction) instruction).getDest() instanceof ArrayOperand)
+                continue;
+            AssignInstruction assignInst = (AssignInstruction) instruction;
+            if (assignInst.getRhs().getInstType() != BINARYOPER)
+                continue;
+
+            BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) assignInst.getRhs();
+            Element variable = binaryOpInst.getLeftOperand(), factor = binaryOpInst.getRightOperand();
+            if (variable.isLiteral()) {
+                variable = binaryOpInst.getRightOperand();
+                factor = binaryOpInst.getLeftOperand();
+            }
+            if (binaryOpInst.getOperation().getOpType() != OperationType.MUL || variable.isLiteral() || !factor.isLiteral())
+                continue;
+            AssignInstruction update = inductionVariables.get(toVarName(variable));
+            if (update == null || update == instruction)
+                continue;
+
+            // The same multiple of an induction variable is only kept once
+            int value = Integer.parseInt(((LiteralElement) factor).getLiteral());
+            String key = toVarName(variable) + "*" + value;
+            Operand multiple = reduced.get(key);
+            if (multiple == null) {
+                multiple = newVariable();
+                reduced.put(key, multiple);
+
+                Instruction initialValue = new BinaryOpInstruction(variable, new Operation(OperationType.MUL, intType()), factor);
+                NaturalLoop.insertInPreheader(this.method, preheader, List.of(new AssignInstruction(multiple, intType(), initialValue)));
+                LiteralElement increment = new LiteralElement(Integer.toString(value * getStep(update)), intType());
+                Instruction newValue = new BinaryOpInstruction(multiple, new Operation(OperationType.ADD, intType()), increment);
+                instructions.add(instructions.indexOf(update) + 1, new AssignInstruction(multiple, intType(), newValue));
+            }
+
+            Instruction copy = new SingleOpInstruction(multiple);
+            replaceInstruction(this.method, instructions.indexOf(instruction), new AssignInstruction(assignInst.getDest(), assignInst.getTypeOfAssign(), copy));
+            this.reducedMultiplications++;
+        }
+        return !reduced.isEmpty();
+    }
+
+    // An induction variable only read by its own update, and not after the loop, is useless
+    private boolean removeInductionVariables(NaturalLoop loop, Map<String, AssignInstruction> inductionVariables) {
+        LivenessAnalysis liveness = new LivenessAnalysis(this.method);
+        boolean changed = false;
+
+        for (Map.Entry<String, AssignInstruction> entry : inductionVariables.entrySet()) {
+            String varName = entry.getKey();
+            boolean isUseless = true;
+            for (Instruction instruction : loop.getBody())
+                if (instruction != entry.getValue() && liveness.getUses(instruction).contains(varName))
+                    isUseless = false;
+            for (Instruction exit : loop.getExits())
+                for (Node successor : exit.getSuccessors())
+                    if (!loop.contains(successor) && successor.getNodeType() == NodeType.INSTRUCTION
+                            && liveness.getLiveIn((Instruction) successor).contains(varName))
+                        isUseless = false;
+            if (!isUseless)
+                continue;
+
+            removeInstruction(this.method, this.method.getInstructions().indexOf(entry.getValue()));
+            this.removedInductionVariables++;
+            changed = true;
+        }
+        return changed;
+    }
+
+    private Operand newVariable() {
+        HashMap<String, Descriptor> varTable = this.method.getVarTable();
+        int register = 0;
+        for (Descriptor descriptor : varTable.values())
+            register = Math.max(register, descriptor.getVirtualReg() + 1);
+
+        String name = "iv" + register;
+        for (int i = 0; varTable.containsKey(name); i++)
+            name = "iv" + register + "_" + i;
+        varTable.put(name, new Descriptor(VarScope.LOCAL, register, intType()));
+        return new Operand(name, intType());
+    }
+
+    private static Type intType() {
+        return new Type(ElementType.INT32);
+    }
+
+    private void replaceByShifts() {
+        ReachingDefinitions reachingDefinitions = new ReachingDefinitions(this.method);
+
+        for (Instruction instruction : this.method.getInstructions()) {
+            if (instruction.getInstType() != ASSIGN || ((AssignInstruction) instruction).getRhs().getInstType() != BINARYOPER)
+                continue;
+
+            BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) ((AssignInstruction) instruction).getRhs();
+            OperationType opType = binaryOpInst.getOperation().getOpType();
+            Element left = binaryOpInst.getLeftOperand(), right = binaryOpInst.getRightOperand();
+            if (opType == OperationType.MUL && left.isLiteral() && !right.isLiteral()) {
+                binaryOpInst.setLeftOperand(right);
+                binaryOpInst.setRightOperand(left);
+                left = binaryOpInst.getLeftOperand();
+                right = binaryOpInst.getRightOperand();
+            }
+
+            Integer exponent = getPowerOfTwo(right);
+            if (exponent == null || left.isLiteral())
+                continue;
+            LiteralElement shift = new LiteralElement(Integer.toString(exponent), intType());
+            if (opType == OperationType.MUL)
+                binaryOpInst.getOperation().setOpType(OperationType.SHL);
+            else if (opType == OperationType.DIV && isPositive(left, instruction, reachingDefinitions, new HashSet<>()))
+                binaryOpInst.getOperation().setOpType(OperationType.SHR);
+            else
+                continue;
+            binaryOpInst.setRightOperand(shift);
+            this.shifts++;
+        }
+    }
+
+    // The k of a literal 2^k, with k at least 1
+    private static Integer getPowerOfTwo(Element element) {
+        if (!element.isLiteral())
+            return null;
+        int value = Integer.parseInt(((LiteralElement) element).getLiteral());
+        if (value < 2 || Integer.bitCount(value) != 1)
+            return null;
+        return Integer.numberOfTrailingZeros(value);
+    }
+
+    // Whether the operand is never negative when the instruction reads it
+    private boolean isPositive(Element operand, Instruction instruction, ReachingDefinitions reachingDefinitions, Set<Instruction> visited) {
+        if (operand.isLiteral())
+            return Integer.parseInt(((LiteralElement) operand).getLiteral()) >= 0;
+        if (!this.method.getVarTable().containsKey(toVarName(operand)) || !isLocalVar(operand, this.method))
+            return false;
+
+        // Parameters and variables read before being assigned have no definitions, so nothing is known about them
+        Set<Instruction> definitions = reachingDefinitions.getReachingDefinitions(instruction, toVarName(operand));
+        if (definitions.isEmpty())
+            return false;
+        for (Instruction definition : definitions) {
+            if (!visited.add(definition))
+                return false;
+            if (!isPositive(((AssignInstruction) definition).getRhs(), definition, reachingDefinitions, visited))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isPositive(Instruction rhs, Instruction definition, ReachingDefinitions reachingDefinitions, Set<Instruction> visited) {
+        switch (rhs.getInstType()) {
+            case NOPER -> {
+                Element operand = ((SingleOpInstruction) rhs).getSingleOperand();
+                return !(operand instanceof ArrayOperand) && isPositive(operand, definition, reachingDefinitions, visited);
+            }
+            case CALL -> {
+                return ((CallInstruction) rhs).getInvocationType() == CallType.arraylength;
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) rhs;
+                Element left = binaryOpInst.getLeftOperand(), right = binaryOpInst.getRightOperand();
+                return switch (binaryOpInst.getOperation().getOpType()) {
+                    // Dividing or shifting a positive number right keeps it positive
+                    case DIV, SHR -> right.isLiteral() && isPositive(right, definition, reachingDefinitions, visited)
+                            && isPositive(left, definition, reachingDefinitions, visited);
+                    case SHRR -> right.isLiteral() && !((LiteralElement) right).getLiteral().equals("0");
+                    case AND -> isPositive(left, definition, reachingDefinitions, visited) || isPositive(right, definition, reachingDefinitions, visited);
+                    default -> false;
+                };
+            }
+            default -> {
+                return false;
+            }
+        }
+    }
+}
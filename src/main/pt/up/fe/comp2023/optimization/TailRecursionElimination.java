@@ -0,0 +1,126 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Turns the calls of a method to itself on this whose value is returned right away into a jump to the start of the
+ * method, after assigning the arguments to the parameters, so that deep recursions do not overflow the stack.
+ * The value of a call is returned right away if it is only copied and jumped over until a return of the last copy.
+ * The arguments are first copied to new locals, as they may read parameters that are assigned before them.
+ */
+public class TailRecursionElimination {
+    private static final String START_LABEL = "tail_recursion_start";
+
+    private final Method method;
+    private int eliminatedCalls = 0;
+
+    public TailRecursionElimination(Method method) {
+        this.method = method;
+
+        if (this.method.isStaticMethod() || this.method.isConstructMethod())
+            return;
+        List<Instruction> instructions = this.method.getInstructions();
+        // A call at the very start would jump to itself, looping forever instead of overflowing the stack
+        for (int i = instructions.size() - 1; i > 0; i--)
+            if (isTailCall(i))
+                eliminateCall(i);
+    }
+
+    public int getEliminatedCalls() {
+        return this.eliminatedCalls;
+    }
+
+    private boolean isTailCall(int index) {
+        List<Instruction> instructions = this.method.getInstructions();
+        Instruction instruction = instructions.get(index);
+        String value = instruction.getInstType() == ASSIGN ? ReachingDefinitions.getDefinedVar(instruction) : null;
+        Instruction rhs = value != null ? ((AssignInstruction) instruction).getRhs() : instruction;
+        if (rhs.getInstType() != CALL || !isSelfCall((CallInstruction) rhs))
+            return false;
+
+        // Follows the copies and the jumps after the call, stopping if they loop
+        Set<Instruction> visited = new HashSet<>();
+        int current = index + 1;
+        while (current < instructions.size() && visited.add(instructions.get(current))) {
+            Instruction next = instructions.get(current);
+            switch (next.getInstType()) {
+                case GOTO -> {
+                    current = instructions.indexOf(this.method.getLabels().get(((GotoInstruction) next).getLabel()));
+                    continue;
+                }
+                case RETURN -> {
+                    ReturnInstruction returnInst = (ReturnInstruction) next;
+                    if (!returnInst.hasReturnValue())
+                        return true;
+                    Element operand = returnInst.getOperand();
+                    return value != null && !operand.isLiteral() && toVarName(operand).equals(value);
+                }
+                case ASSIGN -> {
+                    AssignInstruction assignInst = (AssignInstruction) next;
+                    if (value == null || assignInst.getDest() instanceof ArrayOperand || assignInst.getRhs().getInstType() != NOPER)
+                        return false;
+                    Element source = ((SingleOpInstruction) assignInst.getRhs()).getSingleOperand();
+                    if (source.isLiteral() || source instanceof ArrayOperand || !toVarName(source).equals(value))
+                        return false;
+                    value = toVarName(assignInst.getDest());
+                }
+                default -> {
+                    return false;
+                }
+            }
+            current++;
+        }
+        return false;
+    }
+
+    private boolean isSelfCall(CallInstruction callInst) {
+        if (callInst.getInvocationType() != CallType.invokevirtual || callInst.getFirstArg().isLiteral())
+            return false;
+        if (!toVarName(callInst.getFirstArg()).equals("this"))
+            return false;
+        String name = ((LiteralElement) callInst.getSecondArg()).getLiteral().replace("\"", "");
+        int arguments = callInst.getListOfOperands() == null ? 0 : callInst.getListOfOperands().size();
+        return name.equals(this.method.getMethodName()) && arguments == this.method.getParams().size();
+    }
+
+    private void eliminateCall(int index) {
+        List<Instruction> instructions = this.method.getInstructions();
+        Instruction call = instructions.get(index);
+        CallInstruction callInst = (CallInstruction) (call.getInstType() == ASSIGN ? ((AssignInstruction) call).getRhs() : call);
+        HashMap<String, Descriptor> varTable = this.method.getVarTable();
+        int register = 0;
+        for (Descriptor descriptor : varTable.values())
+            register = Math.max(register, descriptor.getVirtualReg() + 1);
+
+        List<Instruction> jump = new ArrayList<>();
+        List<Element> copies = new ArrayList<>();
+        for (int i = 0; i < this.method.getParams().size(); i++) {
+            Element param = this.method.getParams().get(i);
+            String name = "tail" + this.eliminatedCalls + "_" + toVarName(param);
+            varTable.put(name, new Descriptor(VarScope.LOCAL, register++, param.getType()));
+            Operand copy = new Operand(name, param.getType());
+            copies.add(copy);
+            jump.add(new AssignInstruction(copy, param.getType(), new SingleOpInstruction(callInst.getListOfOperands().get(i))));
+        }
+        for (int i = 0; i < this.method.getParams().size(); i++) {
+            Element param = this.method.getParams().get(i);
+            Operand dest = new Operand(toVarName(param), param.getType());
+            jump.add(new AssignInstruction(dest, param.getType(), new SingleOpInstruction(copies.get(i))));
+        }
+        jump.add(new GotoInstruction(START_LABEL));
+        this.method.getLabels().putIfAbsent(START_LABEL, instructions.get(0));
+
+        // The labels of the call point to the first instruction of the jump
+        instructions.remove(index);
+        instructions.addAll(index, jump);
+        for (Map.Entry<String, Instruction> entry : this.method.getLabels().entrySet())
+            if (entry.getValue() == call)
+                entry.setValue(jump.get(0));
+        this.eliminatedCalls++;
+    }
+}
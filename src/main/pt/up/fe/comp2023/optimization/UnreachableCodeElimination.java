@@ -0,0 +1,118 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Cleans the jumps of an OLLIR method: branches on literals become gotos or are removed, gotos to the next
+ * instruction are removed, and so are the instructions that cannot be reached from the start of the method,
+ * like the ones after a goto or a return.
+ */
+public class UnreachableCodeElimination {
+    private final Method method;
+    private int removedInstructions = 0;
+
+    public UnreachableCodeElimination(Method method) {
+        this.method = method;
+
+        boolean changed;
+        do {
+            changed = foldLiteralBranches();
+            changed |= removeJumpsToNext();
+            changed |= removeUnreachableInstructions();
+        } while (changed);
+    }
+
+    public int getRemovedInstructions() {
+        return this.removedInstructions;
+    }
+
+    private boolean foldLiteralBranches() {
+        List<Instruction> instructions = this.method.getInstructions();
+        boolean changed = false;
+
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            if (instructions.get(i).getInstType() != BRANCH)
+                continue;
+
+            CondBranchInstruction branchInst = (CondBranchInstruction) instructions.get(i);
+            Boolean condition = getLiteralCondition(branchInst.getCondition());
+            if (condition == null)
+                continue;
+
+            if (condition)
+                replaceInstruction(this.method, i, new GotoInstruction(branchInst.getLabel()));
+            else {
+                removeInstruction(this.method, i);
+                this.removedInstructions++;
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    // The conditions the AST passes fold are emitted as a literal, negated for loops
+    private static Boolean getLiteralCondition(Instruction condition) {
+        if (condition.getInstType() == NOPER) {
+            Element operand = ((SingleOpInstruction) condition).getSingleOperand();
+            if (operand.isLiteral())
+                return !((LiteralElement) operand).getLiteral().equals("0");
+        }
+        else if (condition.getInstType() == UNARYOPER) {
+            UnaryOpInstruction unaryOpInst = (UnaryOpInstruction) condition;
+            OperationType opType = unaryOpInst.getOperation().getOpType();
+            if ((opType == OperationType.NOT || opType == OperationType.NOTB) && unaryOpInst.getOperand().isLiteral())
+                return ((LiteralElement) unaryOpInst.getOperand()).getLiteral().equals("0");
+        }
+        return null;
+    }
+
+    private boolean removeJumpsToNext() {
+        List<Instruction> instructions = this.method.getInstructions();
+        boolean changed = false;
+
+        for (int i = instructions.size() - 2; i >= 0; i--) {
+            if (instructions.get(i).getInstType() != GOTO)
+                continue;
+
+            String label = ((GotoInstruction) instructions.get(i)).getLabel();
+            if (this.method.getLabels().get(label) == instructions.get(i + 1)) {
+                removeInstruction(this.method, i);
+                this.removedInstructions++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private boolean removeUnreachableInstructions() {
+        buildCFG(this.method);
+
+        CancellationToken token = CancellationToken.current();
+        Set<Node> reachable = new HashSet<>();
+        Deque<Node> worklist = new ArrayDeque<>(this.method.getBeginNode().getSuccessors());
+        while (!worklist.isEmpty()) {
+            token.poll();
+            Node node = worklist.poll();
+            if (reachable.add(node))
+                worklist.addAll(node.getSuccessors());
+        }
+
+        // Going backwards, the labels of removed instructions are moved to instructions that are kept
+        List<Instruction> instructions = this.method.getInstructions();
+        boolean changed = false;
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            if (!reachable.contains(instructions.get(i))) {
+                removeInstruction(this.method, i);
+                this.removedInstructions++;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+}
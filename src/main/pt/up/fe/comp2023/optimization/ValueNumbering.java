@@ -0,0 +1,255 @@
+package pt.up.fe.comp2023.optimization;
+
+import org.specs.comp.ollir.*;
+import pt.up.fe.comp2023.CancellationToken;
+
+import java.util.*;
+
+import static org.specs.comp.ollir.InstructionType.*;
+import static pt.up.fe.comp2023.optimization.OptimizationUtils.*;
+
+/*
+ * Removes the expressions of an OLLIR method that compute a value some variable already holds, like the second
+ * "a[i]" of "a[i] + a[i]" or a repeated "arraylength(a)", by numbering the values of each basic block.
+ * A redundant "t := <expression>" becomes the copy "t := v", left for copy propagation and dead store elimination.
+ * Array elements and fields are memory values, so calls invalidate both, array stores invalidate the array elements
+ * and putfield invalidates the fields. Array lengths never change.
+ * In the global mode each block starts from the values known at the end of its immediate dominator, keeping only the
+ * variables assigned once in the method, as any other one may have been assigned again on the way to the block.
+ */
+public class ValueNumbering {
+    private final Method method;
+    private final boolean global;
+    private final AnalysisCache analyses;
+    private final Map<String, Integer> definitions = new HashMap<>();
+    private int nextValueNumber = 0;
+    private int redundantExpressions = 0;
+
+    public ValueNumbering(Method method, boolean global) {
+        this(method, global, new AnalysisCache());
+    }
+
+    public ValueNumbering(Method method, boolean global, AnalysisCache analyses) {
+        this.method = method;
+        this.global = global;
+        this.analyses = analyses;
+
+        for (Instruction instruction : this.method.getInstructions())
+            if (instruction.getInstType() == ASSIGN && !(((AssignInstruction) instruction).getDest() instanceof ArrayOperand))
+                this.definitions.merge(toVarName(((AssignInstruction) instruction).getDest()), 1, Integer::sum);
+        numberBlocks();
+    }
+
+    public int getRedundantExpressions() {
+        return this.redundantExpressions;
+    }
+
+    private void numberBlocks() {
+        List<Instruction> instructions = this.method.getInstructions();
+        List<Integer> leaders = getLeaders();
+        Set<Instruction> leaderInstructions = new HashSet<>();
+        for (int leader : leaders)
+            leaderInstructions.add(instructions.get(leader));
+        Map<Instruction, Integer> blockOf = new HashMap<>();
+        for (int block = 0; block < leaders.size(); block++) {
+            int end = block + 1 < leaders.size() ? leaders.get(block + 1) : instructions.size();
+            for (int i = leaders.get(block); i < end; i++)
+                blockOf.put(instructions.get(i), block);
+        }
+
+        // Blocks are visited after their immediate dominator, the unreachable ones being numbered on their own
+        List<Integer> order = new ArrayList<>();
+        Map<Integer, Integer> immediateDominator = new HashMap<>();
+        if (this.global) {
+            DominatorTree dominatorTree = this.analyses.getDominatorTree(this.method);
+            for (Node node : dominatorTree.getReversePostorder()) {
+                if (!leaderInstructions.contains(node))
+                    continue;
+                int block = blockOf.get((Instruction) node);
+                order.add(block);
+                Node dominator = dominatorTree.getImmediateDominator(node);
+                if (dominator != null && dominator.getNodeType() == NodeType.INSTRUCTION)
+                    immediateDominator.put(block, blockOf.get((Instruction) dominator));
+            }
+        }
+        for (int block = 0; block < leaders.size(); block++)
+            if (!order.contains(block))
+                order.add(block);
+
+        // The instructions of each block are read before numbering it, as redundant ones are replaced
+        List<List<Instruction>> blocks = new ArrayList<>();
+        for (int block = 0; block < leaders.size(); block++) {
+            int end = block + 1 < leaders.size() ? leaders.get(block + 1) : instructions.size();
+            blocks.add(new ArrayList<>(instructions.subList(leaders.get(block), end)));
+        }
+
+        CancellationToken token = CancellationToken.current();
+        Map<Integer, ValueTable> exitTables = new HashMap<>();
+        for (int block : order) {
+            token.poll();
+            Integer dominator = immediateDominator.get(block);
+            ValueTable table = dominator == null ? new ValueTable() : exitTables.get(dominator).inherit(this.definitions, this.nextValueNumber++);
+            for (Instruction instruction : blocks.get(block))
+                numberInstruction(instruction, table);
+            if (this.global)
+                exitTables.put(block, table);
+        }
+    }
+
+    // A block starts at the first instruction, at labels, and after branches, gotos and returns
+    private List<Integer> getLeaders() {
+        List<Instruction> instructions = this.method.getInstructions();
+        Collection<Instruction> labeled = this.method.getLabels().values();
+        List<Integer> leaders = new ArrayList<>();
+
+        for (int i = 0; i < instructions.size(); i++) {
+            boolean afterJump = i > 0 && switch (instructions.get(i - 1).getInstType()) {
+                case BRANCH, GOTO, RETURN -> true;
+                default -> false;
+            };
+            if (i == 0 || afterJump || labeled.contains(instructions.get(i)))
+                leaders.add(i);
+        }
+        return leaders;
+    }
+
+    private void numberInstruction(Instruction instruction, ValueTable table) {
+        switch (instruction.getInstType()) {
+            case ASSIGN -> {
+                AssignInstruction assignInst = (AssignInstruction) instruction;
+                Instruction rhs = assignInst.getRhs();
+                if (assignInst.getDest() instanceof ArrayOperand) {
+                    invalidateCall(rhs, table);
+                    table.arrayEpoch = this.nextValueNumber++;
+                    return;
+                }
+
+                Element dest = assignInst.getDest();
+                int valueNumber;
+                String key = getExpressionKey(rhs, table);
+                if (rhs.getInstType() == NOPER && !(((SingleOpInstruction) rhs).getSingleOperand() instanceof ArrayOperand))
+                    valueNumber = getValueNumber(((SingleOpInstruction) rhs).getSingleOperand(), table);
+                else if (key != null && table.expressions.containsKey(key)) {
+                    valueNumber = table.expressions.get(key);
+                    Element holder = table.getHolder(valueNumber);
+                    if (holder != null && !toVarName(holder).equals(toVarName(dest))) {
+                        int index = this.method.getInstructions().indexOf(instruction);
+                        Instruction copy = new SingleOpInstruction(holder);
+                        replaceInstruction(this.method, index, new AssignInstruction(dest, assignInst.getTypeOfAssign(), copy));
+                        this.redundantExpressions++;
+                    }
+                }
+                else {
+                    invalidateCall(rhs, table);
+                    valueNumber = this.nextValueNumber++;
+                    if (key != null)
+                        table.expressions.put(key, valueNumber);
+                }
+                table.define(dest, valueNumber);
+            }
+            case CALL -> invalidateCall(instruction, table);
+            case PUTFIELD -> table.fieldEpoch = this.nextValueNumber++;
+        }
+    }
+
+    // Memory values are invalidated by moving to a new epoch, which the keys of the loads include
+    private void invalidateCall(Instruction instruction, ValueTable table) {
+        if (instruction.getInstType() != CALL || ((CallInstruction) instruction).getInvocationType() == CallType.arraylength)
+            return;
+        table.arrayEpoch = this.nextValueNumber++;
+        table.fieldEpoch = this.nextValueNumber++;
+    }
+
+    // Key of the value an expression computes, or null if its value is not known to be the same everywhere
+    private String getExpressionKey(Instruction rhs, ValueTable table) {
+        switch (rhs.getInstType()) {
+            case NOPER -> {
+                Element operand = ((SingleOpInstruction) rhs).getSingleOperand();
+                if (!(operand instanceof ArrayOperand))
+                    return null;
+                ArrayOperand array = (ArrayOperand) operand;
+                return "aload(" + getValueNumber(array, table) + "," + getValueNumber(array.getIndexOperands().get(0), table) + ")@" + table.arrayEpoch;
+            }
+            case UNARYOPER -> {
+                UnaryOpInstruction unaryOpInst = (UnaryOpInstruction) rhs;
+                return unaryOpInst.getOperation().getOpType() + "(" + getValueNumber(unaryOpInst.getOperand(), table) + ")";
+            }
+            case BINARYOPER -> {
+                BinaryOpInstruction binaryOpInst = (BinaryOpInstruction) rhs;
+                OperationType opType = binaryOpInst.getOperation().getOpType();
+                int left = getValueNumber(binaryOpInst.getLeftOperand(), table);
+                int right = getValueNumber(binaryOpInst.getRightOperand(), table);
+                if (isCommutative(opType) && left > right)
+                    return opType + "(" + right + "," + left + ")";
+                return opType + "(" + left + "," + right + ")";
+            }
+            case GETFIELD -> {
+                GetFieldInstruction getFieldInst = (GetFieldInstruction) rhs;
+                return "getfield(" + getValueNumber(getFieldInst.getFirstOperand(), table) + "," + toVarName(getFieldInst.getSecondOperand()) + ")@" + table.fieldEpoch;
+            }
+            case CALL -> {
+                CallInstruction callInst = (CallInstruction) rhs;
+                if (callInst.getInvocationType() != CallType.arraylength)
+                    return null;
+                return "arraylength(" + getValueNumber(callInst.getFirstArg(), table) + ")";
+            }
+            default -> {
+                return null;
+            }
+        }
+    }
+
+    private static boolean isCommutative(OperationType opType) {
+        return switch (opType) {
+            case ADD, MUL, AND, OR, ANDB, ORB, EQ, NEQ -> true;
+            default -> false;
+        };
+    }
+
+    private int getValueNumber(Element element, ValueTable table) {
+        if (element.isLiteral())
+            return table.expressions.computeIfAbsent(((LiteralElement) element).getLiteral() + "." + element.getType().getTypeOfElement(), key -> this.nextValueNumber++);
+        return table.variables.computeIfAbsent(toVarName(element), name -> this.nextValueNumber++);
+    }
+
+    private static class ValueTable {
+        private final Map<String, Integer> variables = new HashMap<>();
+        private final Set<String> assigned = new HashSet<>();
+        private final Map<String, Integer> expressions = new HashMap<>();
+        private final Map<Integer, List<Element>> holders = new HashMap<>();
+        private int arrayEpoch = -1;
+        private int fieldEpoch = -1;
+
+        private void define(Element variable, int valueNumber) {
+            this.variables.put(toVarName(variable), valueNumber);
+            this.assigned.add(toVarName(variable));
+            this.holders.computeIfAbsent(valueNumber, key -> new ArrayList<>()).add(variable);
+        }
+
+        // A variable that still holds the value
+        private Element getHolder(int valueNumber) {
+            for (Element holder : this.holders.getOrDefault(valueNumber, List.of()))
+                if (Objects.equals(this.variables.get(toVarName(holder)), valueNumber))
+                    return holder;
+            return null;
+        }
+
+        // Values at the start of a block dominated by this one, the memory ones not being kept
+        private ValueTable inherit(Map<String, Integer> definitions, int epoch) {
+            ValueTable table = new ValueTable();
+            for (Map.Entry<String, Integer> entry : this.variables.entrySet()) {
+                int count = definitions.getOrDefault(entry.getKey(), 0);
+                if (count == 0 || count == 1 && this.assigned.contains(entry.getKey())) {
+                    table.variables.put(entry.getKey(), entry.getValue());
+                    if (count == 1)
+                        table.assigned.add(entry.getKey());
+                }
+            }
+            table.expressions.putAll(this.expressions);
+            this.holders.forEach((valueNumber, holders) -> table.holders.put(valueNumber, new ArrayList<>(holders)));
+            table.arrayEpoch = epoch;
+            table.fieldEpoch = epoch;
+            return table;
+        }
+    }
+}
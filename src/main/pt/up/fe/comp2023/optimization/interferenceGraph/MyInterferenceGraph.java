@@ -1,16 +1,23 @@
 package pt.up.fe.comp2023.optimization.interferenceGraph;
 
+import pt.up.fe.comp2023.CancellationToken;
+
 import java.util.*;
 
 public class MyInterferenceGraph {
     private final List<MyNode> nodes = new ArrayList<>();
     private final Map<String, Integer> nodeColor = new HashMap<>();
+    private final Map<String, Set<String>> copyRelated = new HashMap<>();
+    private final CancellationToken token = CancellationToken.current();
 
     public MyInterferenceGraph deepCopy(){
         MyInterferenceGraph copy = new MyInterferenceGraph();
 
         for(MyNode node : this.nodes)
             copy.addNode(node.getVariable());
+        for(MyNode node : this.nodes)
+            for(String neighbour : node.getNeighbours())
+                copy.getNode(node.getVariable()).addNeighbour(neighbour);
         return copy;
     }
 
@@ -43,6 +50,27 @@ public class MyInterferenceGraph {
         }
     }
 
+    // Variables copied to one another get the same color when possible, which turns the copy into nothing
+    public void addCopyRelation(String src, String dest){
+        if(getNode(src).getNeighbours().contains(dest))
+            return;
+        this.copyRelated.computeIfAbsent(src, var -> new HashSet<>()).add(dest);
+        this.copyRelated.computeIfAbsent(dest, var -> new HashSet<>()).add(src);
+    }
+
+    private int getPreferredColor(MyNode node, int maxColors){
+        for(String related : this.copyRelated.getOrDefault(node.getVariable(), Set.of())){
+            Integer color = this.nodeColor.get(related);
+            if(color != null && color < maxColors && isValidColor(node, color))
+                return color;
+        }
+        for(int color = 0; color < maxColors; color++){
+            if(isValidColor(node, color))
+                return color;
+        }
+        return -1;
+    }
+
     public void removeNode(MyNode node){
         for(String neighbour : node.getNeighbours()){
             MyNode neighbourNode = getNode(neighbour);
@@ -63,6 +91,7 @@ public class MyInterferenceGraph {
         Stack<String> stack = new Stack<>();
 
         while (this.nodes.size() > 0) {
+            this.token.poll();
             MyNode nodeToRemove = null;
 
             for(MyNode node : this.nodes){
@@ -85,12 +114,12 @@ public class MyInterferenceGraph {
         MyInterferenceGraph copyGraph = deepCopy();
         Stack<String> stack = copyGraph.computeColoringStack(maxColors);
 
+        this.nodeColor.clear();
         while (!stack.isEmpty()){
             String nodeName = stack.pop();
-            for(int color = 0; color < maxColors; color++){
-                if(isValidColor(getNode(nodeName), color))
-                    this.nodeColor.put(nodeName, color);
-            }
+            int color = getPreferredColor(getNode(nodeName), maxColors);
+            if(color >= 0)
+                this.nodeColor.put(nodeName, color);
         }
         return this.nodeColor;
     }
@@ -99,9 +128,12 @@ public class MyInterferenceGraph {
         int maxColors = this.nodes.size();
 
         for(int currentMaxColors = 1; currentMaxColors <= maxColors; currentMaxColors++){
+            this.token.check();
             try{
                 this.isMColoringFeasible(currentMaxColors);
 
+            }catch (CancellationToken.CancelledException e){
+                throw e;
             }catch (RuntimeException e){    //currentMaxColor is not enough
                 continue;
             }
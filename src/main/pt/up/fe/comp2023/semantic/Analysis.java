@@ -5,21 +5,44 @@ import pt.up.fe.comp.jmm.analysis.JmmSemanticsResult;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 import pt.up.fe.comp.jmm.parser.JmmParserResult;
 import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.Stage;
+import pt.up.fe.comp2023.CancellationToken;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 public class Analysis implements JmmAnalysis {
     private final ArrayList<Report> reports = new ArrayList<>();
+    private Consumer<Report> reportListener = report -> {};
+
     @Override
     public JmmSemanticsResult semanticAnalysis(JmmParserResult parserResult) {
         JmmNode root = parserResult.getRootNode();
-        MySymbolTable symbolTable = new MySymbolTable(parserResult.getRootNode());
-        SemanticAnalysis semanticAnalysis = new SemanticAnalysis(root, symbolTable, this.reports);
+        Diagnostics diagnostics = new Diagnostics(parserResult.getConfig(), this.reports);
+        diagnostics.setListener(this.reportListener);
+
+        MySymbolTable symbolTable = new MySymbolTable("", null, new ArrayList<>(), new ArrayList<>());
+        boolean limitReached = false;
+        try {
+            CancellationToken.current().startStage(Stage.SEMANTIC, parserResult.getConfig());
+            symbolTable = new MySymbolTable(root);
+            symbolTable.setExternalClasses(new ExternalClasses(parserResult.getConfig()));
+            new SemanticAnalysis(root, symbolTable, diagnostics);
+        } catch (Diagnostics.LimitReachedException e) {
+            limitReached = true;
+        } catch (CancellationToken.CancelledException e) {
+            diagnostics.add(e.toReport());
+        }
+        diagnostics.finish(limitReached);
 
         return new JmmSemanticsResult(parserResult, symbolTable, this.reports);
     }
 
+    public void setReportListener(Consumer<Report> reportListener) {
+        this.reportListener = reportListener;
+    }
+
     public List<Report> getReports(){
         return this.reports;
     }
@@ -0,0 +1,271 @@
+package pt.up.fe.comp2023.semantic;
+
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
+import pt.up.fe.comp.jmm.analysis.table.Type;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class ClassFileIndex {
+    private static final int CLASS_MAGIC = 0xCAFEBABE;
+    private static final int INDEX_MAGIC = 0x4A4D4D49; // "JMMI"
+    private static final short INDEX_VERSION = 1;
+    private static final int ACC_PRIVATE = 0x0002;
+
+    private final File classpath;
+    private final File cacheFile;
+    private Map<String, IndexEntry> entries;
+
+    private static class IndexEntry {
+        long lastModified;
+        long length;
+        String superClass;
+        final List<String[]> methods = new ArrayList<>(); // { name, descriptor }
+        MySymbolTable symbolTable; // built on first use, not written to the cache
+    }
+
+    public ClassFileIndex(File classpath, File cacheDirectory) {
+        this.classpath = classpath;
+        this.cacheFile = new File(cacheDirectory, Integer.toHexString(classpath.getAbsolutePath().hashCode()) + ".index");
+    }
+
+    // Returns the summary of a compiled class, or null if it is not in the classpath. The index outlives compilations,
+    // so the class file is checked on every call and a rebuilt class is parsed again
+    public MySymbolTable get(String className) {
+        File classFile = new File(this.classpath, className + ".class");
+        if (!classFile.isFile())
+            return null;
+
+        IndexEntry entry = getEntry(className, classFile);
+        if (entry == null)
+            return null;
+        if (entry.symbolTable == null)
+            entry.symbolTable = toSymbolTable(className, entry);
+        return entry.symbolTable;
+    }
+
+    private IndexEntry getEntry(String className, File classFile) {
+        if (this.entries == null)
+            this.entries = readCache();
+
+        IndexEntry entry = this.entries.get(className);
+        if (entry != null && entry.lastModified == classFile.lastModified() && entry.length == classFile.length())
+            return entry;
+
+        try {
+            entry = parseClassFile(classFile);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        this.entries.put(className, entry);
+        writeCache();
+        return entry;
+    }
+
+    private static IndexEntry parseClassFile(File classFile) throws IOException {
+        IndexEntry entry = new IndexEntry();
+        entry.lastModified = classFile.lastModified();
+        entry.length = classFile.length();
+
+        try (FileChannel channel = FileChannel.open(classFile.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != CLASS_MAGIC)
+                throw new IOException("'" + classFile + "' is not a class file.");
+            buffer.getInt(); // minor and major versions
+
+            // Only UTF8 and Class entries are kept, the remaining ones are skipped according to their size
+            int poolSize = Short.toUnsignedInt(buffer.getShort());
+            String[] utf8 = new String[poolSize];
+            int[] classNames = new int[poolSize];
+            for (int i = 1; i < poolSize; i++) {
+                int tag = Byte.toUnsignedInt(buffer.get());
+                switch (tag) {
+                    case 1 -> {
+                        byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+                        buffer.get(bytes);
+                        utf8[i] = new String(bytes, StandardCharsets.UTF_8);
+                    }
+                    case 7 -> classNames[i] = Short.toUnsignedInt(buffer.getShort());
+                    case 8, 16, 19, 20 -> buffer.position(buffer.position() + 2);
+                    case 15 -> buffer.position(buffer.position() + 3);
+                    case 3, 4, 9, 10, 11, 12, 17, 18 -> buffer.position(buffer.position() + 4);
+                    case 5, 6 -> {
+                        buffer.position(buffer.position() + 8);
+                        i++; // long and double entries take two slots
+                    }
+                    default -> throw new IOException("Unknown constant pool tag " + tag + " in '" + classFile + "'.");
+                }
+            }
+
+            buffer.getShort(); // access flags
+            buffer.getShort(); // this class
+            int superIndex = Short.toUnsignedInt(buffer.getShort());
+            String superClass = superIndex == 0 ? null : utf8[classNames[superIndex]];
+            entry.superClass = superClass == null || superClass.equals("java/lang/Object") ? null : simpleName(superClass);
+
+            int numInterfaces = Short.toUnsignedInt(buffer.getShort());
+            buffer.position(buffer.position() + 2 * numInterfaces);
+
+            skipMembers(buffer); // fields cannot be accessed from Java-- code
+
+            int numMethods = Short.toUnsignedInt(buffer.getShort());
+            for (int i = 0; i < numMethods; i++) {
+                int accessFlags = Short.toUnsignedInt(buffer.getShort());
+                String name = utf8[Short.toUnsignedInt(buffer.getShort())];
+                String descriptor = utf8[Short.toUnsignedInt(buffer.getShort())];
+                skipAttributes(buffer);
+
+                if ((accessFlags & ACC_PRIVATE) == 0 && !name.startsWith("<"))
+                    entry.methods.add(new String[]{name, descriptor});
+            }
+        }
+        return entry;
+    }
+
+    private static void skipMembers(ByteBuffer buffer) {
+        int numMembers = Short.toUnsignedInt(buffer.getShort());
+        for (int i = 0; i < numMembers; i++) {
+            buffer.position(buffer.position() + 6); // access flags, name and descriptor
+            skipAttributes(buffer);
+        }
+    }
+
+    private static void skipAttributes(ByteBuffer buffer) {
+        int numAttributes = Short.toUnsignedInt(buffer.getShort());
+        for (int i = 0; i < numAttributes; i++) {
+            buffer.getShort(); // name
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+        }
+    }
+
+    private static MySymbolTable toSymbolTable(String className, IndexEntry entry) {
+        Map<String, List<MethodTable>> overloads = new LinkedHashMap<>();
+        for (String[] method : entry.methods) {
+            List<Type> types = parseDescriptor(method[1]);
+            Type returnType = types.remove(types.size() - 1);
+            List<Symbol> parameters = new ArrayList<>();
+            for (int i = 0; i < types.size(); i++)
+                parameters.add(new Symbol(types.get(i), "arg" + i));
+            overloads.computeIfAbsent(method[0], name -> new ArrayList<>())
+                    .add(new MethodTable(method[0], parameters, new ArrayList<>(), returnType));
+        }
+
+        // Overloads can only be typed when they agree on the return type
+        List<MethodTable> methods = new ArrayList<>();
+        for (List<MethodTable> methodOverloads : overloads.values()) {
+            Type returnType = methodOverloads.get(0).getReturnType();
+            if (methodOverloads.stream().allMatch(method -> method.getReturnType().equals(returnType)))
+                methods.addAll(methodOverloads);
+        }
+        return new MySymbolTable(className, entry.superClass, new ArrayList<>(), methods);
+    }
+
+    // Returns the parameter types followed by the return type. Types Java-- cannot express keep their Java names, so
+    // that calls using them are reported by the analysis instead of being generated with the wrong descriptor
+    private static List<Type> parseDescriptor(String descriptor) {
+        List<Type> types = new ArrayList<>();
+        int i = 0;
+        while (i < descriptor.length()) {
+            char c = descriptor.charAt(i);
+            if (c == '(' || c == ')') {
+                i++;
+                continue;
+            }
+            int dimensions = 0;
+            while (descriptor.charAt(i) == '[') {
+                dimensions++;
+                i++;
+            }
+            String name;
+            switch (descriptor.charAt(i)) {
+                case 'I' -> name = "int";
+                case 'Z' -> name = "boolean";
+                case 'V' -> name = "void";
+                case 'B' -> name = "byte";
+                case 'C' -> name = "char";
+                case 'S' -> name = "short";
+                case 'J' -> name = "long";
+                case 'F' -> name = "float";
+                case 'D' -> name = "double";
+                default -> {
+                    int end = descriptor.indexOf(';', i);
+                    name = simpleName(descriptor.substring(i + 1, end));
+                    i = end;
+                }
+            }
+            i++;
+            // Java-- only has one-dimensional arrays, deeper ones can never match
+            types.add(new Type(dimensions > 1 ? name + "[]".repeat(dimensions - 1) : name, dimensions > 0));
+        }
+        return types;
+    }
+
+    private static String simpleName(String internalName) {
+        return internalName.substring(internalName.lastIndexOf('/') + 1);
+    }
+
+    private Map<String, IndexEntry> readCache() {
+        Map<String, IndexEntry> entries = new HashMap<>();
+        if (!this.cacheFile.isFile())
+            return entries;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.cacheFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readShort() != INDEX_VERSION)
+                return entries;
+            int numEntries = in.readInt();
+            for (int i = 0; i < numEntries; i++) {
+                String className = in.readUTF();
+                IndexEntry entry = new IndexEntry();
+                entry.lastModified = in.readLong();
+                entry.length = in.readLong();
+                String superClass = in.readUTF();
+                entry.superClass = superClass.isEmpty() ? null : superClass;
+                int numMethods = in.readUnsignedShort();
+                for (int m = 0; m < numMethods; m++)
+                    entry.methods.add(new String[]{in.readUTF(), in.readUTF()});
+                entries.put(className, entry);
+            }
+        } catch (IOException e) {
+            entries.clear();
+        }
+        return entries;
+    }
+
+    private void writeCache() {
+        try {
+            File directory = this.cacheFile.getParentFile();
+            if (!directory.isDirectory() && !directory.mkdirs())
+                return;
+
+            // Written to a temporary file first so that concurrent compilations never read a partial index
+            File tempFile = File.createTempFile("index", ".tmp", directory);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                out.writeInt(INDEX_MAGIC);
+                out.writeShort(INDEX_VERSION);
+                out.writeInt(this.entries.size());
+                for (Map.Entry<String, IndexEntry> mapEntry : this.entries.entrySet()) {
+                    IndexEntry entry = mapEntry.getValue();
+                    out.writeUTF(mapEntry.getKey());
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.length);
+                    out.writeUTF(entry.superClass == null ? "" : entry.superClass);
+                    out.writeShort(entry.methods.size());
+                    for (String[] method : entry.methods) {
+                        out.writeUTF(method[0]);
+                        out.writeUTF(method[1]);
+                    }
+                }
+            }
+            Files.move(tempFile.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // The cache is only an optimization, the index keeps working from memory
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package pt.up.fe.comp2023.semantic;
+
+import pt.up.fe.comp.jmm.analysis.table.Type;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp.jmm.report.Stage;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static pt.up.fe.comp2023.semantic.SemanticUtils.getNodeColumn;
+import static pt.up.fe.comp2023.semantic.SemanticUtils.getNodeLine;
+
+public class Diagnostics {
+    private static final int DEFAULT_MAX_ERRORS = 100;
+    private static final int DEFAULT_MAX_ERRORS_PER_KIND = 10;
+
+    private final int maxErrors;
+    private final int maxErrorsPerKind;
+    private final List<Report> reports;
+    private Consumer<Report> listener = report -> {};
+
+    private final int[] errorsPerKind = new int[ErrorCode.values().length];
+    private final int[] suppressedPerKind = new int[ErrorCode.values().length];
+    private final Set<List<Object>> reported = new HashSet<>();
+    private int numErrors = 0;
+    private int numDuplicates = 0;
+
+    // Thrown once the error limit is reached, so that huge inputs stop being analysed right away
+    public static class LimitReachedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    public Diagnostics(Map<String, String> config, List<Report> reports) {
+        this.maxErrors = Integer.parseInt(config.getOrDefault("maxErrors", String.valueOf(DEFAULT_MAX_ERRORS)));
+        this.maxErrorsPerKind = Integer.parseInt(config.getOrDefault("maxErrorsPerKind", String.valueOf(DEFAULT_MAX_ERRORS_PER_KIND)));
+        this.reports = reports;
+    }
+
+    // Reports are handed to the listener as soon as they are created, instead of after the whole analysis
+    public void setListener(Consumer<Report> listener) {
+        this.listener = listener;
+    }
+
+    public void error(ErrorCode code, JmmNode jmmNode, Object... arguments) {
+        int line = getNodeLine(jmmNode);
+        int column = getNodeColumn(jmmNode);
+
+        // The same error is reported once per line, even if the line is analysed repeatedly
+        List<Object> key = new ArrayList<>(arguments.length + 2);
+        key.add(code);
+        key.add(line);
+        key.addAll(Arrays.asList(arguments));
+        if (!this.reported.add(key)) {
+            this.numDuplicates++;
+            return;
+        }
+
+        // Every distinct error counts towards the limit, even once its kind is no longer reported, so that repeating
+        // one mistake still stops the analysis and the set of reported errors stays bounded
+        this.numErrors++;
+        if (this.errorsPerKind[code.ordinal()] >= this.maxErrorsPerKind)
+            this.suppressedPerKind[code.ordinal()]++;
+        else {
+            // Messages are only formatted for the errors that are kept
+            add(new Report(ReportType.ERROR, Stage.SEMANTIC, line, column, format(code, arguments)));
+            this.errorsPerKind[code.ordinal()]++;
+        }
+
+        if (this.numErrors >= this.maxErrors)
+            throw new LimitReachedException();
+    }
+
+    // Adds a summary of the errors that were left out
+    public void finish(boolean limitReached) {
+        for (ErrorCode code : ErrorCode.values()) {
+            int suppressed = this.suppressedPerKind[code.ordinal()];
+            if (suppressed > 0)
+                add(new Report(ReportType.WARNING, Stage.SEMANTIC, -1, -1,
+                        suppressed + " more errors of kind " + code.getCode() + " were not reported."));
+        }
+        if (this.numDuplicates > 0)
+            add(new Report(ReportType.LOG, Stage.SEMANTIC, -1, -1, this.numDuplicates + " duplicated errors were not reported."));
+        if (limitReached)
+            add(new Report(ReportType.WARNING, Stage.SEMANTIC, -1, -1,
+                    "Too many errors, semantic analysis stopped after " + this.maxErrors + " errors."));
+    }
+
+    public void add(Report report) {
+        this.reports.add(report);
+        this.listener.accept(report);
+    }
+
+    private static String format(ErrorCode code, Object... arguments) {
+        Object[] printed = new Object[arguments.length];
+        for (int i = 0; i < arguments.length; i++)
+            printed[i] = arguments[i] instanceof Type ? ((Type) arguments[i]).print() : arguments[i];
+        return "[" + code.getCode() + "] " + String.format(code.getFormat(), printed);
+    }
+}
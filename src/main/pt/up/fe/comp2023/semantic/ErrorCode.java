@@ -0,0 +1,39 @@
+package pt.up.fe.comp2023.semantic;
+
+public enum ErrorCode {
+    MISSING_SUPER_CLASS("E001", "Cannot find super class '%s'."),
+    MISSING_CLASS("E002", "Cannot find '%s'."),
+    UNDECLARED_SYMBOL("E003", "'%s' is not declared."),
+    RETURN_TYPE("E004", "Make method '%s' return %s."),
+    MAIN_PARAMETER("E005", "Main method expected a parameter of type 'String[]' but found '%s[]'."),
+    INVALID_CONDITION("E006", "Expected condition of type '%s' but found '%s'."),
+    INCOMPATIBLE_ASSIGNMENT("E007", "Type of the assignee is not compatible with the assigned."),
+    INCOMPATIBLE_EXPRESSION("E008", "Expected expression of type '%s' but found '%s'."),
+    INCOMPATIBLE_OPERAND("E009", "Expected operand of type '%s' but found '%s'."),
+    ARRAY_EXPECTED("E010", "Expected '%s' type but found '%s'."),
+    ARRAY_VARIABLE_EXPECTED("E011", "'%s' must be an array."),
+    INVALID_INDEX("E012", "Expected index expression of type '%s' but found '%s'."),
+    INVALID_ARRAY_LENGTH("E013", "Expected array length to be '%s' but found '%s'."),
+    UNKNOWN_LENGTH("E014", "Cannot resolve symbol 'length'."),
+    INVALID_CALLER("E015", "Expected expression of type '%s' or '%s' but found '%s'."),
+    ARGUMENT_COUNT("E016", "Method '%s' expected %s arguments but found %s."),
+    ARGUMENT_TYPE("E017", "Method '%s' expected argument '%s' to be '%s' but found '%s'."),
+    THIS_IN_STATIC("E018", "'this' expression cannot be used in a static method."),
+    INEXPRESSIBLE_TYPE("E019", "Method '%s' uses type '%s', which cannot be used in Java--.");
+
+    private final String code;
+    private final String format;
+
+    ErrorCode(String code, String format) {
+        this.code = code;
+        this.format = format;
+    }
+
+    public String getCode() {
+        return this.code;
+    }
+
+    public String getFormat() {
+        return this.format;
+    }
+}
@@ -1,29 +1,26 @@
 package pt.up.fe.comp2023.semantic;
 
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.analysis.table.Type;
-import pt.up.fe.comp.jmm.ast.AJmmVisitor;
+import pt.up.fe.comp2023.CancellableVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
-import pt.up.fe.comp.jmm.report.Report;
-import pt.up.fe.comp.jmm.report.ReportType;
-import pt.up.fe.comp.jmm.report.Stage;
-import pt.up.fe.comp2023.semantic.MySymbolTable;
 
 import java.util.List;
 import java.util.Objects;
 
 import static pt.up.fe.comp2023.semantic.SemanticUtils.*;
 
-public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
+public class ExpressionAnalysis extends CancellableVisitor<Type, Type> {
     private String methodName;
     private final MySymbolTable symbolTable;
-    private final List<Report> reports;
+    private final Diagnostics diagnostics;
     private final String className;
     private final String superClass;
     private final List<String> imports;
-    public ExpressionAnalysis (String methodName, MySymbolTable symbolTable, List<Report> reports){
+    public ExpressionAnalysis (String methodName, MySymbolTable symbolTable, Diagnostics diagnostics){
         this.methodName = methodName;
         this.symbolTable = symbolTable;
-        this.reports = reports;
+        this.diagnostics = diagnostics;
         this.className = this.symbolTable.getClassName();
         this.superClass = this.symbolTable.getSuper();
         this.imports = this.symbolTable.getImports();
@@ -33,6 +30,14 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         this.methodName = methodName;
     }
 
+    @Override
+    public Type visit(JmmNode jmmNode, Type type) {
+        // Expressions are typed once, the type stored on the node is reused by later visits
+        if (jmmNode.hasAttribute(TYPENAME))
+            return getTypeFromName(jmmNode.get(TYPENAME));
+        return super.visit(jmmNode, type);
+    }
+
     @Override
     protected void buildVisitor() {
         addVisit("ParenthesesExpr", this::dealWithParenthesesExpr);
@@ -62,8 +67,7 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         Type expressionType = visit(expressionNode);
 
         if(!expressionType.equals(BOOLEAN_TYPE)){
-            String message = "Expected expression of type '" +  BOOLEAN + "' but found '" + expressionType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(expressionNode), getNodeColumn(expressionNode), message));
+            this.diagnostics.error(ErrorCode.INCOMPATIBLE_EXPRESSION, expressionNode, BOOLEAN, expressionType);
         }
 
         jmmNode.put(TYPENAME, BOOLEAN);
@@ -77,12 +81,10 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         Type rightOperandType = visit(rightNode);
 
         if(!leftOperandType.equals(INT_TYPE)) {
-            String message = "Expected operand of type '" + INT + "' but found '" + leftOperandType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(leftNode), getNodeColumn(leftNode), message));
+            this.diagnostics.error(ErrorCode.INCOMPATIBLE_OPERAND, leftNode, INT, leftOperandType);
         }
         if(!rightOperandType.equals(INT_TYPE)) {
-            String message = "Expected operand of type '" + INT + "' but found '" + rightOperandType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(rightNode), getNodeColumn(rightNode), message));
+            this.diagnostics.error(ErrorCode.INCOMPATIBLE_OPERAND, rightNode, INT, rightOperandType);
         }
 
         if(Objects.equals(jmmNode.getKind(), "ArithmeticExpr")) {
@@ -102,13 +104,11 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         Type rightOperandType = visit(rightNode);
 
         if(!leftOperandType.equals(BOOLEAN_TYPE)) {
-            String message = "Expected operand of type '" + BOOLEAN + "' but found '" + leftOperandType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(leftNode), getNodeColumn(leftNode), message));
+            this.diagnostics.error(ErrorCode.INCOMPATIBLE_OPERAND, leftNode, BOOLEAN, leftOperandType);
         }
 
         if(!rightOperandType.equals(BOOLEAN_TYPE)) {
-            String message = "Expected operand of type '" + BOOLEAN + "' but found '" + rightOperandType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(rightNode), getNodeColumn(rightNode), message));
+            this.diagnostics.error(ErrorCode.INCOMPATIBLE_OPERAND, rightNode, BOOLEAN, rightOperandType);
         }
 
         jmmNode.put(TYPENAME, BOOLEAN);
@@ -122,13 +122,11 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         Type indexType = visit(indexNode);
 
         if (!variableType.equals(ARRAY_TYPE)) {
-            String message = "Expected '" + ARRAY_TYPE + "' type but found '" + variableType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(variableNode), getNodeColumn(variableNode), message));
+            this.diagnostics.error(ErrorCode.ARRAY_EXPECTED, variableNode, ARRAY_TYPE, variableType);
         }
 
         if (!indexType.equals(INT_TYPE)) {
-            String message = "Expected index expression of type '" + INT +"' but found '" + indexType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(indexNode), getNodeColumn(indexNode), message));
+            this.diagnostics.error(ErrorCode.INVALID_INDEX, indexNode, INT, indexType);
         }
 
         jmmNode.put(TYPENAME, INT);
@@ -139,8 +137,7 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         Type expressionType = visit(jmmNode.getJmmChild(0));
 
         if(!expressionType.equals(ARRAY_TYPE)){
-            String message = "Cannot resolve symbol 'length'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.UNKNOWN_LENGTH, jmmNode);
         }
 
         jmmNode.put(TYPENAME, INT);
@@ -153,36 +150,63 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
 
         if(this.symbolTable.getMethods().contains(method)){
             if(!Objects.equals(expressionType, this.className) && !Objects.equals(expressionType, this.superClass)){
-                String message = "Expected expression of type '" + this.className + "' or '" + this.superClass + "' but found '" + expressionType + "'.";
-                this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+                this.diagnostics.error(ErrorCode.INVALID_CALLER, jmmNode, this.className, this.superClass, expressionType);
             }
-            this.verifyArgumentTypes(jmmNode.getJmmChild(1), method);
+            this.verifyArgumentTypes(jmmNode.getJmmChild(1), method, this.symbolTable);
             jmmNode.put(TYPENAME, this.symbolTable.getReturnType(method).print());
             return this.symbolTable.getReturnType(method);
         }
 
-        else if(Objects.equals(expressionType, this.className) || Objects.equals(expressionType, this.superClass)){
+        MySymbolTable externalClass;
+        if(Objects.equals(expressionType, this.className) || Objects.equals(expressionType, this.superClass)){
             if(!findImport(this.imports, this.superClass)){
-                String message = "Cannot find super class '" + this.superClass + "'.";
-                this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+                this.diagnostics.error(ErrorCode.MISSING_SUPER_CLASS, jmmNode, this.superClass);
             }
+            externalClass = this.symbolTable.getExternalClass(this.superClass);
         }
 
         else if(!findImport(this.imports, expressionType)){
-            String message = "'" + expressionType + "' is not declared.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, jmmNode, expressionType);
+            externalClass = null;
+        }
+        else
+            externalClass = this.symbolTable.getExternalClass(expressionType);
+
+        // Methods of external classes with a known summary are checked like the ones of this class
+        if(externalClass != null && externalClass.getMethods().contains(method)){
+            // The call could not be generated with the descriptor of the method
+            Type inexpressible = findInexpressibleType(method, externalClass);
+            if(inexpressible != null){
+                this.diagnostics.error(ErrorCode.INEXPRESSIBLE_TYPE, jmmNode, method, inexpressible);
+                jmmNode.put(TYPENAME, UNKNOWN);
+                return UNKNOWN_TYPE;
+            }
+            if(!externalClass.isOverloaded(method))
+                this.verifyArgumentTypes(jmmNode.getJmmChild(1), method, externalClass);
+            jmmNode.put(TYPENAME, externalClass.getReturnType(method).print());
+            return externalClass.getReturnType(method);
         }
         jmmNode.put(TYPENAME, UNDEFINED);
         return UNDEFINED_TYPE;
     }
 
-    private void verifyArgumentTypes(JmmNode jmmNode, String method) {
+    // Overloads are chosen by the types of the arguments, so only the return type they share has to be expressible
+    private Type findInexpressibleType(String method, MySymbolTable symbolTable) {
+        if(!isExpressible(symbolTable.getReturnType(method)))
+            return symbolTable.getReturnType(method);
+        if(!symbolTable.isOverloaded(method))
+            for(Symbol parameter : symbolTable.getParameters(method))
+                if(!isExpressible(parameter.getType()))
+                    return parameter.getType();
+        return null;
+    }
+
+    private void verifyArgumentTypes(JmmNode jmmNode, String method, MySymbolTable symbolTable) {
         int numDeclaredParams = symbolTable.getParameters(method).size();
         int numCallParams = jmmNode.getNumChildren();
 
         if(numDeclaredParams != numCallParams){
-            String message = "Method '" + method + "' expected " + numDeclaredParams + " arguments but found " + numCallParams + ".";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.ARGUMENT_COUNT, jmmNode, method, numDeclaredParams, numCallParams);
         }
 
         for(int i=0; i < numDeclaredParams && i < numCallParams; i++){
@@ -192,8 +216,7 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
 
             if(!declaredParamType.equals(callParamType)){
                 String declaredArgumentName = symbolTable.getParameters(method).get(i).getName();
-                String message = "Method '" + method + "' expected argument '" + declaredArgumentName + "' to be '" + declaredParamType.print() + "' but found '" + callParamType.print() + ".";
-                this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(callParamNode), getNodeColumn(callParamNode), message));
+                this.diagnostics.error(ErrorCode.ARGUMENT_TYPE, callParamNode, method, declaredArgumentName, declaredParamType, callParamType);
             }
         }
     }
@@ -203,8 +226,7 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         Type lengthType = visit(lengthNode);
 
         if (!lengthType.equals(INT_TYPE)){
-            String message = "Expected array length to be '" + INT + "' but found '" + lengthType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(lengthNode), getNodeColumn(lengthNode), message));
+            this.diagnostics.error(ErrorCode.INVALID_ARRAY_LENGTH, lengthNode, INT, lengthType);
         }
 
         jmmNode.put(TYPENAME, ARRAY);
@@ -224,8 +246,7 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
             return new Type(objectClassName, false);
         }
 
-        String message = "Cannot find '" + objectClassName + "'.";
-        this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+        this.diagnostics.error(ErrorCode.MISSING_CLASS, jmmNode, objectClassName);
         jmmNode.put(TYPENAME, UNKNOWN);
         return UNKNOWN_TYPE;
     }
@@ -242,8 +263,7 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
 
     private Type dealWithThis(JmmNode jmmNode, Type type) {
         if (Objects.equals(this.methodName, "main")) {
-            String message = "'this' expression cannot be used in a static method.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.THIS_IN_STATIC, jmmNode);
             jmmNode.put(TYPENAME, UNKNOWN);
             return UNKNOWN_TYPE;
         }
@@ -256,8 +276,7 @@ public class ExpressionAnalysis extends AJmmVisitor<Type, Type> {
         Type identifierType = getIdentifierType(this.methodName, identifier, this.symbolTable);
 
         if(Objects.equals(identifierType.print(), UNKNOWN)){
-            String message = "'" + identifier + "' is not declared.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, jmmNode, identifier);
             jmmNode.put(TYPENAME, UNKNOWN);
         }
         jmmNode.put(TYPENAME, identifierType.print());
@@ -0,0 +1,65 @@
+package pt.up.fe.comp2023.semantic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.util.*;
+
+public class ExternalClasses {
+    private static final String DEFAULT_CLASSPATH = "libs-jmm/compiled";
+    private static final Map<String, ClassFileIndex> classFileIndexes = new HashMap<>();
+
+    private final List<File> searchPath = new ArrayList<>();
+    private final List<ClassFileIndex> classpath = new ArrayList<>();
+    private final Map<String, MySymbolTable> loadedClasses = new HashMap<>();
+
+    public ExternalClasses(Map<String, String> config) {
+        String symbolPath = config.get("symbolPath");
+        if (symbolPath != null)
+            for (String directory : symbolPath.split(File.pathSeparator))
+                if (!directory.isEmpty())
+                    this.searchPath.add(new File(directory));
+
+        File cacheDirectory = new File(config.getOrDefault("classpathIndex",
+                System.getProperty("java.io.tmpdir") + File.separator + "jmm-classpath-index"));
+        for (String directory : config.getOrDefault("classpath", DEFAULT_CLASSPATH).split(File.pathSeparator))
+            if (!directory.isEmpty())
+                this.classpath.add(getClassFileIndex(new File(directory), cacheDirectory));
+    }
+
+    // Indexes are shared by every compilation running in the same process
+    private static synchronized ClassFileIndex getClassFileIndex(File directory, File cacheDirectory) {
+        String key = directory.getAbsolutePath() + File.pathSeparator + cacheDirectory.getAbsolutePath();
+        return classFileIndexes.computeIfAbsent(key, k -> new ClassFileIndex(directory, cacheDirectory));
+    }
+
+    // Returns the summary of an external class, or null if no summary was found
+    public MySymbolTable get(String className) {
+        if (this.loadedClasses.containsKey(className))
+            return this.loadedClasses.get(className);
+
+        MySymbolTable symbolTable = null;
+        for (File directory : this.searchPath) {
+            File file = new File(directory, className + SymbolTableSerializer.EXTENSION);
+            if (!file.isFile())
+                continue;
+            try {
+                symbolTable = SymbolTableSerializer.read(file);
+                break;
+            } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+                // Stale or corrupted summaries are ignored, the class is then treated as unknown
+            }
+        }
+
+        // Classes without a Java-- summary may still be compiled ones
+        for (int i = 0; symbolTable == null && i < this.classpath.size(); i++) {
+            ClassFileIndex index = this.classpath.get(i);
+            synchronized (index) {
+                symbolTable = index.get(className);
+            }
+        }
+
+        this.loadedClasses.put(className, symbolTable);
+        return symbolTable;
+    }
+}
@@ -3,12 +3,12 @@ package pt.up.fe.comp2023.semantic;
 import pt.up.fe.comp.jmm.analysis.table.Symbol;
 import pt.up.fe.comp.jmm.analysis.table.SymbolTable;
 import pt.up.fe.comp.jmm.analysis.table.Type;
-import pt.up.fe.comp.jmm.ast.AJmmVisitor;
+import pt.up.fe.comp2023.CancellableVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
 
 import java.util.*;
 
-public class MySymbolTable extends AJmmVisitor<Void, Void> implements SymbolTable {
+public class MySymbolTable extends CancellableVisitor<Void, Void> implements SymbolTable {
 
     private final List<String> imports = new ArrayList<>();
     private String className;
@@ -16,11 +16,38 @@ public class MySymbolTable extends AJmmVisitor<Void, Void> implements SymbolTabl
     private final List<Symbol> fields = new ArrayList<>();
     private final List<String> methods = new ArrayList<>();
     private final Map<String, MethodTable> methodTables = new HashMap<>();
+    private final Set<String> overloadedMethods = new HashSet<>();
+    private ExternalClasses externalClasses;
 
     public MySymbolTable(JmmNode jmmNode) {
         this.visit(jmmNode);
     }
 
+    public MySymbolTable(String className, String superClass, List<Symbol> fields, List<MethodTable> methods) {
+        this.className = className;
+        this.superClass = superClass;
+        this.fields.addAll(fields);
+        for (MethodTable method : methods) {
+            // Only external classes can have overloads, in which case the first one is kept
+            if (this.methodTables.containsKey(method.getName())) {
+                this.overloadedMethods.add(method.getName());
+                continue;
+            }
+            this.methods.add(method.getName());
+            this.methodTables.put(method.getName(), method);
+        }
+    }
+
+    public void setExternalClasses(ExternalClasses externalClasses) {
+        this.externalClasses = externalClasses;
+    }
+
+    public MySymbolTable getExternalClass(String className) {
+        if (this.externalClasses == null || !SemanticUtils.findImport(this.imports, className))
+            return null;
+        return this.externalClasses.get(className);
+    }
+
     @Override
     public List<String> getImports() {
         return this.imports;
@@ -56,6 +83,10 @@ public class MySymbolTable extends AJmmVisitor<Void, Void> implements SymbolTabl
         return this.methodTables.get(methodSignature).getParameters();
     }
 
+    public boolean isOverloaded(String methodSignature) {
+        return this.overloadedMethods.contains(methodSignature);
+    }
+
     @Override
     public List<Symbol> getLocalVariables(String methodSignature) {
         return this.methodTables.get(methodSignature).getLocalVariables();
@@ -1,33 +1,30 @@
 package pt.up.fe.comp2023.semantic;
 
 import pt.up.fe.comp.jmm.analysis.table.Type;
-import pt.up.fe.comp.jmm.ast.AJmmVisitor;
+import pt.up.fe.comp2023.CancellableVisitor;
 import pt.up.fe.comp.jmm.ast.JmmNode;
-import pt.up.fe.comp.jmm.report.Report;
-import pt.up.fe.comp.jmm.report.ReportType;
-import pt.up.fe.comp.jmm.report.Stage;
 
 import java.util.List;
 import java.util.Objects;
 
 import static pt.up.fe.comp2023.semantic.SemanticUtils.*;
 
-public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
+public class SemanticAnalysis extends CancellableVisitor<Void, Void> {
     private final MySymbolTable symbolTable;
-    private final List<Report> reports;
+    private final Diagnostics diagnostics;
     private final String className;
     private final String superClass;
     private final List<String> imports;
     private String currentMethodName;
     private final ExpressionAnalysis expressionAnalysis;
 
-    public SemanticAnalysis (JmmNode rootNode, MySymbolTable symbolTable, List<Report> reports){
+    public SemanticAnalysis (JmmNode rootNode, MySymbolTable symbolTable, Diagnostics diagnostics){
         this.symbolTable = symbolTable;
-        this.reports = reports;
+        this.diagnostics = diagnostics;
         this.className = this.symbolTable.getClassName();
         this.superClass = this.symbolTable.getSuper();
         this.imports = this.symbolTable.getImports();
-        this.expressionAnalysis = new ExpressionAnalysis(this.currentMethodName, this.symbolTable, this.reports);
+        this.expressionAnalysis = new ExpressionAnalysis(this.currentMethodName, this.symbolTable, this.diagnostics);
         visit(rootNode);
     }
 
@@ -60,8 +57,7 @@ public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
         String superClass = this.symbolTable.getSuper();
 
         if(superClass != null && !findImport(this.imports, superClass)){
-            String message = "Cannot find super class '" + superClass + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.MISSING_SUPER_CLASS, jmmNode, superClass);
         }
         for (JmmNode child: jmmNode.getChildren())
             visit(child);
@@ -75,11 +71,11 @@ public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
         Type returnNodeType = expressionAnalysis.visit(returnNode);
 
         if(!returnNodeType.equals(returnType) && !returnNodeType.equals(UNDEFINED_TYPE)){
-            String message = "Make method '" + jmmNode.get("methodname") +"' return " + returnType.print() + ".";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(returnNode), getNodeColumn(returnNode), message));
+            this.diagnostics.error(ErrorCode.RETURN_TYPE, returnNode, jmmNode.get("methodname"), returnType);
         }
-        for (JmmNode child: jmmNode.getChildren())
-            visit(child);
+        // The return expression was already analysed
+        for (int i = 0; i < jmmNode.getNumChildren() - 1; i++)
+            visit(jmmNode.getJmmChild(i));
         return null;
     }
 
@@ -96,8 +92,7 @@ public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
         String parameterType = jmmNode.get("parametertype");
 
         if(!Objects.equals(parameterType, "String")) {
-            String message = "Main method expected a parameter of type 'String[]' but found '" + parameterType + "[]'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.MAIN_PARAMETER, jmmNode, parameterType);
         }
         for (JmmNode child: jmmNode.getChildren())
             visit(child);
@@ -109,8 +104,7 @@ public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
         Type conditionType = expressionAnalysis.visit(expressionNode);
 
         if(!conditionType.equals(BOOLEAN_TYPE)) {
-            String message = "Expected condition of type '" + BOOLEAN + "' but found '" + conditionType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(expressionNode), getNodeColumn(expressionNode), message));
+            this.diagnostics.error(ErrorCode.INVALID_CONDITION, expressionNode, BOOLEAN, conditionType);
         }
         for(int i= 1; i < jmmNode.getNumChildren(); i++){
             visit(jmmNode.getJmmChild(i));
@@ -130,8 +124,7 @@ public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
         Type right = expressionAnalysis.visit(expressionNode);
 
         if(left.equals(UNKNOWN_TYPE)){
-            String message = "'" + varName + "' is not declared.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, jmmNode, varName);
         }
 
         else if (right.equals(UNKNOWN_TYPE))
@@ -153,8 +146,7 @@ public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
             return null;
 
         else {
-            String message = "Type of the assignee is not compatible with the assigned.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(expressionNode), getNodeColumn(expressionNode), message));
+            this.diagnostics.error(ErrorCode.INCOMPATIBLE_ASSIGNMENT, expressionNode);
         }
         return null;
     }
@@ -168,19 +160,16 @@ public class SemanticAnalysis extends AJmmVisitor<Void, Void> {
         Type valueType = expressionAnalysis.visit(valueNode);
 
         if(!varType.equals(ARRAY_TYPE)){
-            String message = "'" + varName + "' must be an array.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(jmmNode), getNodeColumn(jmmNode), message));
+            this.diagnostics.error(ErrorCode.ARRAY_VARIABLE_EXPECTED, jmmNode, varName);
         }
         if(!indexType.equals(INT_TYPE)){
-            String message = "Expected index expression of type '" + INT +"' but found '" + indexType.print() + "'.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(indexNode), getNodeColumn(indexNode), message));
+            this.diagnostics.error(ErrorCode.INVALID_INDEX, indexNode, INT, indexType);
         }
         if(valueType.equals(UNDEFINED_TYPE)){
             valueNode.put(TYPENAME, INT);
         }
         else if(!valueType.equals(INT_TYPE)){
-            String message = "Type of the assignee is not compatible with the assigned.";
-            this.reports.add(new Report(ReportType.ERROR, Stage.SEMANTIC, getNodeLine(valueNode), getNodeColumn(valueNode), message));
+            this.diagnostics.error(ErrorCode.INCOMPATIBLE_ASSIGNMENT, valueNode);
         }
         return null;
     }
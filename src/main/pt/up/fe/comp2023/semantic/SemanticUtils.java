@@ -6,6 +6,7 @@ import pt.up.fe.comp.jmm.ast.JmmNode;
 
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 
 import static java.lang.Integer.parseInt;
 
@@ -24,6 +25,8 @@ public class SemanticUtils {
     public static final String UNKNOWN = UNKNOWN_TYPE.print();
     public static final String UNDEFINED = UNDEFINED_TYPE.print();
 
+    private static final Set<String> INEXPRESSIBLE_TYPES = Set.of("byte", "char", "short", "long", "float", "double");
+
     //Typename attribute
     public static final String TYPENAME = "typename";
 
@@ -62,6 +65,17 @@ public class SemanticUtils {
         return UNKNOWN_TYPE;
     }
 
+    // Compiled classes may use primitive types and array dimensions that Java-- has no way to express
+    public static boolean isExpressible(Type type) {
+        return !INEXPRESSIBLE_TYPES.contains(type.getName()) && !type.getName().endsWith("[]");
+    }
+
+    public static Type getTypeFromName(String typeName) {
+        if (typeName.endsWith("[]"))
+            return new Type(typeName.substring(0, typeName.length() - 2), true);
+        return new Type(typeName, false);
+    }
+
     public static int getNodeLine(JmmNode jmmNode){
         return parseInt(jmmNode.get("lineStart"));
     }
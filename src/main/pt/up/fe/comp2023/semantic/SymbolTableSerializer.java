@@ -0,0 +1,155 @@
+package pt.up.fe.comp2023.semantic;
+
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
+import pt.up.fe.comp.jmm.analysis.table.Type;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+public class SymbolTableSerializer {
+    public static final String EXTENSION = ".symbols";
+    private static final int MAGIC = 0x4A4D4D53; // "JMMS"
+    private static final short VERSION = 1;
+    private static final int NO_STRING = 0xFFFF;
+    private static final int MAX_U1 = 0xFF;
+    private static final int MAX_U2 = 0xFFFF;
+
+    /*
+     * Layout (big-endian):
+     *   u4 magic, u2 version
+     *   u2 string count, { u2 length, u1[length] utf8 } - every name is stored once and referenced by index
+     *   u2 class name, u2 super class (0xFFFF if none)
+     *   u2 field count,  { u2 name, type }
+     *   u2 method count, { u2 name, type returnType, u1 param count, { u2 name, type } }
+     * where type is { u2 name, u1 isArray }
+     */
+    public static File write(MySymbolTable symbolTable, File directory) throws IOException {
+        List<String> strings = new ArrayList<>();
+        Map<String, Integer> stringIds = new HashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        out.writeShort(intern(symbolTable.getClassName(), strings, stringIds));
+        out.writeShort(symbolTable.getSuper() == null ? NO_STRING : intern(symbolTable.getSuper(), strings, stringIds));
+
+        out.writeShort(checkLimit(symbolTable.getFields().size(), MAX_U2, "fields"));
+        for (Symbol field : symbolTable.getFields())
+            writeSymbol(out, field, strings, stringIds);
+
+        out.writeShort(checkLimit(symbolTable.getMethods().size(), MAX_U2, "methods"));
+        for (String method : symbolTable.getMethods()) {
+            List<Symbol> parameters = symbolTable.getParameters(method);
+            out.writeShort(intern(method, strings, stringIds));
+            writeType(out, symbolTable.getReturnType(method), strings, stringIds);
+            out.writeByte(checkLimit(parameters.size(), MAX_U1, "parameters of method '" + method + "'"));
+            for (Symbol parameter : parameters)
+                writeSymbol(out, parameter, strings, stringIds);
+        }
+
+        // Checked before the file is opened, so that a summary is never left half written
+        for (String string : strings)
+            checkLimit(string.getBytes(StandardCharsets.UTF_8).length, MAX_U2, "bytes in a name");
+
+        File file = new File(directory, symbolTable.getClassName() + EXTENSION);
+        try (DataOutputStream fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            fileOut.writeInt(MAGIC);
+            fileOut.writeShort(VERSION);
+            fileOut.writeShort(strings.size());
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                fileOut.writeShort(bytes.length);
+                fileOut.write(bytes);
+            }
+            body.writeTo(fileOut);
+        }
+        return file;
+    }
+
+    public static MySymbolTable read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        }
+    }
+
+    public static MySymbolTable read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 6 || buffer.getInt() != MAGIC)
+            throw new IOException("Not a symbol table file.");
+        short version = buffer.getShort();
+        if (version != VERSION)
+            throw new IOException("Unsupported symbol table version " + version + ", expected " + VERSION + ".");
+
+        String[] strings = new String[Short.toUnsignedInt(buffer.getShort())];
+        for (int i = 0; i < strings.length; i++) {
+            byte[] bytes = new byte[Short.toUnsignedInt(buffer.getShort())];
+            buffer.get(bytes);
+            strings[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        String className = strings[Short.toUnsignedInt(buffer.getShort())];
+        int superIndex = Short.toUnsignedInt(buffer.getShort());
+        String superClass = superIndex == NO_STRING ? null : strings[superIndex];
+
+        List<Symbol> fields = new ArrayList<>();
+        int numFields = Short.toUnsignedInt(buffer.getShort());
+        for (int i = 0; i < numFields; i++)
+            fields.add(readSymbol(buffer, strings));
+
+        List<MethodTable> methods = new ArrayList<>();
+        int numMethods = Short.toUnsignedInt(buffer.getShort());
+        for (int i = 0; i < numMethods; i++) {
+            String name = strings[Short.toUnsignedInt(buffer.getShort())];
+            Type returnType = readType(buffer, strings);
+            List<Symbol> parameters = new ArrayList<>();
+            int numParameters = Byte.toUnsignedInt(buffer.get());
+            for (int p = 0; p < numParameters; p++)
+                parameters.add(readSymbol(buffer, strings));
+            methods.add(new MethodTable(name, parameters, new ArrayList<>(), returnType));
+        }
+
+        return new MySymbolTable(className, superClass, fields, methods);
+    }
+
+    // The counts and indexes of the layout have a fixed size, so a class that does not fit cannot be summarized
+    private static int checkLimit(int value, int max, String what) throws IOException {
+        if (value > max)
+            throw new IOException("Too many " + what + " for a symbol table file: " + value + ", the limit is " + max + ".");
+        return value;
+    }
+
+    private static int intern(String string, List<String> strings, Map<String, Integer> stringIds) throws IOException {
+        Integer id = stringIds.get(string);
+        if (id == null) {
+            // The last index marks a missing super class
+            id = checkLimit(strings.size(), NO_STRING - 1, "names");
+            strings.add(string);
+            stringIds.put(string, id);
+        }
+        return id;
+    }
+
+    private static void writeType(DataOutputStream out, Type type, List<String> strings, Map<String, Integer> stringIds) throws IOException {
+        out.writeShort(intern(type.getName(), strings, stringIds));
+        out.writeByte(type.isArray() ? 1 : 0);
+    }
+
+    private static void writeSymbol(DataOutputStream out, Symbol symbol, List<String> strings, Map<String, Integer> stringIds) throws IOException {
+        out.writeShort(intern(symbol.getName(), strings, stringIds));
+        writeType(out, symbol.getType(), strings, stringIds);
+    }
+
+    private static Type readType(ByteBuffer buffer, String[] strings) {
+        String name = strings[Short.toUnsignedInt(buffer.getShort())];
+        return new Type(name, buffer.get() != 0);
+    }
+
+    private static Symbol readSymbol(ByteBuffer buffer, String[] strings) {
+        String name = strings[Short.toUnsignedInt(buffer.getShort())];
+        return new Symbol(readType(buffer, strings), name);
+    }
+}
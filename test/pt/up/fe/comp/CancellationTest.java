@@ -0,0 +1,24 @@
+package pt.up.fe.comp;
+
+import org.junit.Test;
+import pt.up.fe.comp2023.CancellationToken;
+import pt.up.fe.comp2023.semantic.Analysis;
+
+/**
+ * Test that a cancellation only stops the compilation it was issued for.
+ */
+public class CancellationTest {
+
+    private static final String CODE = "import io; class Simple { public static void main(String[] args) { io.println(1); } }";
+
+    @Test
+    public void threadIsReusedAfterCancellation() {
+        // Cancelled by a watchdog while the first compilation is running
+        var parserResult = TestUtils.parse(CODE);
+        CancellationToken.current().cancel();
+        TestUtils.mustFail(new Analysis().semanticAnalysis(parserResult).getReports());
+
+        // The next compilation on the same thread is not affected
+        TestUtils.noErrors(TestUtils.backend(CODE));
+    }
+}
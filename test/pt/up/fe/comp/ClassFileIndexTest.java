@@ -0,0 +1,98 @@
+package pt.up.fe.comp;
+
+import org.junit.Test;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp2023.semantic.ClassFileIndex;
+import pt.up.fe.comp2023.semantic.SemanticUtils;
+import pt.up.fe.specs.util.SpecsIo;
+
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the index of compiled classes shared by compilations in the same process.
+ */
+public class ClassFileIndexTest {
+
+    @Test
+    public void rebuiltClassIsIndexedAgain() throws IOException {
+        File classpath = Files.createTempDirectory("classpath").toFile();
+        File cacheDirectory = Files.createTempDirectory("classpath-index").toFile();
+        try {
+            File classFile = new File(classpath, "Library.class");
+            Files.copy(new File("libs-jmm/compiled/MathUtils.class").toPath(), classFile.toPath());
+
+            ClassFileIndex index = new ClassFileIndex(classpath, cacheDirectory);
+            assertTrue(index.get("Library").getMethods().contains("random"));
+
+            // The class is rebuilt with other methods
+            Files.copy(new File("libs-jmm/compiled/ioPlus.class").toPath(), classFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            classFile.setLastModified(classFile.lastModified() + 2000);
+
+            assertTrue(index.get("Library").getMethods().contains("printResult"));
+            assertFalse(index.get("Library").getMethods().contains("random"));
+        } finally {
+            SpecsIo.deleteFolder(classpath);
+            SpecsIo.deleteFolder(cacheDirectory);
+        }
+    }
+
+    private static final String EXTERNAL_CLASS = "public class Ext {" +
+            "public static long big() { return 1L << 40; }" +
+            "public static int half(double value) { return (int) (value / 2); }" +
+            "public static int small() { return 1; } }";
+
+    // Compiles the external class and analyses a call to one of its methods
+    private static List<Report> analyseCall(String call) throws IOException {
+        File classpath = Files.createTempDirectory("classpath").toFile();
+        File cacheDirectory = Files.createTempDirectory("classpath-index").toFile();
+        try {
+            File source = new File(classpath, "Ext.java");
+            Files.writeString(source.toPath(), EXTERNAL_CLASS);
+            assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d", classpath.getPath(), source.getPath()));
+
+            ClassFileIndex index = new ClassFileIndex(classpath, cacheDirectory);
+            assertFalse(SemanticUtils.isExpressible(index.get("Ext").getReturnType("big")));
+            assertFalse(SemanticUtils.isExpressible(index.get("Ext").getParameters("half").get(0).getType()));
+            assertTrue(SemanticUtils.isExpressible(index.get("Ext").getReturnType("small")));
+
+            Map<String, String> config = new HashMap<>();
+            config.put("classpath", classpath.getPath());
+            config.put("classpathIndex", cacheDirectory.getPath());
+            return TestUtils.analyse("import Ext; class Main { public static void main(String[] args) { int a; " + call + " } }",
+                    config).getReports();
+        } finally {
+            SpecsIo.deleteFolder(classpath);
+            SpecsIo.deleteFolder(cacheDirectory);
+        }
+    }
+
+    @Test
+    public void longReturningMethodIsReported() throws IOException {
+        List<Report> reports = analyseCall("Ext.big();");
+        TestUtils.mustFail(reports);
+        assertTrue(reports.stream().anyMatch(report -> report.getMessage().equals("[E019] Method 'big' uses type 'long', which cannot be used in Java--.")));
+    }
+
+    @Test
+    public void doubleTakingMethodIsReported() throws IOException {
+        List<Report> reports = analyseCall("a = Ext.half(4);");
+        TestUtils.mustFail(reports);
+        assertTrue(reports.stream().anyMatch(report -> report.getMessage().equals("[E019] Method 'half' uses type 'double', which cannot be used in Java--.")));
+    }
+
+    @Test
+    public void expressibleMethodOfTheSameClassIsAccepted() throws IOException {
+        TestUtils.noErrors(analyseCall("a = Ext.small();"));
+    }
+}
@@ -0,0 +1,79 @@
+package pt.up.fe.comp;
+
+import org.junit.Test;
+import pt.up.fe.comp.jmm.ast.JmmNode;
+import pt.up.fe.comp.jmm.ast.JmmNodeImpl;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp.jmm.report.ReportType;
+import pt.up.fe.comp2023.semantic.Diagnostics;
+import pt.up.fe.comp2023.semantic.ErrorCode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the limits and deduplication of semantic errors.
+ */
+public class DiagnosticsTest {
+
+    private static JmmNode node(int line) {
+        JmmNode node = new JmmNodeImpl("Identifier");
+        node.put("lineStart", String.valueOf(line));
+        node.put("colStart", "0");
+        return node;
+    }
+
+    @Test
+    public void duplicatesAreNotCountedAsSuppressed() {
+        List<Report> reports = new ArrayList<>();
+        Diagnostics diagnostics = new Diagnostics(Map.of("maxErrorsPerKind", "2"), reports);
+
+        diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, node(1), "a");
+        diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, node(2), "b");
+        diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, node(3), "c");
+        // Analysed again once the limit of the kind was reached
+        diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, node(1), "a");
+        diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, node(3), "c");
+        diagnostics.finish(false);
+
+        assertEquals(2, reports.stream().filter(report -> report.getType() == ReportType.ERROR).count());
+        assertTrue(reports.stream().anyMatch(report -> report.getMessage().equals("1 more errors of kind E003 were not reported.")));
+        assertTrue(reports.stream().anyMatch(report -> report.getMessage().equals("2 duplicated errors were not reported.")));
+    }
+
+    @Test
+    public void suppressedErrorsCountTowardsTheLimit() {
+        List<Report> reports = new ArrayList<>();
+        Diagnostics diagnostics = new Diagnostics(Map.of("maxErrors", "50", "maxErrorsPerKind", "5"), reports);
+
+        int analysed = 0;
+        try {
+            for (; analysed < 10000; analysed++)
+                diagnostics.error(ErrorCode.UNDECLARED_SYMBOL, node(analysed), "a");
+            fail("Expected the analysis to stop");
+        } catch (Diagnostics.LimitReachedException e) {
+            diagnostics.finish(true);
+        }
+
+        assertEquals(49, analysed);
+        assertEquals(5, reports.stream().filter(report -> report.getType() == ReportType.ERROR).count());
+        assertTrue(reports.stream().anyMatch(report -> report.getMessage().equals("45 more errors of kind E003 were not reported.")));
+    }
+
+    @Test
+    public void floodOfOneKindStopsTheAnalysis() {
+        StringBuilder code = new StringBuilder("class Flood { public static void main(String[] args) {\n");
+        for (int i = 0; i < 1000; i++)
+            code.append("a").append(i).append(" = 1;\n");
+        code.append("} }");
+
+        List<Report> reports = TestUtils.analyse(code.toString()).getReports();
+        assertEquals(10, reports.stream().filter(report -> report.getType() == ReportType.ERROR).count());
+        assertTrue(reports.stream().anyMatch(report -> report.getMessage().equals("Too many errors, semantic analysis stopped after 100 errors.")));
+    }
+}
@@ -0,0 +1,445 @@
+package pt.up.fe.comp;
+
+import org.junit.Test;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test the optimizations of the OLLIR and Jasmin code, and the limits of the generated methods.
+ */
+public class OptimizationTest {
+
+    static JasminResult getJasminResult(String filename, Map<String, String> config) {
+        return TestUtils.backend(SpecsIo.getResource("pt/up/fe/comp/optimizations/" + filename), config);
+    }
+
+    static JasminResult getJasminResultOpt(String filename) {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        return getJasminResult(filename, config);
+    }
+
+    static JasminResult getJasminResult(String filename) {
+        return getJasminResult(filename, new HashMap<>());
+    }
+
+    static boolean hasReport(JasminResult jasminResult, String regex) {
+        Pattern pattern = Pattern.compile(regex);
+        return jasminResult.getReports().stream().anyMatch(report -> pattern.matcher(report.getMessage()).find());
+    }
+
+    static int getLimit(JasminResult jasminResult, String methodName, Pattern limit) {
+        Matcher matcher = limit.matcher(CpUtils.getJasminMethod(jasminResult, methodName));
+        CpUtils.assertTrue("Expected to find the limit in method " + methodName, matcher.find(), jasminResult);
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    /**
+     * Test if the labels of a call to a method with an empty body are kept when it is inlined
+     */
+    @Test
+    public void inlineEmptyCalleeInLoop() {
+        JasminResult jasminResult = getJasminResultOpt("InlineEmptyCallee.jmm");
+        CpUtils.assertEquals("Expected the call to be inlined", 0,
+                CpUtils.countOccurences(jasminResult, "/nothing()V"), jasminResult);
+        CpUtils.runJasmin(jasminResult, "3");
+    }
+
+    /**
+     * Test if the inlined methods are declared final, so that no subclass can override them, and only those
+     */
+    @Test
+    public void inlinedMethodsCannotBeOverridden() {
+        JasminResult jasminResult = getJasminResultOpt("InlineOverridable.jmm");
+        CpUtils.assertTrue("Expected the calls in quad to be inlined",
+                !CpUtils.getJasminMethod(jasminResult, "quad").contains("invokevirtual"), jasminResult);
+        CpUtils.assertTrue("Expected the inlined method to be final",
+                jasminResult.getJasminCode().contains(".method public final twice(I)I"), jasminResult);
+        CpUtils.assertTrue("Expected the methods that are not inlined to stay overridable",
+                jasminResult.getJasminCode().contains(".method public quad(I)I")
+                        && jasminResult.getJasminCode().contains(".method public sum(I)I"), jasminResult);
+        CpUtils.runJasmin(jasminResult, "12\n10");
+
+        // Without inlining, every method stays overridable
+        JasminResult notInlined = getJasminResult("InlineOverridable.jmm");
+        CpUtils.assertTrue("Expected no final method without inlining", !notInlined.getJasminCode().contains(" final "), notInlined);
+    }
+
+    /**
+     * Test if the SSA form is built on methods left with unreachable code by tail recursion elimination
+     */
+    @Test
+    public void ssaAfterTailRecursionElimination() {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("passes", "tail-recursion-elimination,ssa");
+        JasminResult jasminResult = getJasminResult("SsaAfterTailRecursion.jmm", config);
+        CpUtils.runJasmin(jasminResult, "705082704");
+    }
+
+    /**
+     * Test if the passes added to a list of AST passes are reported once
+     */
+    @Test
+    public void addedDependenciesOfAstPasses() {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("passes", "dead-branch-elimination");
+        JasminResult jasminResult = getJasminResult("InlineEmptyCallee.jmm", config);
+        CpUtils.assertEquals("Expected the added dependency to be reported once", 1, (int) jasminResult.getReports().stream()
+                .filter(report -> report.getMessage().equals("Pass manager added constant-propagation before dead-branch-elimination."))
+                .count(), jasminResult);
+    }
+
+    /**
+     * Test if a tail recursive method runs in constant stack space
+     */
+    @Test
+    public void tailRecursionEliminationOnDeepRecursion() {
+        JasminResult jasminResult = getJasminResultOpt("TailRecursionDeep.jmm");
+        CpUtils.assertTrue("Expected the recursive call to become a jump",
+                !CpUtils.getJasminMethod(jasminResult, "sum").contains("invokevirtual"), jasminResult);
+        CpUtils.runJasmin(jasminResult, "1784293664");
+    }
+
+    /**
+     * Test if a rotated loop keeps its invariant computations hoisted and its multiplications reduced
+     */
+    @Test
+    public void loopRotationWithHoistingAndStrengthReduction() {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("optimizationLevel", "3");
+        JasminResult jasminResult = getJasminResult("LoopOptimizations.jmm", config);
+
+        CpUtils.assertTrue("Expected invariant instructions to be hoisted",
+                hasReport(jasminResult, "Loop invariant code motion hoisted [1-9]"), jasminResult);
+        CpUtils.assertTrue("Expected the multiplication of the induction variable to be reduced",
+                hasReport(jasminResult, "Strength reduction reduced [1-9]"), jasminResult);
+
+        // The loop is entered with a single jump to its condition, which branches back to the body
+        String method = CpUtils.getJasminMethod(jasminResult, "run");
+        CpUtils.assertEquals("Expected a single goto in the rotated loop", 1,
+                method.split("\\bgoto\\b", -1).length - 1, jasminResult);
+        Matcher branch = Pattern.compile("if_icmp\\w+\\s+(\\w+)").matcher(method);
+        CpUtils.assertTrue("Expected the loop condition to branch", branch.find(), jasminResult);
+        CpUtils.assertTrue("Expected the loop condition to branch back to the body",
+                method.indexOf(branch.group(1) + ":") < branch.start(), jasminResult);
+        CpUtils.assertTrue("Expected no multiplication in the loop body",
+                !method.substring(method.indexOf(branch.group(1) + ":")).contains("imul"), jasminResult);
+
+        CpUtils.runJasmin(jasminResult, "240");
+    }
+
+    /**
+     * Test if the peephole rules shrink the code without changing what it does
+     */
+    @Test
+    public void peepholeRewrites() {
+        JasminResult optimized = getJasminResultOpt("Peephole.jmm");
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("peephole", "false");
+        JasminResult original = getJasminResult("Peephole.jmm", config);
+
+        CpUtils.assertNotEquals("Expected code to change with the peephole pass\n\nOriginal code:\n" + original.getJasminCode(),
+                original.getJasminCode(), optimized.getJasminCode(), optimized);
+        CpUtils.assertTrue("Expected the store-load rule to apply", hasReport(optimized, "store-load [1-9]"), optimized);
+        CpUtils.assertTrue("Expected the branch-over-goto rule to apply", hasReport(optimized, "branch-over-goto [1-9]"), optimized);
+        CpUtils.assertTrue("Expected the unused-label rule to apply", hasReport(optimized, "unused-label [1-9]"), optimized);
+
+        Matcher size = Pattern.compile("code size: (\\d+) -> (\\d+) bytes").matcher(optimized.getReports().stream()
+                .map(report -> report.getMessage()).filter(message -> message.startsWith("Peephole")).findFirst().orElse(""));
+        CpUtils.assertTrue("Expected the peephole pass to report the code size", size.find(), optimized);
+        CpUtils.assertTrue("Expected the code to shrink", Integer.parseInt(size.group(2)) < Integer.parseInt(size.group(1)), optimized);
+
+        CpUtils.runJasmin(original, "7\n1\n2");
+        CpUtils.runJasmin(optimized, "7\n1\n2");
+    }
+
+    /**
+     * Test if the limit of the stack is the exact one of each method
+     */
+    @Test
+    public void stackLimits() {
+        JasminResult jasminResult = getJasminResult("Limits.jmm");
+
+        CpUtils.assertEquals("Stack limit of add", 2, getLimit(jasminResult, "add\\(", CpUtils.getLimitStackRegex()), jasminResult);
+        CpUtils.assertEquals("Stack limit of addAll", 3, getLimit(jasminResult, "addAll", CpUtils.getLimitStackRegex()), jasminResult);
+        CpUtils.assertEquals("Stack limit of main", 4, getLimit(jasminResult, "static main", CpUtils.getLimitStackRegex()), jasminResult);
+
+        CpUtils.runJasmin(jasminResult, "6");
+    }
+
+    /**
+     * Test if the limit of the locals is the exact one of each method
+     */
+    @Test
+    public void localsLimits() {
+        JasminResult jasminResult = getJasminResult("Limits.jmm");
+
+        CpUtils.assertEquals("Locals limit of add", 4, getLimit(jasminResult, "add\\(", CpUtils.getLimitLocalsRegex()), jasminResult);
+        CpUtils.assertEquals("Locals limit of addAll", 6, getLimit(jasminResult, "addAll", CpUtils.getLimitLocalsRegex()), jasminResult);
+        CpUtils.assertEquals("Locals limit of main", 4, getLimit(jasminResult, "static main", CpUtils.getLimitLocalsRegex()), jasminResult);
+
+        CpUtils.runJasmin(jasminResult, "6");
+    }
+
+    /**
+     * Test if the worklist propagates a long chain of constants to the end, visiting each node a bounded number of times
+     */
+    @Test
+    public void constantPropagationOnLongChain() {
+        int length = 1000;
+        StringBuilder code = new StringBuilder("import io; class Chain { public static void main(String[] args) {");
+        for (int i = 0; i < length; i++)
+            code.append(" int a").append(i).append(";");
+        code.append(" a0 = 1;");
+        for (int i = 1; i < length; i++)
+            code.append(" a").append(i).append(" = a").append(i - 1).append(" + 1;");
+        code.append(" io.println(a").append(length - 1).append("); } }");
+
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("passes", "constant-propagation");
+        JasminResult jasminResult = TestUtils.backend(code.toString(), config);
+
+        // The same fixpoint as propagating and folding the whole method until nothing changes
+        String method = CpUtils.getJasminMethod(jasminResult, "static main");
+        CpUtils.assertTrue("Expected every addition to be folded", !method.contains("iadd"), jasminResult);
+        CpUtils.assertTrue("Expected the last value to be printed as a constant",
+                method.matches("(?s).*sipush 1000\\s+invokestatic io/println.*"), jasminResult);
+
+        Matcher visited = Pattern.compile("Constant propagation visited (\\d+) nodes").matcher(jasminResult.getReports().stream()
+                .map(report -> report.getMessage()).filter(message -> message.startsWith("Constant propagation")).findFirst().orElse(""));
+        CpUtils.assertTrue("Expected the visited nodes to be reported", visited.find(), jasminResult);
+        CpUtils.assertTrue("Expected a number of visited nodes linear in the length of the chain, got " + visited.group(1),
+                Integer.parseInt(visited.group(1)) < 10 * length, jasminResult);
+
+        CpUtils.runJasmin(jasminResult, "1000");
+    }
+
+    /**
+     * Test if the right operand of && and || only runs when the left one does not decide, both in branch conditions
+     * and in values, when it prints or accesses an array out of bounds
+     */
+    @Test
+    public void shortCircuitSkipsSideEffects() {
+        String expected = "3\n5\n6\n10\n11\n12";
+        CpUtils.runJasmin(getJasminResult("ShortCircuit.jmm"), expected);
+        CpUtils.runJasmin(getJasminResultOpt("ShortCircuit.jmm"), expected);
+
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("optimizationLevel", "3");
+        CpUtils.runJasmin(getJasminResult("ShortCircuit.jmm", config), expected);
+    }
+
+    /**
+     * Test if a branch is folded on a constant that is only known because another branch is never taken
+     */
+    @Test
+    public void conditionalConstantPropagationThroughBranch() {
+        // The AST passes keep every branch, as x is assigned in the loop
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("passes", "dead-branch-elimination");
+        JasminResult astOnly = getJasminResult("SccpThroughBranch.jmm", config);
+        CpUtils.assertTrue("Expected the AST passes to keep the branch", CpUtils.getJasminMethod(astOnly, "run").contains("bipush 8"), astOnly);
+
+        JasminResult jasminResult = getJasminResultOpt("SccpThroughBranch.jmm");
+        CpUtils.assertTrue("Expected branches on x to be folded",
+                hasReport(jasminResult, "Conditional constant propagation folded [1-9]"), jasminResult);
+        String method = CpUtils.getJasminMethod(jasminResult, "run");
+        CpUtils.assertTrue("Expected the branch that is never taken to be removed", !method.contains("bipush 8"), jasminResult);
+        CpUtils.assertEquals("Expected only the loop condition to branch", 1,
+                method.split("\\bif\\w*", -1).length - 1, jasminResult);
+
+        CpUtils.runJasmin(astOnly, "7\n1");
+        CpUtils.runJasmin(jasminResult, "7\n1");
+    }
+
+    /**
+     * Test if the stores that are never read are removed, unless computing their value has side effects
+     */
+    @Test
+    public void deadStoreElimination() {
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("passes", "dead-store-elimination");
+        JasminResult jasminResult = getJasminResult("DeadStores.jmm", config);
+
+        CpUtils.assertTrue("Expected dead stores to be removed", hasReport(jasminResult, "Dead store elimination removed [1-9]"), jasminResult);
+        String method = CpUtils.getJasminMethod(jasminResult, "run");
+        CpUtils.assertTrue("Expected the overwritten store to be removed", !method.contains("iconst_1"), jasminResult);
+        CpUtils.assertTrue("Expected the store that is never read to be removed", !method.contains("imul"), jasminResult);
+        CpUtils.assertTrue("Expected the call to be kept", method.contains("invokevirtual DeadStores/show(I)I"), jasminResult);
+        CpUtils.assertTrue("Expected the object creation to be kept",
+                method.contains("new DeadStores") && method.contains("invokespecial DeadStores/<init>()V"), jasminResult);
+
+        CpUtils.runJasmin(jasminResult, "5\n3");
+    }
+
+    /**
+     * Test if the increments around the limits of a signed byte, and the subtraction of a negative literal, are
+     * emitted as iinc with the right signed value
+     */
+    @Test
+    public void incrementBoundaries() {
+        String expected = "127\n255\n127\n-2\n125\n130\n258";
+
+        JasminResult jasminResult = getJasminResult("Increments.jmm");
+        String method = CpUtils.getJasminMethod(jasminResult, "run");
+        for (String increment : new String[]{"127", "128", "-128", "-129"})
+            CpUtils.assertTrue("Expected an iinc of " + increment,
+                    Pattern.compile("iinc \\d+ " + increment + "\\b").matcher(method).find(), jasminResult);
+        CpUtils.runJasmin(jasminResult, expected);
+
+        JasminResult optimized = getJasminResultOpt("Increments.jmm");
+        method = CpUtils.getJasminMethod(optimized, "run");
+        CpUtils.assertTrue("Expected the subtraction of -5 to be an iinc of 5",
+                Pattern.compile("iinc \\d+ 5\\b").matcher(method).find() && !method.contains("--"), optimized);
+        CpUtils.runJasmin(optimized, expected);
+    }
+
+    /**
+     * Test if the branches on conditions known to be false are removed, both on the AST and on the OLLIR code
+     */
+    @Test
+    public void deadBranchAndUnreachableCodeElimination() {
+        String expected = "5\n10";
+        JasminResult unoptimized = getJasminResult("DeadBranches.jmm");
+        CpUtils.assertTrue("Expected the branches to be kept without optimizations",
+                CpUtils.getJasminMethod(unoptimized, "run").contains("bipush 111"), unoptimized);
+        CpUtils.runJasmin(unoptimized, expected);
+
+        for (String pass : new String[]{"dead-branch-elimination", "unreachable-code-elimination"}) {
+            Map<String, String> config = new HashMap<>();
+            config.put("optimize", "true");
+            config.put("passes", pass);
+            JasminResult jasminResult = getJasminResult("DeadBranches.jmm", config);
+
+            String report = pass.equals("dead-branch-elimination") ? "Dead branch elimination removed [1-9]"
+                    : "Unreachable code elimination removed [1-9]";
+            CpUtils.assertTrue("Expected a report of " + pass, hasReport(jasminResult, report), jasminResult);
+            String run = CpUtils.getJasminMethod(jasminResult, "run");
+            CpUtils.assertTrue("Expected the branches on debug to be removed by " + pass,
+                    !run.contains("bipush 111") && !run.contains("sipush 222"), jasminResult);
+            String literal = CpUtils.getJasminMethod(jasminResult, "literal");
+            CpUtils.assertTrue("Expected the branches on literals to be removed by " + pass,
+                    !literal.contains("sipush 444") && !literal.contains("sipush 555") && !literal.contains("goto"), jasminResult);
+            CpUtils.runJasmin(jasminResult, expected);
+        }
+    }
+
+    /**
+     * Test if copies are propagated to their uses, and if a copy between variables that share a register emits nothing
+     */
+    @Test
+    public void copyPropagationAndCoalescing() {
+        String expected = "20\n4\n7";
+        JasminResult unoptimized = getJasminResult("Copies.jmm");
+        CpUtils.runJasmin(unoptimized, expected);
+
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("passes", "copy-propagation");
+        JasminResult jasminResult = getJasminResult("Copies.jmm", config);
+        CpUtils.assertTrue("Expected temporaries to be coalesced and copies to be propagated",
+                hasReport(jasminResult, "Copy propagation coalesced [1-9]\\d* temporaries and propagated [1-9]"), jasminResult);
+        int stores = CpUtils.getJasminMethod(jasminResult, "run").split("\\bistore", -1).length - 1;
+        int unoptimizedStores = CpUtils.getJasminMethod(unoptimized, "run").split("\\bistore", -1).length - 1;
+        CpUtils.assertTrue("Expected fewer stores, " + stores + " >= " + unoptimizedStores, stores < unoptimizedStores, jasminResult);
+        CpUtils.runJasmin(jasminResult, expected);
+
+        // b = a is the only instruction of its branch, and a and b get the same register
+        config.put("registerAllocation", "0");
+        JasminResult allocated = getJasminResult("Copies.jmm", config);
+        String pick = CpUtils.getJasminMethod(allocated, "pick");
+        CpUtils.assertEquals("Expected only the product and the literal to be stored", 2,
+                pick.split("\\bistore", -1).length - 1, allocated);
+        CpUtils.assertTrue("Expected the branch of the copy to be empty", !pick.contains("goto"), allocated);
+        CpUtils.runJasmin(allocated, expected);
+    }
+
+    /**
+     * Test if repeated expressions are computed once, unless a store may have changed the memory they read
+     */
+    @Test
+    public void valueNumbering() {
+        String expected = "29\n9";
+        JasminResult unoptimized = getJasminResult("ValueNumbering.jmm");
+        CpUtils.assertEquals("Expected every product without optimizations", 3,
+                CpUtils.countOccurences(unoptimized, "imul"), unoptimized);
+        CpUtils.runJasmin(unoptimized, expected);
+
+        Map<String, String> config = new HashMap<>();
+        config.put("optimize", "true");
+        config.put("passes", "value-numbering");
+        JasminResult local = getJasminResult("ValueNumbering.jmm", config);
+        CpUtils.assertTrue("Expected redundant expressions to be removed",
+                hasReport(local, "Local value numbering removed [1-9]"), local);
+        String run = CpUtils.getJasminMethod(local, "run");
+        CpUtils.assertEquals("Expected a * b to be computed once", 1, run.split("\\bimul", -1).length - 1, local);
+        CpUtils.assertEquals("Expected v[0] to be loaded again after the store", 2,
+                run.split("\\biaload", -1).length - 1, local);
+        CpUtils.assertEquals("Expected the local mode to keep the length in the loop", 2,
+                CpUtils.getJasminMethod(local, "total").split("\\barraylength", -1).length - 1, local);
+        CpUtils.runJasmin(local, expected);
+
+        // The loop body is dominated by the condition, which already computed the length
+        config.put("valueNumbering", "global");
+        JasminResult global = getJasminResult("ValueNumbering.jmm", config);
+        CpUtils.assertTrue("Expected redundant expressions to be removed",
+                hasReport(global, "Global value numbering removed [1-9]"), global);
+        CpUtils.assertEquals("Expected the length to be computed only by the condition", 1,
+                CpUtils.getJasminMethod(global, "total").split("\\barraylength", -1).length - 1, global);
+        CpUtils.runJasmin(global, expected);
+    }
+
+    /**
+     * Test if the conditions of ifs and whiles branch on their comparisons, without materializing a boolean
+     */
+    @Test
+    public void branchOnComparisons() {
+        JasminResult jasminResult = getJasminResult("Comparisons.jmm");
+        String method = CpUtils.getJasminMethod(jasminResult, "run");
+        String loop = method.substring(method.indexOf("loop0:"), method.indexOf("if_icmplt loop0"));
+        CpUtils.assertTrue("Expected i < 3 to be a single if_icmplt",
+                Pattern.compile("iconst_3\\s+if_icmplt").matcher(loop).find(), jasminResult);
+        CpUtils.assertTrue("Expected 0 < i to be a single ifgt", loop.contains("ifgt"), jasminResult);
+        CpUtils.assertTrue("Expected no boolean in the loop",
+                !loop.contains("iconst_0") && !loop.contains("iconst_1") && !loop.contains("ifne"), jasminResult);
+        CpUtils.assertTrue("Expected the comparison used as a value to produce a boolean",
+                method.contains("iconst_1") && method.contains("ifne"), jasminResult);
+
+        CpUtils.runJasmin(jasminResult, "1\n423");
+        CpUtils.runJasmin(getJasminResultOpt("Comparisons.jmm"), "1\n423");
+    }
+
+    /**
+     * Test if each folded constant is pushed with the shortest instruction that holds it, at the limits of each one,
+     * and if increments that do not fit a signed byte use the wide iinc
+     */
+    @Test
+    public void constantBoundaries() {
+        String expected = "-1\n0\n5\n6\n127\n128\n-128\n-129\n32767\n32768\n-32768\n-32769\n2147483647\n-2147483648\n-31768";
+
+        JasminResult jasminResult = getJasminResultOpt("Constants.jmm");
+        String method = CpUtils.getJasminMethod(jasminResult, "run");
+        String[] instructions = {"iconst_m1", "iconst_0", "iconst_5", "bipush 6", "bipush 127", "sipush 128",
+                "bipush -128", "sipush -129", "sipush 32767", "ldc 32768", "sipush -32768", "ldc -32769",
+                "ldc 2147483647", "ldc -2147483648", "iinc 1 1000", "iinc 1 -32768"};
+        for (String instruction : instructions)
+            CpUtils.assertTrue("Expected " + instruction,
+                    Pattern.compile(Pattern.quote(instruction) + "\\s").matcher(method).find(), jasminResult);
+
+        CpUtils.runJasmin(jasminResult, expected);
+        CpUtils.runJasmin(getJasminResult("Constants.jmm"), expected);
+    }
+}
@@ -0,0 +1,73 @@
+package pt.up.fe.comp;
+
+import org.junit.Test;
+import org.specs.comp.ollir.Method;
+import pt.up.fe.comp.jmm.jasmin.JasminResult;
+import pt.up.fe.comp.jmm.ollir.OllirResult;
+import pt.up.fe.comp2023.optimization.SsaForm;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the construction and destruction of the SSA form of OLLIR methods.
+ */
+public class SsaFormTest {
+
+    // Swaps in a loop create cycles of phis, and the branch inside it creates critical edges
+    private static final String CODE = "import io; class Fibonacci {" +
+            "public static void main(String[] args) { int a; int b; int c; int i; a = 0; b = 1; i = 0;" +
+            "while (i < 20) { c = a + b; a = b; b = c; if (a < 100) { c = 0; } else { c = 1; } i = i + c + 1; }" +
+            "io.println(a); io.println(b); } }";
+
+    private static String generateLongMethod(int statements) {
+        StringBuilder code = new StringBuilder("import io; class Long { public static void main(String[] args) {" +
+                " int a; int b; int c; a = 0; b = 1; c = 2;");
+        for (int i = 0; i < statements; i++)
+            code.append("if (a < ").append(i).append(") { a = b + c; } else { b = a + ").append(i).append("; } c = a + b;");
+        return code.append(" io.println(c); } }").toString();
+    }
+
+    private static int countInstructions(OllirResult ollirResult) {
+        return ollirResult.getOllirClass().getMethods().stream().mapToInt(method -> method.getInstructions().size()).sum();
+    }
+
+    @Test
+    public void constructAndDestruct() {
+        String expected = TestUtils.runJasmin(TestUtils.backend(CODE).getJasminCode());
+
+        OllirResult ollirResult = TestUtils.optimize(CODE);
+        int placedPhis = 0;
+        for (Method method : ollirResult.getOllirClass().getMethods()) {
+            SsaForm ssaForm = new SsaForm(method);
+            assertEquals(Collections.emptyList(), ssaForm.verify());
+            ssaForm.destruct();
+            placedPhis += ssaForm.getPlacedPhis();
+        }
+        assertTrue("Expected phis for the variables assigned in the loop", placedPhis > 0);
+
+        JasminResult jasminResult = TestUtils.backend(ollirResult);
+        TestUtils.noErrors(jasminResult);
+        assertEquals(expected, TestUtils.runJasmin(jasminResult.getJasminCode()));
+    }
+
+    // About 3800 instructions, which took 0.4 s to construct and 1.0 s to destruct
+    @Test
+    public void destructionCostOfLongMethod() {
+        OllirResult ollirResult = TestUtils.optimize(generateLongMethod(470));
+        assertTrue(countInstructions(ollirResult) > 3500);
+
+        long destruction = 0;
+        for (Method method : ollirResult.getOllirClass().getMethods()) {
+            SsaForm ssaForm = new SsaForm(method);
+            assertEquals(Collections.emptyList(), ssaForm.verify());
+            long start = System.nanoTime();
+            ssaForm.destruct();
+            destruction += System.nanoTime() - start;
+        }
+        long milliseconds = destruction / 1_000_000;
+        assertTrue("SSA destruction took " + milliseconds + " ms", milliseconds < 5_000);
+    }
+}
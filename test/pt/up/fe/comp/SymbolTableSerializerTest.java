@@ -0,0 +1,128 @@
+package pt.up.fe.comp;
+
+import org.junit.Test;
+import pt.up.fe.comp.jmm.analysis.table.Symbol;
+import pt.up.fe.comp.jmm.analysis.table.Type;
+import pt.up.fe.comp.jmm.report.Report;
+import pt.up.fe.comp2023.semantic.MethodTable;
+import pt.up.fe.comp2023.semantic.MySymbolTable;
+import pt.up.fe.comp2023.semantic.SymbolTableSerializer;
+import pt.up.fe.specs.util.SpecsIo;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test the binary summaries of classes used to compile other classes against them.
+ */
+public class SymbolTableSerializerTest {
+
+    private static final String LIBRARY = "import Base; class Library extends Base {" +
+            "int count; int[] values;" +
+            "public int twice(int a) { return a + a; }" +
+            "public int[] fill(int n, boolean b, Library other) { return new int[n]; }" +
+            "public static void main(String[] args) { } }";
+
+    private static MySymbolTable getSymbolTable(String code) {
+        return (MySymbolTable) TestUtils.analyse(code).getSymbolTable();
+    }
+
+    @Test
+    public void writeAndRead() throws IOException {
+        File directory = Files.createTempDirectory("symbols").toFile();
+        try {
+            MySymbolTable written = getSymbolTable(LIBRARY);
+            File file = SymbolTableSerializer.write(written, directory);
+            assertEquals("Library.symbols", file.getName());
+            MySymbolTable read = SymbolTableSerializer.read(file);
+
+            assertEquals(written.getClassName(), read.getClassName());
+            assertEquals(written.getSuper(), read.getSuper());
+            assertEquals(written.getFields(), read.getFields());
+            assertEquals(written.getMethods(), read.getMethods());
+            for (String method : written.getMethods()) {
+                assertEquals(written.getReturnType(method), read.getReturnType(method));
+                assertEquals(written.getParameters(method), read.getParameters(method));
+            }
+        } finally {
+            SpecsIo.deleteFolder(directory);
+        }
+    }
+
+    @Test
+    public void importedClassIsResolvedFromItsSummary() throws IOException {
+        File directory = Files.createTempDirectory("symbols").toFile();
+        try {
+            SymbolTableSerializer.write(getSymbolTable(LIBRARY), directory);
+            Map<String, String> config = new HashMap<>();
+            config.put("symbolPath", directory.getPath());
+
+            // The summary types the call, so its result can be used as an int
+            String main = "import Library; class Main { public static void main(String[] args) { int a; Library l;" +
+                    " l = new Library(); a = l.twice(2); } }";
+            TestUtils.noErrors(TestUtils.analyse(main, config));
+
+            // And its arguments are checked against the parameters of the summary
+            String wrongArgument = "import Library; class Main { public static void main(String[] args) { int a; Library l;" +
+                    " l = new Library(); a = l.twice(true); } }";
+            List<Report> reports = TestUtils.analyse(wrongArgument, config).getReports();
+            TestUtils.mustFail(reports);
+            assertTrue(reports.stream().anyMatch(report -> report.getMessage().startsWith("[E017]")));
+        } finally {
+            SpecsIo.deleteFolder(directory);
+        }
+    }
+
+    @Test
+    public void tooManyParametersAreRejected() throws IOException {
+        File directory = Files.createTempDirectory("symbols").toFile();
+        try {
+            List<Symbol> parameters = new ArrayList<>();
+            for (int i = 0; i < 256; i++)
+                parameters.add(new Symbol(new Type("int", false), "a" + i));
+            List<MethodTable> methods = new ArrayList<>();
+            methods.add(new MethodTable("many", parameters, new ArrayList<>(), new Type("int", false)));
+
+            try {
+                SymbolTableSerializer.write(new MySymbolTable("Many", null, new ArrayList<>(), methods), directory);
+                fail("Expected the summary to be rejected");
+            } catch (IOException e) {
+                assertEquals("Too many parameters of method 'many' for a symbol table file: 256, the limit is 255.", e.getMessage());
+            }
+            assertFalse(new File(directory, "Many.symbols").exists());
+        } finally {
+            SpecsIo.deleteFolder(directory);
+        }
+    }
+
+    @Test
+    public void tooManyNamesAreRejected() throws IOException {
+        File directory = Files.createTempDirectory("symbols").toFile();
+        try {
+            // As many fields as the count allows, but each name is one more string
+            List<Symbol> fields = new ArrayList<>();
+            for (int i = 0; i < 0xFFFF; i++)
+                fields.add(new Symbol(new Type("int", false), "f" + i));
+
+            try {
+                SymbolTableSerializer.write(new MySymbolTable("Many", null, fields, new ArrayList<>()), directory);
+                fail("Expected the summary to be rejected");
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Too many names for a symbol table file"));
+            }
+            assertFalse(new File(directory, "Many.symbols").exists());
+        } finally {
+            SpecsIo.deleteFolder(directory);
+        }
+    }
+}